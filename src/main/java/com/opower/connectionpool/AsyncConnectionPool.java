@@ -0,0 +1,30 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ConnectionPool} that can also hand out connections without blocking the caller, for event-loop code that must never park a thread.
+ * The main implementation is {@link com.opower.connectionpool.pool.MortonianConnectionPool}.
+ */
+public interface AsyncConnectionPool extends ConnectionPool {
+
+    /**
+     * Asks for a connection from the connection pool, without blocking.  How long to wait for one is up to the pool.
+     * 
+     * @return a future that completes with a valid connection from the pool.  The connection is released the usual way, 
+     *         with {@link #releaseConnection(Connection)}.
+     */
+    CompletableFuture<Connection> getConnectionAsync();
+
+    /**
+     * Asks for a connection from the connection pool, without blocking.
+     * 
+     * @param timeout how long to wait for a connection if they are all leased.  Zero (or less) means don't wait at all.
+     * @param unit the unit of the timeout
+     * @return a future that completes with a valid connection from the pool, or completes exceptionally with a {@link java.sql.SQLTimeoutException} 
+     *         if there was none to be had in time.  Cancelling the future stops waiting.
+     */
+    CompletableFuture<Connection> getConnectionAsync(long timeout, TimeUnit unit);
+}
@@ -7,7 +7,8 @@ package com.opower.connectionpool;
 public interface PoolConfig {
 
     /**
-     * @return The maximum size of connections that a pool can make.  Default value is 1.
+     * @return The maximum size of connections that a pool can make.  Default value is 1.  Can't be more than 
+     *         {@link com.opower.connectionpool.pool.MortonianConnectionPool#MAX_POOL_SIZE} (65536).
      */
     public int getMaxPoolSize();
     
@@ -24,18 +25,20 @@ public interface PoolConfig {
     
     /**
      * @return Should {@link java.sql.Connection.commit()} be called on all leased connections before release or shutdown.  Default value is false.
+     *         Ignored if {@link #getReleasePolicy()} is set.
      */
     public boolean getAutoCommit();
     
     /**
      * @return If all connections are leased, how long to wait before trying again.  Default value is 300ms.  
-     * <B>Note:</B> The wait is accomplished by Thread.sleep, which is interruptible and blocks the thread.  
-     * This is clearly the wrong way to do this, but it's the best I can do for now.  Consider yourself warned.
+     * <B>Note:</B> This is only kept for compatibility.  {@link ConnectionPool#getConnection()} waits up to {@link #getRetryAttempts()} times this long 
+     * in total, but it doesn't sleep and retry: a borrower waits in line, and gets a connection the moment one is released.  
      */
     public int getRetryWaitTimeInMillis();
     
     /**
-     * @return If all connections are leased, how many more times to try before returning null.  Default value is 0. 
+     * @return If all connections are leased, how many more times to try before returning null.  Default value is 0.  
+     *         See {@link #getRetryWaitTimeInMillis()} for how the two combine into a single timeout.
      */
     public int getRetryAttempts();
 
@@ -44,8 +47,8 @@ public interface PoolConfig {
      * 
      * Maximum age in milliseconds that a connection will be alive before it is no longer deemed usable, and hence will be closed.  
      * <B>Note:</B> actively leased connections will not be closed.  Only available, but unleased, connections in the pool will be closed.
-     * <B>Also Note:</B> We've not yet implemented a timer thread, so these will be closed out when they are inspected during a call to {@link ConnectionPool.#getConnection()}.
-     * This is probably invalid, but for now it is what it is. 
+     * <B>Also Note:</B> The housekeeper thread closes expired connections every {@link #getHousekeepingIntervalInMillis()}, and borrowers skip any it hasn't 
+     * got to yet.  Each connection's age limit is cut short by a random amount, of up to a twentieth, so that connections made together don't all expire together. 
      *         
      * @return Maximum age in milliseconds that a connection will be alive before it is no longer deemed usage, and hence will be closed.  
      *         Any value less than or equal to zero will be interpretted as "infinity".  Default value is -1.  
@@ -58,12 +61,138 @@ public interface PoolConfig {
      * 
      * Maximum time in milliseconds since a connection was released before it is no longer deemed usable, and hence will be closed.  
      * <B>Note:</B> actively leased connections will not be closed.  Only available, but unleased, connections in the pool will be closed.
-     * <B>Also Note:</B> We've not yet implemented a timer thread, so these will be closed out when they are inspected during a call to {@link ConnectionPool.#getConnection()}.
-     * This is probably invalid, but for now it is what it is. 
+     * <B>Also Note:</B> The housekeeper thread closes expired connections every {@link #getHousekeepingIntervalInMillis()}, and borrowers skip any it hasn't 
+     * got to yet. 
      *         
      * @return Maximum age in milliseconds that a connection will be alive before it is no longer deemed usage, and hence will be closed.  
      *         Any value less than or equal to zero will be interpretted as "infinity".  Default value is -1.  
      * 
      */
     public int getMaxIdleTimeInMillis();
+
+    /**
+     * @return How many idle connections the pool should try to keep ready to lease.  Whenever there are fewer than this, a background filler thread 
+     *         makes more (without violating {@link #getMaxPoolSize()}), so that borrowers don't have to wait for somebody else's connection to be made.  
+     *         When this is set, the filler also takes over from {@link #getAcquireIncrement()}, and a borrower only ever connects to the database for itself.
+     *         Default value is 0, which means no filler thread.
+     */
+    public int getMinIdle();
+
+    /**
+     * @return How many of the {@link #getInitialPoolSize()} connections to open at once while the pool warms up.  Default value is 1, which opens them 
+     *         one after another.
+     */
+    public int getWarmUpConcurrency();
+
+    /**
+     * @return Should the pool be usable straight away, while the {@link #getInitialPoolSize()} connections are opened in the background.  If so, a connection 
+     *         that can't be opened is retried (backing off between attempts) until it can, rather than failing the pool's construction.  Default value is false.
+     */
+    public boolean getWarmUpInBackground();
+
+    /**
+     * @return How many sub-pools to split the idle connections across.  Each thread borrows from (and releases to) its own sub-pool first, and only 
+     *         takes from the others when its own is empty, so that threads on different cores aren't all contending for the same idle queue.  
+     *         {@link #getMaxPoolSize()} still applies to the pool as a whole.  Default value is 1.  Something around the number of cores is a good 
+     *         place to start for a pool that's borrowed from heavily.
+     */
+    public int getNumberOfStripes();
+
+    /**
+     * @return Should a thread that borrows a connection get back the one it last released, if nobody else has taken it in the meantime.  A thread that 
+     *         borrows and releases many times over (say, once per query while serving a request) then keeps using the same connection, which stays warm in 
+     *         its CPU's cache, and skips the shared idle queue altogether.  Default value is false.
+     */
+    public boolean getThreadAffinity();
+
+    /**
+     * @return How many prepared statements to keep for each connection, ready to be handed out again when the same SQL (with the same result set type, 
+     *         concurrency and holdability) is prepared on it again.  Closing a statement gives it back to its connection's cache, and the least recently used
+     *         one is closed when the cache is full.  A statement whose settings were changed, or that was told to close on completion, is closed rather
+     *         than given back.  Default value is 0, which means no statement cache.
+     */
+    public int getStatementCacheSize();
+
+    /**
+     * @return Should the pool register an MBean, named after the pool's uuid, that shows its statistics live and lets an operator resize it, change its 
+     *         idle and age limits, and evict its idle connections without a redeploy.  See {@link com.opower.connectionpool.pool.MortonianConnectionPoolMXBean}.  
+     *         Default value is false.
+     */
+    public boolean getRegisterMBean();
+
+    /**
+     * @return How often, in milliseconds, the pool's housekeeper thread looks through the idle connections and closes the ones that have outlived 
+     *         {@link #getMaxConnectionAgeInMillis()} or {@link #getMaxIdleTimeInMillis()}, so that borrowers don't have to.  Any value less than or equal 
+     *         to zero turns the housekeeper off, and leaves it to borrowers to skip expired connections.  Default value is 30000.
+     */
+    public int getHousekeepingIntervalInMillis();
+
+    /**
+     * @return Should a borrower check that an idle connection still works before it's handed out, with {@link #getValidationQuery()} or 
+     *         {@link java.sql.Connection#isValid(int)}.  One that doesn't is closed, and the borrower gets another idle one, or a new one, in the same call.  
+     *         A connection that was used less than {@link #getValidationBypassWindowInMillis()} ago isn't checked.  Default value is false.
+     */
+    public boolean getValidateOnBorrow();
+
+    /**
+     * @return How long, in milliseconds, after a connection was last released (or made, or checked) it's taken on trust, and not checked by 
+     *         {@link #getValidateOnBorrow()} or {@link #getValidateIdleConnections()}.  Busy connections are then never checked at all, and only ones that 
+     *         have sat idle for a while are.  Default value is 1000.
+     */
+    public int getValidationBypassWindowInMillis();
+
+    /**
+     * @return How long, in seconds, to give a connection to answer when checking it, before deeming it broken.  Default value is 5.
+     */
+    public int getValidationTimeoutInSeconds();
+
+    /**
+     * @return Should the housekeeper thread also check, every {@link #getHousekeepingIntervalInMillis()}, that the idle connections still work, and close the 
+     *         ones that don't, so that borrowers seldom come across one.  Default value is false.
+     */
+    public boolean getValidateIdleConnections();
+
+    /**
+     * @return SQL to run to check that a connection still works, such as "SELECT 1", for drivers whose {@link java.sql.Connection#isValid(int)} isn't 
+     *         up to the job.  Default value is null, which means use isValid().
+     */
+    public String getValidationQuery();
+
+    /**
+     * @return How long, in milliseconds, a connection can be leased before the pool logs it as a possible leak, along with the stack of whoever borrowed it.  
+     *         The housekeeper thread looks every {@link #getHousekeepingIntervalInMillis()}, so a leak may be reported up to that much later.  The borrower's
+     *         stack is only captured while this is set.  Default value is 0, which means no leak detection.
+     */
+    public int getLeakDetectionThresholdInMillis();
+
+    /**
+     * @return How long, in milliseconds, a connection can be leased before the pool takes it back: it invalidates the borrower's lease, rolls back whatever 
+     *         the borrower left uncommitted, and closes the connection, so that a new one can be made in its place.  Checked by the housekeeper thread, like 
+     *         {@link #getLeakDetectionThresholdInMillis()}.  Only set this well above the longest anybody should ever hold a connection.  Default value is 0, 
+     *         which means leased connections are never taken back.
+     */
+    public int getAbandonedLeaseTimeoutInMillis();
+
+    /**
+     * @return What to do about the borrower's transaction when a connection is released: commit it every time, commit it only if the borrower may have 
+     *         left one open, or roll it back only if the borrower may have left one open.  The last two cost nothing for a lease that did no work, 
+     *         only ran auto-committed statements, or ended its own transaction.  A borrower that gets at the physical connection (by unwrapping, say) 
+     *         is taken to have done work with it.  Only pick {@link ReleasePolicy#COMMIT_IF_OPEN} if nothing else, such as a statement kept from an 
+     *         earlier lease, works on the connection.  Default value is null, which means {@link ReleasePolicy#COMMIT_ALWAYS} if 
+     *         {@link #getAutoCommit()} is on, and {@link ReleasePolicy#ROLL_BACK_IF_OPEN} if not.
+     */
+    public ReleasePolicy getReleasePolicy();
+
+    /**
+     * @return How many connections the pool may be making at once, counting borrowers, waiters, the filler and the warm-up.  Anyone who would make 
+     *         one more waits in line instead, for whichever comes first: a connection someone releases, or a chance to make one.  Keeps a spike in 
+     *         demand on an empty pool from flooding the database with logins.  Default value is 0, which means no limit.
+     */
+    public int getMaxConcurrentConnects();
+
+    /**
+     * @return How many connections the pool may make per second.  Up to a second's worth can be made in a burst, after which they're spread out evenly.
+     *         Anyone who would make one sooner waits in line, as for {@link #getMaxConcurrentConnects()}.  Default value is 0, which means no limit.
+     */
+    public int getMaxConnectsPerSecond();
 }
@@ -0,0 +1,24 @@
+package com.opower.connectionpool;
+
+/**
+ * Decides, as demand goes up and down, how many idle connections a {@link ConnectionPool} should keep ready, on top of the fixed sizes in its
+ * {@link PoolConfig}.  The pool asks every {@link #getSampleIntervalInMillis()}, on a background thread, and then makes connections (or closes the
+ * least recently used idle ones) until it has that many idle.  It never goes below {@link PoolConfig#getMinIdle()} idle, or above
+ * {@link PoolConfig#getMaxPoolSize()} in all, whatever the policy says.
+ *
+ * The main implementation is {@link com.opower.connectionpool.pool.AdaptivePoolSizingPolicy}.  A policy is only ever called from one thread at a time,
+ * so it can keep whatever history it likes without locking.
+ */
+public interface PoolSizingPolicy {
+
+    /**
+     * @return how often the pool should take a {@link PoolSizingSample} and ask for a new target
+     */
+    public long getSampleIntervalInMillis();
+
+    /**
+     * @param sample where the pool stands now, and what happened since the last sample
+     * @return how many idle connections the pool should keep ready
+     */
+    public int getTargetIdleConnections(PoolSizingSample sample);
+}
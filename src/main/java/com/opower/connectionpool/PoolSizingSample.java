@@ -0,0 +1,63 @@
+package com.opower.connectionpool;
+
+/**
+ * What a {@link PoolSizingPolicy} gets to go on: a snapshot of a pool's connections, and how many borrowers came and had to wait since the last one.
+ */
+public class PoolSizingSample {
+
+    private final int _numberOfConnections;
+    private final int _numberOfConnectionsLeased;
+    private final int _numberOfConnectionsAvailable;
+    private final long _numberOfAcquires;
+    private final long _numberOfWaits;
+    private final int _minIdle;
+    private final int _maxPoolSize;
+
+    public PoolSizingSample(int numberOfConnections, int numberOfConnectionsLeased, int numberOfConnectionsAvailable, long numberOfAcquires,
+            long numberOfWaits, int minIdle, int maxPoolSize) {
+        _numberOfConnections = numberOfConnections;
+        _numberOfConnectionsLeased = numberOfConnectionsLeased;
+        _numberOfConnectionsAvailable = numberOfConnectionsAvailable;
+        _numberOfAcquires = numberOfAcquires;
+        _numberOfWaits = numberOfWaits;
+        _minIdle = minIdle;
+        _maxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * @return the connections the pool has, whether they're idle, leased or still being made
+     */
+    public int getNumberOfConnections() {
+        return _numberOfConnections;
+    }
+
+    public int getNumberOfConnectionsLeased() {
+        return _numberOfConnectionsLeased;
+    }
+
+    public int getNumberOfConnectionsAvailable() {
+        return _numberOfConnectionsAvailable;
+    }
+
+    /**
+     * @return how many borrowers asked for a connection since the last sample
+     */
+    public long getNumberOfAcquires() {
+        return _numberOfAcquires;
+    }
+
+    /**
+     * @return how many of those borrowers found no idle connection, and had to wait for one to be made or released
+     */
+    public long getNumberOfWaits() {
+        return _numberOfWaits;
+    }
+
+    public int getMinIdle() {
+        return _minIdle;
+    }
+
+    public int getMaxPoolSize() {
+        return _maxPoolSize;
+    }
+}
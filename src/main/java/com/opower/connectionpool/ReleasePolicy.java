@@ -0,0 +1,27 @@
+package com.opower.connectionpool;
+
+/**
+ * What a {@link ConnectionPool} does about the borrower's transaction when a connection is released.  The pool knows a transaction may be open if the
+ * borrower ran a statement or made a savepoint while auto-commit was off, and hasn't committed or rolled back since, or at any point prepared a call, 
+ * got the database metadata, or unwrapped the connection, a statement or a result set.  So a lease that did nothing, only ran auto-committed 
+ * statements, or ended its own transaction, never needs a round trip to end it.
+ *
+ * See {@link PoolConfig#getReleasePolicy()}.
+ */
+public enum ReleasePolicy {
+
+    /**
+     * Commit on every release, whether or not the borrower did anything.  What {@link PoolConfig#getAutoCommit()} has always done.
+     */
+    COMMIT_ALWAYS,
+
+    /**
+     * Commit only if the borrower may have left a transaction open.
+     */
+    COMMIT_IF_OPEN,
+
+    /**
+     * Roll back only if the borrower may have left a transaction open, so that work it didn't commit itself never sticks.
+     */
+    ROLL_BACK_IF_OPEN
+}
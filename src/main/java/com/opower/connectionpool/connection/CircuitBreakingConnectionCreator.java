@@ -0,0 +1,158 @@
+package com.opower.connectionpool.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.opower.connectionpool.ConnectionConfig;
+import com.opower.connectionpool.ConnectionCreator;
+
+/**
+ * Wraps another {@link ConnectionCreator}, and stops calling it for a while once it has failed some number of times in a row, so that when the
+ * database is down, borrowers fail straight away instead of each waiting out the driver's connect timeout.
+ *
+ * While the circuit is open, every connect fails fast with a {@link SQLTransientConnectionException}.  Once the backoff has passed, one caller is
+ * let through to try for real.  If it connects, the circuit closes again, and if not, it stays open for twice as long as last time, up to the
+ * max backoff.
+ *
+ * Give one of these to the pool in place of the creator it wraps:
+ *
+ *     new MortonianConnectionPool(connectionConfig, new CircuitBreakingConnectionCreator(new MortonianConnectionCreator()), poolConfig);
+ */
+public class CircuitBreakingConnectionCreator implements ConnectionCreator {
+
+    private static Logger _log = Logger.getLogger(CircuitBreakingConnectionCreator.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_INITIAL_BACKOFF_IN_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_IN_MILLIS = 30000;
+
+    public enum State {
+        /** connects are passed through */
+        CLOSED,
+        /** connects fail fast until the backoff has passed */
+        OPEN,
+        /** one caller is trying to connect, and everyone else fails fast until it's done */
+        HALF_OPEN
+    }
+
+    private final ConnectionCreator _connectionCreator;
+    private final int _failureThreshold;
+    private final long _initialBackoffInMillis;
+    private final long _maxBackoffInMillis;
+    private final AtomicReference<State> _state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger _consecutiveFailures = new AtomicInteger();
+    private volatile long _backoffInMillis;
+    private volatile long _timeStampProbeAllowed;
+    private final LongAdder _timesOpened = new LongAdder();
+    private final LongAdder _timesClosed = new LongAdder();
+    private final LongAdder _fastFailures = new LongAdder();
+
+    public CircuitBreakingConnectionCreator(ConnectionCreator connectionCreator) {
+        this(connectionCreator, DEFAULT_FAILURE_THRESHOLD, DEFAULT_INITIAL_BACKOFF_IN_MILLIS, DEFAULT_MAX_BACKOFF_IN_MILLIS);
+    }
+
+    /**
+     * @param connectionCreator what actually connects
+     * @param failureThreshold how many connects in a row have to fail before the circuit opens
+     * @param initialBackoffInMillis how long the circuit stays open before the first try
+     * @param maxBackoffInMillis the longest it'll ever stay open between tries
+     */
+    public CircuitBreakingConnectionCreator(ConnectionCreator connectionCreator, int failureThreshold, long initialBackoffInMillis,
+            long maxBackoffInMillis) {
+        _connectionCreator = connectionCreator;
+        _failureThreshold = failureThreshold;
+        _initialBackoffInMillis = initialBackoffInMillis;
+        _maxBackoffInMillis = maxBackoffInMillis;
+        _backoffInMillis = initialBackoffInMillis;
+    }
+
+    @Override
+    public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+        boolean probing = false;
+        State state = _state.get();
+        if (State.OPEN == state && System.currentTimeMillis() >= _timeStampProbeAllowed) {
+            probing = _state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        }
+        if (State.CLOSED != state && !probing) {
+            _fastFailures.increment();
+            throw new SQLTransientConnectionException("Not connecting: the last "+_consecutiveFailures.get()+" connects failed, so the circuit is "
+                    +state+" for up to another "+Math.max(0, _timeStampProbeAllowed - System.currentTimeMillis())+"ms");
+        }
+        Connection connection;
+        boolean connected = false;
+        try {
+            connection = _connectionCreator.createConnection(connectionConfig);
+            connected = true;
+        } finally {
+            // whatever went wrong, Errors included, or a probe that failed would leave the circuit half open, failing everybody fast for good
+            if (!connected) {
+                onFailure(probing);
+            }
+        }
+        onSuccess();
+        return connection;
+    }
+
+    private void onSuccess() {
+        _consecutiveFailures.set(0);
+        _backoffInMillis = _initialBackoffInMillis;
+        // a connect that started before the circuit opened counts too: the database is back either way
+        State state = _state.getAndSet(State.CLOSED);
+        if (State.CLOSED != state) {
+            _timesClosed.increment();
+            _log.info("Connected again, so closing the circuit");
+        }
+    }
+
+    private void onFailure(boolean probing) {
+        int consecutiveFailures = _consecutiveFailures.incrementAndGet();
+        if (probing) {
+            _backoffInMillis = Math.min(_backoffInMillis * 2, _maxBackoffInMillis);
+            _timeStampProbeAllowed = System.currentTimeMillis() + _backoffInMillis;
+            _state.set(State.OPEN);
+            _log.warn("Still can't connect after "+consecutiveFailures+" tries.  Trying again in "+_backoffInMillis+"ms");
+        } else if (consecutiveFailures >= _failureThreshold) {
+            // set before opening, so that nobody sees the circuit open with a stale time to try again
+            _timeStampProbeAllowed = System.currentTimeMillis() + _backoffInMillis;
+            if (_state.compareAndSet(State.CLOSED, State.OPEN)) {
+                _timesOpened.increment();
+                _log.warn("Opening the circuit after "+consecutiveFailures+" connects failed in a row.  Trying again in "+_backoffInMillis+"ms");
+            }
+        }
+    }
+
+    public State getState() {
+        return _state.get();
+    }
+
+    public int getNumberOfConsecutiveFailures() {
+        return _consecutiveFailures.get();
+    }
+
+    /**
+     * @return how many times the circuit has opened after too many connects failed in a row
+     */
+    public long getNumberOfTimesOpened() {
+        return _timesOpened.sum();
+    }
+
+    /**
+     * @return how many times the circuit has closed again after a successful connect
+     */
+    public long getNumberOfTimesClosed() {
+        return _timesClosed.sum();
+    }
+
+    /**
+     * @return how many connects were refused without trying, while the circuit was open
+     */
+    public long getNumberOfFastFailures() {
+        return _fastFailures.sum();
+    }
+}
@@ -0,0 +1,72 @@
+package com.opower.connectionpool.pool;
+
+import com.opower.connectionpool.PoolSizingPolicy;
+import com.opower.connectionpool.PoolSizingSample;
+
+/**
+ * Sizes the pool for the demand it has seen lately.  It keeps a moving average of how many connections are leased, and a peak that slowly decays,
+ * and aims to have enough connections for whichever is higher, plus some headroom.  More headroom still if borrowers have been having to wait.
+ * Whatever isn't leased of that is kept idle.
+ *
+ * It grows straight away, so that the pool gets ahead of a rising load.  It only shrinks once demand has stayed lower for a while, and then a
+ * quarter at a time, so a short lull doesn't close connections that'll be needed again a minute later.
+ */
+public class AdaptivePoolSizingPolicy implements PoolSizingPolicy {
+
+    public static final long DEFAULT_SAMPLE_INTERVAL_IN_MILLIS = 1000;
+    public static final double DEFAULT_HEADROOM = 0.25;
+    public static final int DEFAULT_SHRINK_DELAY_IN_SAMPLES = 30;
+
+    private static final double SMOOTHING = 0.2;
+    private static final double PEAK_DECAY = 0.99;
+
+    private final long _sampleIntervalInMillis;
+    private final double _headroom;
+    private final int _shrinkDelayInSamples;
+    private double _averageLeased = -1;
+    private double _peakLeased;
+    private int _targetIdle;
+    private int _samplesWantingLess;
+
+    public AdaptivePoolSizingPolicy() {
+        this(DEFAULT_SAMPLE_INTERVAL_IN_MILLIS, DEFAULT_HEADROOM, DEFAULT_SHRINK_DELAY_IN_SAMPLES);
+    }
+
+    /**
+     * @param sampleIntervalInMillis how often to look at the pool
+     * @param headroom how much more than the expected demand to have ready, as a fraction of it: 0.25 means a quarter more
+     * @param shrinkDelayInSamples how many samples in a row have to want fewer idle connections before the pool is shrunk
+     */
+    public AdaptivePoolSizingPolicy(long sampleIntervalInMillis, double headroom, int shrinkDelayInSamples) {
+        _sampleIntervalInMillis = sampleIntervalInMillis;
+        _headroom = headroom;
+        _shrinkDelayInSamples = shrinkDelayInSamples;
+    }
+
+    @Override
+    public long getSampleIntervalInMillis() {
+        return _sampleIntervalInMillis;
+    }
+
+    @Override
+    public int getTargetIdleConnections(PoolSizingSample sample) {
+        int leased = sample.getNumberOfConnectionsLeased();
+        _averageLeased = _averageLeased < 0 ? leased : _averageLeased + SMOOTHING * (leased - _averageLeased);
+        _peakLeased = Math.max(leased, _peakLeased * PEAK_DECAY);
+        double waitRate = sample.getNumberOfAcquires() > 0 ? (double) sample.getNumberOfWaits() / sample.getNumberOfAcquires() : 0;
+
+        double expectedLeased = Math.max(_averageLeased, _peakLeased) * (1 + _headroom) * (1 + waitRate);
+        int wantedIdle = (int) Math.ceil(expectedLeased) - leased;
+        wantedIdle = Math.max(sample.getMinIdle(), Math.min(wantedIdle, sample.getMaxPoolSize() - leased));
+        wantedIdle = Math.max(0, wantedIdle);
+
+        if (wantedIdle >= _targetIdle) {
+            _targetIdle = wantedIdle;
+            _samplesWantingLess = 0;
+        } else if (++_samplesWantingLess >= _shrinkDelayInSamples) {
+            _targetIdle = Math.max(wantedIdle, _targetIdle - Math.max(1, _targetIdle / 4));
+            _samplesWantingLess = 0;
+        }
+        return _targetIdle;
+    }
+}
@@ -0,0 +1,128 @@
+package com.opower.connectionpool.pool;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link PreparedStatement} handed out by a {@link StatementCache}.  Calls go straight through to the statement the physical connection prepared, but
+ * closing it gives that statement back to the cache, rather than closing it on the database.
+ *
+ * If the connection it came from has already been released by the time it's closed, somebody else may be using the cache by then, so the statement is 
+ * closed for real instead.  So is one the caller changed the settings of, or told to {@link #closeOnCompletion()}, which the driver does by itself,
+ * and would otherwise do to a statement somebody else had borrowed from the cache by then.
+ */
+final class CachedPreparedStatement extends PooledPreparedStatement {
+
+    private static Logger _log = Logger.getLogger(CachedPreparedStatement.class);
+
+    private final StatementCache _statementCache;
+    private final StatementCache.StatementKey _key;
+    private boolean _executed;
+    private boolean _batched;
+    private boolean _settingsChanged;
+    private List<ResultSet> _resultSets;
+
+    public CachedPreparedStatement(StatementCache statementCache, StatementCache.StatementKey key, PreparedStatement rawStatement, PooledConnection pooledConnection) {
+        super(rawStatement, pooledConnection);
+        _statementCache = statementCache;
+        _key = key;
+    }
+
+    /**
+     * @return the raw statement, for something that runs it, and so may leave warnings on it
+     */
+    @Override
+    protected PreparedStatement getRawStatementForWork() throws SQLException {
+        PreparedStatement rawStatement = super.getRawStatementForWork();
+        _executed = true;
+        return rawStatement;
+    }
+
+    /**
+     * @return the raw statement, for something that changes how it runs, after which it can't be lent to anybody else as it was prepared
+     */
+    @Override
+    protected PreparedStatement getRawStatementToChange() throws SQLException {
+        PreparedStatement rawStatement = super.getRawStatementToChange();
+        _settingsChanged = true;
+        return rawStatement;
+    }
+
+    /**
+     * Remembers a result set the caller got from the raw statement, so that it can be closed before the statement goes back to the cache
+     */
+    @Override
+    protected ResultSet handOut(ResultSet resultSet) {
+        if (null != resultSet) {
+            if (null == _resultSets) {
+                _resultSets = new ArrayList<ResultSet>(1);
+            }
+            _resultSets.add(resultSet);
+        }
+        return super.handOut(resultSet);
+    }
+
+    /**
+     * Closes whatever result sets the caller left open, and undoes whatever else it did that the next borrower of the statement would see.  A 
+     * statement whose settings were changed (max rows, fetch size, query timeout and the like), or that was told to close on completion, is closed 
+     * for real rather than given back, since putting all of that back would cost more than preparing it again.
+     */
+    @Override
+    protected void closeRawStatement(PreparedStatement rawStatement) throws SQLException {
+        closeResultSets();
+        if (getPooledConnection().isLeaseValid() && !_settingsChanged && resetForNextBorrower(rawStatement)) {
+            _statementCache.giveBack(_key, rawStatement);
+        } else {
+            rawStatement.close();
+        }
+    }
+
+    private void closeResultSets() {
+        if (null == _resultSets) {
+            return;
+        }
+        for (ResultSet resultSet : _resultSets) {
+            try {
+                resultSet.close();
+            } catch (SQLException e) {
+                _log.warn("Trouble closing a cached statement's result set: "+e,e);
+            }
+        }
+        _resultSets = null;
+    }
+
+    /**
+     * @return false if the statement couldn't be put back the way it was prepared
+     */
+    private boolean resetForNextBorrower(PreparedStatement rawStatement) {
+        try {
+            if (_batched) {
+                rawStatement.clearBatch();
+            }
+            if (_executed) {
+                rawStatement.clearWarnings();
+            }
+            return true;
+        } catch (SQLException e) {
+            _log.warn("Trouble resetting a cached statement, so closing it instead: "+e,e);
+            return false;
+        }
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        _batched = true;
+        super.addBatch();
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        _batched = true;
+        super.addBatch(sql);
+    }
+}
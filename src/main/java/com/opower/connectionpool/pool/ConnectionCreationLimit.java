@@ -0,0 +1,107 @@
+package com.opower.connectionpool.pool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many connections a {@link MortonianConnectionPool} makes at once, and how many it makes per second, so that a burst of demand on an
+ * empty pool doesn't send the database a burst of logins.  See {@link com.opower.connectionpool.PoolConfig#getMaxConcurrentConnects()} and
+ * {@link com.opower.connectionpool.PoolConfig#getMaxConnectsPerSecond()}.
+ *
+ * The per second limit is a token bucket that holds a second's worth of connects.  Rather than a count of tokens, it keeps the time at which the
+ * bucket will be full again, which every connect pushes back by one token's worth, so that taking a token is a single compare-and-set.
+ */
+final class ConnectionCreationLimit {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int _maxConcurrentConnects;
+    private final long _nanosPerConnect;
+    private final AtomicInteger _numberOfConnectsInFlight = new AtomicInteger();
+    private final AtomicLong _timeStampBucketFullInNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param maxConcurrentConnects zero or less for no limit
+     * @param maxConnectsPerSecond zero or less for no limit
+     */
+    public ConnectionCreationLimit(int maxConcurrentConnects, int maxConnectsPerSecond) {
+        _maxConcurrentConnects = maxConcurrentConnects;
+        _nanosPerConnect = maxConnectsPerSecond > 0 ? NANOS_PER_SECOND / maxConnectsPerSecond : 0;
+    }
+
+    /**
+     * @return true if a connect may start now.  Whoever starts one must call {@link #finished()} once it has connected or failed, or
+     *         {@link #cancel()} if it never got to try.
+     */
+    public boolean tryStart() {
+        if (_maxConcurrentConnects > 0 && !tryStartInFlight()) {
+            return false;
+        }
+        if (_nanosPerConnect > 0 && !tryTakeToken()) {
+            if (_maxConcurrentConnects > 0) {
+                _numberOfConnectsInFlight.decrementAndGet();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public void finished() {
+        if (_maxConcurrentConnects > 0) {
+            _numberOfConnectsInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Like {@link #finished()}, but gives back the token too, since no connect was tried.
+     */
+    public void cancel() {
+        finished();
+        if (_nanosPerConnect > 0) {
+            _timeStampBucketFullInNanos.addAndGet(-_nanosPerConnect);
+        }
+    }
+
+    /**
+     * @return how long until a token can be taken, or zero if one can be taken now
+     */
+    public long getNanosUntilNextToken() {
+        if (_nanosPerConnect <= 0) {
+            return 0;
+        }
+        long nanosUntilBucketFull = _timeStampBucketFullInNanos.get() - System.nanoTime();
+        return Math.max(0, nanosUntilBucketFull + _nanosPerConnect - NANOS_PER_SECOND);
+    }
+
+    public int getNumberOfConnectsInFlight() {
+        return _numberOfConnectsInFlight.get();
+    }
+
+    private boolean tryStartInFlight() {
+        while (true) {
+            int numberOfConnectsInFlight = _numberOfConnectsInFlight.get();
+            if (numberOfConnectsInFlight >= _maxConcurrentConnects) {
+                return false;
+            }
+            if (_numberOfConnectsInFlight.compareAndSet(numberOfConnectsInFlight, numberOfConnectsInFlight + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean tryTakeToken() {
+        while (true) {
+            long now = System.nanoTime();
+            long timeStampBucketFull = _timeStampBucketFullInNanos.get();
+            // a bucket that filled up a while ago is no fuller than full
+            long newTimeStampBucketFull = (timeStampBucketFull - now > 0 ? timeStampBucketFull : now) + _nanosPerConnect;
+            if (newTimeStampBucketFull - now > NANOS_PER_SECOND) {
+                return false;
+            }
+            if (_timeStampBucketFullInNanos.compareAndSet(timeStampBucketFull, newTimeStampBucketFull)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.opower.connectionpool.pool;
+
+import java.sql.Connection;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * One physical connection in a {@link MortonianConnectionPool}, and where it stands in the pool.  Kept small, since there's one per connection for as long
+ * as the pool lives: the state and lease stamp are plain volatile fields updated through field updaters, timestamps are primitive, and the uuid is only made
+ * if somebody asks for it.
+ *
+ * A thread only gets to use an entry after it has claimed it with a compare-and-set on its state.  Each lease on the entry gets a new stamp, and a
+ * {@link PooledConnection} is only valid for as long as the entry's stamp is still the one it was leased with.
+ */
+class ConnectionPoolEntry {
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_LEASED = 1;
+    private static final int STATE_RETIRING = 2;
+    private static final int STATE_CLOSED = 3;
+
+    private static final AtomicIntegerFieldUpdater<ConnectionPoolEntry> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(ConnectionPoolEntry.class, "_state");
+    private static final AtomicLongFieldUpdater<ConnectionPoolEntry> LEASE_STAMP_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(ConnectionPoolEntry.class, "_leaseStamp");
+    private static final AtomicReferenceFieldUpdater<ConnectionPoolEntry, String> CONNECTION_UUID_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ConnectionPoolEntry.class, String.class, "_connectionUuid");
+
+    private volatile int _state = STATE_LEASED;
+    private volatile long _leaseStamp;
+    private volatile int _slot = -1;
+    private volatile int _stripeIndex;
+    private volatile String _connectionUuid;
+    private volatile Connection _rawConnection = null;
+    private volatile StatementCache _statementCache;
+    private volatile PooledConnection _currentLease;
+    private final SessionState _sessionState = new SessionState();
+    private volatile long _timeStampCreated;
+    private volatile long _timeStampLeased;
+    private volatile long _timeStampLastUsed;
+    private volatile int _evictionGeneration;
+    private volatile float _maxAgeJitter;
+
+    public String getConnectionUuid() {
+        String connectionUuid = _connectionUuid;
+        if (null == connectionUuid) {
+            CONNECTION_UUID_UPDATER.compareAndSet(this, null, UUID.randomUUID().toString());
+            connectionUuid = _connectionUuid;
+        }
+        return connectionUuid;
+    }
+
+    public boolean isLeased() {
+        return _state == STATE_LEASED;
+    }
+
+    public boolean isIdle() {
+        return _state == STATE_IDLE;
+    }
+
+    /**
+     * @return true if the entry was idle, and is now leased by the calling thread
+     */
+    public boolean claim() {
+        return STATE_UPDATER.compareAndSet(this, STATE_IDLE, STATE_LEASED);
+    }
+
+    /**
+     * @return true if the entry was leased by the calling thread, and is now idle
+     */
+    public boolean makeIdle() {
+        return STATE_UPDATER.compareAndSet(this, STATE_LEASED, STATE_IDLE);
+    }
+
+    /**
+     * @return true if the entry was leased by the calling thread, which now has to close it
+     */
+    public boolean startRetiring() {
+        return STATE_UPDATER.compareAndSet(this, STATE_LEASED, STATE_RETIRING);
+    }
+
+    public void markClosed() {
+        _state = STATE_CLOSED;
+    }
+
+    /**
+     * Starts a new lease on the entry, which invalidates whatever lease was handed out before.
+     *
+     * @return the stamp of the new lease
+     */
+    public long startLease() {
+        return LEASE_STAMP_UPDATER.incrementAndGet(this);
+    }
+
+    /**
+     * @return true if the given lease was still current, and has now ended.  Only one caller can end any given lease.
+     */
+    public boolean endLease(long leaseStamp) {
+        return LEASE_STAMP_UPDATER.compareAndSet(this, leaseStamp, leaseStamp + 1);
+    }
+
+    /**
+     * Undoes {@link #endLease(long)}, for a caller who ended the lease but then couldn't finish giving the entry back.
+     * 
+     * @return true if nobody has started a new lease since, and the given one is current again
+     */
+    public boolean resumeLease(long leaseStamp) {
+        return LEASE_STAMP_UPDATER.compareAndSet(this, leaseStamp + 1, leaseStamp);
+    }
+
+    public boolean isLeaseCurrent(long leaseStamp) {
+        return _leaseStamp == leaseStamp;
+    }
+
+    /**
+     * @return where this entry sits in the pool's entry table, or -1 if it isn't connected yet
+     */
+    public int getSlot() {
+        return _slot;
+    }
+
+    public void setSlot(int slot) {
+        _slot = slot;
+    }
+
+    /**
+     * @return the stripe whose count this entry was last added to, when it was made available
+     */
+    public int getStripeIndex() {
+        return _stripeIndex;
+    }
+
+    public void setStripeIndex(int stripeIndex) {
+        _stripeIndex = stripeIndex;
+    }
+
+    public Connection getRawConnection() {
+        return _rawConnection;
+    }
+
+    public void setRawConnection(Connection rawConnection) {
+        _rawConnection = rawConnection;
+    }
+
+    /**
+     * @return the connection's cache of prepared statements, or null if the pool doesn't cache them
+     */
+    public StatementCache getStatementCache() {
+        return _statementCache;
+    }
+
+    public void setStatementCache(StatementCache statementCache) {
+        _statementCache = statementCache;
+    }
+
+    /**
+     * @return what the current borrower has changed about the connection's session, for the pool to put back when it's released
+     */
+    public SessionState getSessionState() {
+        return _sessionState;
+    }
+
+    /**
+     * @return the wrapper last handed out for this entry, whose lease may or may not still be valid
+     */
+    public PooledConnection getCurrentLease() {
+        return _currentLease;
+    }
+
+    public void setCurrentLease(PooledConnection currentLease) {
+        _currentLease = currentLease;
+    }
+
+    public void setTimeStampCreated(long timeStampCreated) {
+        this._timeStampCreated = timeStampCreated;
+    }
+
+    public long getTimeStampCreated() {
+        return _timeStampCreated;
+    }
+
+    public void setTimeStampLeased(long timeStampLeased) {
+        this._timeStampLeased = timeStampLeased;
+    }
+
+    /**
+     * @return when the entry was last leased, or 0 if it never has been
+     */
+    public long getTimeStampLeased() {
+        return _timeStampLeased;
+    }
+
+    /**
+     * @return when the connection was last known to work: when it was made, last released, or last validated
+     */
+    public long getTimeStampLastUsed() {
+        return _timeStampLastUsed;
+    }
+
+    public void setTimeStampLastUsed(long timeStampLastUsed) {
+        _timeStampLastUsed = timeStampLastUsed;
+    }
+
+    /**
+     * @return which of the pool's soft evictions had already happened when this entry was connected
+     */
+    public int getEvictionGeneration() {
+        return _evictionGeneration;
+    }
+
+    public void setEvictionGeneration(int evictionGeneration) {
+        _evictionGeneration = evictionGeneration;
+    }
+
+    /**
+     * @return between 0 and 1: how much of the most the pool will cut an age limit short by applies to this entry
+     */
+    public float getMaxAgeJitter() {
+        return _maxAgeJitter;
+    }
+
+    public void setMaxAgeJitter(float maxAgeJitter) {
+        _maxAgeJitter = maxAgeJitter;
+    }
+}
@@ -0,0 +1,364 @@
+package com.opower.connectionpool.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+import com.opower.connectionpool.ConnectionConfig;
+import com.opower.connectionpool.ConnectionCreator;
+import com.opower.connectionpool.PoolConfig;
+
+/**
+ * Connections to many databases, schemas or users (say, one per tenant), each with its own {@link ConnectionConfig}, under one cap on physical
+ * connections across all of them.  Each key gets a {@link MortonianConnectionPool} of its own, made the first time somebody asks for a connection
+ * with that key, and sized by the same {@link PoolConfig}.
+ *
+ * When the cap has been reached and a key has no idle connection to give, the least recently used idle connection of some other key is closed to
+ * make room.  If there's none, the borrower waits, and the first connection of another key to be released meanwhile is closed to make room in
+ * the same way, unless a borrower of that key is waiting for it.  The keys' pools share this pool's single housekeeper thread, rather than running
+ * one each, and a key's pool is shut down and dropped once it has had no connections for the given quiet period.  Ask for that key again, and it
+ * gets a fresh one.
+ *
+ * @param <K> what tells the tenants apart
+ */
+public class KeyedConnectionPool<K> {
+
+    private static Logger _log = Logger.getLogger(KeyedConnectionPool.class);
+
+    private static final int DROPPED = -1;
+
+    private Function<K, ConnectionConfig> _connectionConfigs;
+    private ConnectionCreator _connectionCreator;
+    private PoolConfig _poolConfig;
+    private SharedConnectionLimit _sharedLimit;
+    private long _quietPeriodInMillis;
+    private volatile boolean _shutdown;
+    private Map<K, KeyPool> _keyPools = new ConcurrentHashMap<K, KeyPool>();
+    private Map<String, KeyPool> _keyPoolsByUuid = new ConcurrentHashMap<String, KeyPool>();
+    private ScheduledThreadPoolExecutor _housekeeperExecutor;
+
+    /**
+     * @param connectionConfigs gives the {@link ConnectionConfig} for a key, the first time the key is asked for
+     * @param creator given a {@link ConnectionConfig}, connects to the database
+     * @param poolConfig how to run each key's pool.  {@link PoolConfig#getMaxPoolSize()} caps each key, and
+     *                   {@link PoolConfig#getHousekeepingIntervalInMillis()} is how often the keys' pools are housekept, and quiet ones dropped.
+     * @param maxTotalConnections the most physical connections there can be across all keys
+     * @param quietPeriodInMillis how long a key's pool must have had no connections before it's dropped
+     */
+    public KeyedConnectionPool(Function<K, ConnectionConfig> connectionConfigs, ConnectionCreator creator, PoolConfig poolConfig, int maxTotalConnections,
+            long quietPeriodInMillis) {
+        _connectionConfigs = connectionConfigs;
+        _connectionCreator = creator;
+        _poolConfig = poolConfig;
+        _sharedLimit = new SharedConnectionLimit(maxTotalConnections);
+        _quietPeriodInMillis = quietPeriodInMillis;
+        int housekeepingInterval = poolConfig.getHousekeepingIntervalInMillis();
+        if (housekeepingInterval > 0) {
+            _housekeeperExecutor = new ScheduledThreadPoolExecutor(1, new PoolThreadFactory("keyed", "housekeeper"));
+            _housekeeperExecutor.scheduleWithFixedDelay(this::houseKeep, housekeepingInterval, housekeepingInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Gets a connection for the given key, waiting up to {@link PoolConfig#getRetryAttempts()} times {@link PoolConfig#getRetryWaitTimeInMillis()}
+     * milliseconds for one, exactly as {@link #getConnection(Object, long, TimeUnit)} would.
+     */
+    public Connection getConnection(K key) throws SQLException {
+        long timeoutInMillis = (long) _poolConfig.getRetryAttempts() * _poolConfig.getRetryWaitTimeInMillis();
+        return getConnection(key, timeoutInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a connection for the given key.  If the key has none idle, and the cap on connections across all keys has been reached, another key's
+     * least recently used idle connection is closed to make room for a new one.
+     *
+     * @return a connection, or null if none could be had before the timeout ran out
+     */
+    public Connection getConnection(K key, long timeout, TimeUnit unit) throws SQLException {
+        if (_shutdown) {
+            throw new RuntimeException("Can't grant new connections ... we're shut down!");
+        }
+        KeyPool keyPool = enterKeyPool(key);
+        try {
+            MortonianConnectionPool pool = keyPool.getOrMakePool();
+            // just a look, rather than a borrow, so that we neither jump ahead of this key's waiters nor count a miss as a timeout
+            if (0 == pool.getNumberOfConnectionsAvailable() && _sharedLimit.isReached() && pool.getNumberOfConnections() < pool.getMaxPoolSize()) {
+                _sharedLimit.evictLeastRecentlyUsedIdleConnection(pool);
+            }
+            return pool.getConnection(timeout, unit);
+        } finally {
+            keyPool.exit();
+        }
+    }
+
+    /**
+     * @return the key's pool, made now if there wasn't one, with the calling thread counted as using it, so that it won't be dropped meanwhile
+     */
+    private KeyPool enterKeyPool(K key) {
+        while (true) {
+            // only the holder goes in the map, so nobody connects to anything while holding up the map
+            KeyPool keyPool = _keyPools.computeIfAbsent(key, KeyPool::new);
+            if (keyPool.enter()) {
+                return keyPool;
+            }
+            // it's being dropped right now, so it'll be gone from the map (or back in business) in a moment
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Makes the key's pool, warming it up if the {@link PoolConfig} says to.  Only ever called once per {@link KeyPool} that gets a pool, by
+     * whichever borrower gets there first, so no other pool is ever made, and connected, only to be thrown away.
+     */
+    private MortonianConnectionPool makePool(KeyPool keyPool) {
+        MortonianConnectionPool pool = new MortonianConnectionPool(_connectionConfigs.apply(keyPool.getKey()), _connectionCreator, _poolConfig, null,
+                _sharedLimit, false);
+        _keyPoolsByUuid.put(pool.getPoolUuid(), keyPool);
+        _sharedLimit.addPool(pool);
+        return pool;
+    }
+
+    /**
+     * Gives the connection back to whichever key's pool it came from.  Throws an exception if it came from none of them.
+     */
+    public void releaseConnection(Connection connection) throws SQLException {
+        if (null == connection) {
+            return;
+        }
+        String connectionPoolUuid = ((PooledConnectionInfo) connection).getConnectionPoolUuid();
+        KeyPool keyPool = _keyPoolsByUuid.get(connectionPoolUuid);
+        if (null == keyPool) {
+            _log.error("Cannot release connection from another pool.  The connection's pool uuid was "+connectionPoolUuid);
+            throw new RuntimeException("Cannot release connection from another pool.  The connection's pool uuid was "+connectionPoolUuid);
+        }
+        keyPool.getPool().releaseConnection(connection);
+    }
+
+    /**
+     * Runs on the housekeeper thread every {@link PoolConfig#getHousekeepingIntervalInMillis()}: housekeeps each key's pool, then drops those that
+     * have had no connections for the quiet period.  A pool is only dropped once nobody is in the middle of borrowing from it, and it's checked
+     * once more for connections after that, in case somebody borrowed one just before.
+     */
+    private void houseKeep() {
+        try {
+            long currentTimeMillis = System.currentTimeMillis();
+            for (Map.Entry<K, KeyPool> keyPoolEntry : _keyPools.entrySet()) {
+                KeyPool keyPool = keyPoolEntry.getValue();
+                MortonianConnectionPool pool = keyPool.getPool();
+                if (null != pool) {
+                    pool.houseKeep();
+                }
+                if (null != pool && pool.getNumberOfConnections() > 0) {
+                    keyPool.setTimeStampLastBusy(currentTimeMillis);
+                    continue;
+                }
+                if (currentTimeMillis - keyPool.getTimeStampLastBusy() < _quietPeriodInMillis || !keyPool.drop()) {
+                    continue;
+                }
+                // nobody can be making it now, so if it hasn't been made, it never will be
+                pool = keyPool.getPool();
+                if (null != pool && pool.getNumberOfConnections() > 0) {
+                    keyPool.undrop();
+                    continue;
+                }
+                _keyPools.remove(keyPoolEntry.getKey(), keyPool);
+                if (null != pool) {
+                    _keyPoolsByUuid.remove(pool.getPoolUuid());
+                    _sharedLimit.removePool(pool);
+                    shutdownQuietly(pool);
+                }
+                if (_log.isDebugEnabled()) {
+                    _log.debug("Dropped the pool for key "+keyPoolEntry.getKey()+", which had been quiet for "+_quietPeriodInMillis+"ms");
+                }
+            }
+        } catch (RuntimeException e) {
+            // don't let it stop the next run from being scheduled
+            _log.error("Trouble housekeeping the keyed pool: "+e,e);
+        }
+    }
+
+    /**
+     * @return how many keys have a pool right now
+     */
+    public int getNumberOfKeys() {
+        return _keyPools.size();
+    }
+
+    /**
+     * @return the physical connections across all keys, including any being made right now
+     */
+    public int getNumberOfConnections() {
+        return _sharedLimit.getNumberOfConnections();
+    }
+
+    public int getMaxTotalConnections() {
+        return _sharedLimit.getMaxConnections();
+    }
+
+    /**
+     * @return the key's pool, for its statistics, or null if it hasn't got one right now
+     */
+    public MortonianConnectionPool getPool(K key) {
+        KeyPool keyPool = _keyPools.get(key);
+        return null != keyPool ? keyPool.getPool() : null;
+    }
+
+    public boolean isShutdown() {
+        return _shutdown;
+    }
+
+    /**
+     * Shuts down every key's pool.  Carries on through the rest if one of them has trouble, SQLException or otherwise,
+     * and throws the first trouble at the end, with any later ones suppressed by it.
+     */
+    public void shutdown() throws SQLException {
+        _shutdown = true;
+        if (null != _housekeeperExecutor) {
+            _housekeeperExecutor.shutdownNow();
+        }
+        Exception firstException = null;
+        for (KeyPool keyPool : _keyPools.values()) {
+            MortonianConnectionPool pool = keyPool.shutdownPool();
+            if (null == pool) {
+                continue;
+            }
+            try {
+                pool.shutdown();
+            } catch (SQLException | RuntimeException e) {
+                if (null == firstException) {
+                    firstException = e;
+                } else {
+                    firstException.addSuppressed(e);
+                }
+            }
+        }
+        if (firstException instanceof SQLException) {
+            throw (SQLException) firstException;
+        }
+        if (null != firstException) {
+            throw (RuntimeException) firstException;
+        }
+    }
+
+    private void shutdownQuietly(MortonianConnectionPool pool) {
+        try {
+            pool.shutdown();
+        } catch (SQLException | RuntimeException e) {
+            _log.error("Trouble shutting down pool "+pool.getPoolUuid()+": "+e,e);
+        }
+    }
+
+    /**
+     * One key's pool, made by the first borrower to need it, along with how many borrowers are in the middle of getting a connection from it, or 
+     * {@link #DROPPED} while the housekeeper is dropping it.
+     */
+    private class KeyPool {
+
+        private final K _key;
+        private volatile MortonianConnectionPool _pool;
+        private boolean _shutdown;
+        // not a monitor, so that a virtual thread making the pool doesn't pin its carrier while it connects
+        private final Lock _lock = new ReentrantLock();
+        private final AtomicInteger _numberOfBorrowers = new AtomicInteger();
+        private volatile long _timeStampLastBusy = System.currentTimeMillis();
+
+        public KeyPool(K key) {
+            _key = key;
+        }
+
+        public K getKey() {
+            return _key;
+        }
+
+        /**
+         * @return the pool, or null if nobody has needed it yet
+         */
+        public MortonianConnectionPool getPool() {
+            return _pool;
+        }
+
+        /**
+         * Only for a borrower who has {@link #enter()}ed.  Other borrowers of the same key wait while the pool is made and warmed up, but nobody
+         * else does.
+         */
+        public MortonianConnectionPool getOrMakePool() {
+            MortonianConnectionPool pool = _pool;
+            if (null != pool) {
+                return pool;
+            }
+            _lock.lock();
+            try {
+                if (_shutdown) {
+                    throw new RuntimeException("Can't grant new connections ... we're shut down!");
+                }
+                if (null == _pool) {
+                    _pool = makePool(this);
+                }
+                return _pool;
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         * @return the pool for {@link KeyedConnectionPool#shutdown()} to shut down, if it was made.  None will be made after this.
+         */
+        public MortonianConnectionPool shutdownPool() {
+            _lock.lock();
+            try {
+                _shutdown = true;
+                return _pool;
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         * @return false if the pool is being dropped, and can't be borrowed from
+         */
+        public boolean enter() {
+            while (true) {
+                int numberOfBorrowers = _numberOfBorrowers.get();
+                if (DROPPED == numberOfBorrowers) {
+                    return false;
+                }
+                if (_numberOfBorrowers.compareAndSet(numberOfBorrowers, numberOfBorrowers + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        public void exit() {
+            _timeStampLastBusy = System.currentTimeMillis();
+            _numberOfBorrowers.decrementAndGet();
+        }
+
+        /**
+         * @return true if nobody was borrowing, and now nobody can
+         */
+        public boolean drop() {
+            return _numberOfBorrowers.compareAndSet(0, DROPPED);
+        }
+
+        public void undrop() {
+            _numberOfBorrowers.set(0);
+        }
+
+        public long getTimeStampLastBusy() {
+            return _timeStampLastBusy;
+        }
+
+        public void setTimeStampLastBusy(long timeStampLastBusy) {
+            _timeStampLastBusy = timeStampLastBusy;
+        }
+    }
+}
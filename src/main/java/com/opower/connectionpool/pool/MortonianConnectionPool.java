@@ -1,42 +1,157 @@
 package com.opower.connectionpool.pool;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 
+import com.opower.connectionpool.AsyncConnectionPool;
 import com.opower.connectionpool.ConnectionCreator;
 import com.opower.connectionpool.ConnectionConfig;
 import com.opower.connectionpool.ConnectionPool;
 import com.opower.connectionpool.PoolConfig;
+import com.opower.connectionpool.PoolSizingPolicy;
+import com.opower.connectionpool.PoolSizingSample;
+import com.opower.connectionpool.ReleasePolicy;
+import com.opower.connectionpool.connection.CircuitBreakingConnectionCreator;
+import com.opower.connectionpool.pool.metrics.PoolMetrics;
 
 /**
  * An implementation of com.opower.connectionpool.ConnectionPool.
  * This class uses a {@link ConnectionConfig}, {@link  ConnectionCreator}, and a {@link PoolConfig} 
  * together to achieve the defined connection pooling behavior. 
  *
+ * Borrowing and releasing an already-created connection takes no pool-wide lock.  Every {@link ConnectionPoolEntry} carries an atomic
+ * state (idle, leased, retiring, or closed), and a thread only gets to use an entry after it has claimed it with a compare-and-set.
+ * The number of physical connections is bounded by reserving a slot against {@link PoolConfig#getMaxPoolSize()} with a compare-and-set as well.
+ * Idle entries can be split across several stripes (see {@link PoolConfig#getNumberOfStripes()}), so that borrowers on different cores 
+ * mostly claim from different queues.
+ *
+ * Nothing in the pool holds a monitor: waiting borrowers are parked with {@link LockSupport}, and startup and shutdown are guarded by a 
+ * {@link ReentrantLock}.  So the pool is safe to use from virtual threads, which would otherwise pin their carrier thread for as long as they 
+ * sat in a synchronized block (or waited on a database round trip inside one).
+ *
+ * Nor does any database round trip happen while the pool's state is being coordinated.  A released connection is committed by the releasing thread 
+ * while it still holds the lease, before anybody else can see it.  A retired connection is taken out of the pool first, and then closed on one of 
+ * the pool's closer threads, so a close that hangs on a dead socket only ever holds up a closer thread.  Shutdown only holds its lock long enough 
+ * to mark the pool shut down, and commits and closes what's left after letting go.
+ *
+ * The statistics getters don't take any lock or walk the entry table either: the counts are kept up to date as entries change state, in per-stripe 
+ * counters for idle connections and {@link LongAdder}s for the rest, so that health checks can poll them as often as they like.
+ *
+ * Given a {@link PoolSizingPolicy}, the pool keeps as many idle connections ready as the policy asks for, as demand changes, on top of the fixed 
+ * sizes in its {@link PoolConfig}.  The housekeeper thread samples the pool for the policy, and the filler thread makes the connections.
+ *
+ * With {@link PoolConfig#getValidateOnBorrow()} on, a borrower checks an idle connection before taking it, unless it was used within the last
+ * {@link PoolConfig#getValidationBypassWindowInMillis()}, and quietly moves on to another (or a new one) if it's broken.  Connections in steady use
+ * never pay for the check.  A borrower blocked in {@link #getConnection(long, TimeUnit)} runs that check on its own thread, even for a connection some 
+ * other thread claimed and handed to it while it waited.  A connection for {@link #getConnectionAsync(long, TimeUnit)} is checked on one of the pool's 
+ * connector threads, just as a new one would be made there, so that neither the asking thread nor a releasing one ever waits on the check.
+ *
+ * The housekeeper thread also watches leased connections: it logs one held longer than {@link PoolConfig#getLeakDetectionThresholdInMillis()}, with 
+ * the stack of whoever borrowed it, and takes back one held longer than {@link PoolConfig#getAbandonedLeaseTimeoutInMillis()}.
+ *
+ * With {@link PoolConfig#getRegisterMBean()} set, the pool registers itself as a {@link MortonianConnectionPoolMXBean}, which shows those same counts, 
+ * and lets an operator resize the pool, change its idle and age limits, and evict its connections while it runs.
+ *
  */
-public class MortonianConnectionPool implements ConnectionPool {
+public class MortonianConnectionPool implements AsyncConnectionPool, MortonianConnectionPoolMXBean {
 
     private static Logger _log = Logger.getLogger(MortonianConnectionPool.class);
 
+    /**
+     * The most connections one pool can hold, and so the highest {@link PoolConfig#getMaxPoolSize()} it'll take, at construction or from
+     * {@link #setMaxPoolSize(int)}.  A {@link KeyedConnectionPool} can hold this many per key.
+     */
+    public static final int MAX_POOL_SIZE = SlotTable.MAX_CAPACITY;
+
+    private static final int NUMBER_OF_CLOSER_THREADS = 2;
+    private static final double MAX_AGE_JITTER = 0.05;
+
     private ConnectionConfig _connectionConfig;
     private ConnectionCreator _connectionCreator;
-    private boolean _shutdown = true;
+    // the same creator, if it's a circuit breaker, so that the MBean can show what it's doing
+    private CircuitBreakingConnectionCreator _circuitBreaker;
+    private volatile boolean _shutdown = true;
+    // _shutdown is also set while the constructor warms the pool up, so this is what says that shutdown() has actually been called
+    private volatile boolean _shutdownStarted;
     private PoolConfig _poolConfig;
-    private Map<String, ConnectionPoolEntry> _connectionEntries = new ConcurrentHashMap<String, ConnectionPoolEntry>();
-    private Queue<String> _unleasedConnections  = new ConcurrentLinkedQueue<String>();
+    private PoolSizingPolicy _sizingPolicy;
+    private SlotTable _slotTable;
+    private Stripe[] _stripes;
+    private ThreadLocal<ConnectionPoolEntry> _lastReleasedConnectionEntry;
+    private Queue<ConnectionWaiter> _waiters = new ConcurrentLinkedQueue<ConnectionWaiter>();
+    private LongAdder _numberOfWaiters = new LongAdder();
+    private AtomicInteger _numberOfConnections = new AtomicInteger();
+    private LongAdder _numberOfConnectionsPending = new LongAdder();
+    private LongAdder _numberOfConnectionsLeased = new LongAdder();
     private String _poolGuid = UUID.randomUUID().toString();
+    private ExecutorService _connectionExecutor = Executors.newCachedThreadPool(new PoolThreadFactory(_poolGuid, "connector"));
+    private ScheduledThreadPoolExecutor _timeoutExecutor = new ScheduledThreadPoolExecutor(1, new PoolThreadFactory(_poolGuid, "timeout"));
+    private ThreadPoolExecutor _fillerExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new PoolThreadFactory(_poolGuid, "filler"));
+    private ScheduledThreadPoolExecutor _housekeeperExecutor = new ScheduledThreadPoolExecutor(1, new PoolThreadFactory(_poolGuid, "housekeeper"));
+    private ThreadPoolExecutor _closerExecutor = new ThreadPoolExecutor(NUMBER_OF_CLOSER_THREADS, NUMBER_OF_CLOSER_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new PoolThreadFactory(_poolGuid, "closer"));
+    private AtomicBoolean _fillScheduled = new AtomicBoolean();
+    private AtomicBoolean _throttledDispatchScheduled = new AtomicBoolean();
+    private Lock _lifecycleLock = new ReentrantLock();
+    private WarmUp _warmUp;
+    private LongAdder _statementCacheHits = new LongAdder();
+    private LongAdder _statementCacheMisses = new LongAdder();
+    private LongAdder _statementCacheEvictions = new LongAdder();
+    private PoolMetrics _metrics = new PoolMetrics();
+    private volatile int _maxPoolSize;
+    private volatile int _minIdle;
+    private volatile int _targetIdle;
+    private LongAdder _numberOfAcquires = new LongAdder();
+    private LongAdder _numberOfWaits = new LongAdder();
+    private long _numberOfAcquiresAtLastSample;
+    private long _numberOfWaitsAtLastSample;
+    private volatile int _maxIdleTimeInMillis;
+    private volatile int _maxConnectionAgeInMillis;
+    private volatile int _evictionGeneration;
+    private boolean _validateOnBorrow;
+    private boolean _validateIdleConnections;
+    private int _validationBypassWindowInMillis;
+    private int _validationTimeoutInSeconds;
+    private String _validationQuery;
+    private int _leakDetectionThresholdInMillis;
+    private int _abandonedLeaseTimeoutInMillis;
+    private ReleasePolicy _releasePolicy;
+    private SharedConnectionLimit _sharedLimit;
+    private ConnectionCreationLimit _creationLimit;
+    private ObjectName _objectName;
     
     /**
      * @param connectionConfig specified the JDBC parameters specified how new connections to the databases should be made
@@ -45,372 +160,1952 @@ public class MortonianConnectionPool implements ConnectionPool {
      * @param poolConfig contains configurations specifying the behaviour of the pool itself.
      */
     public MortonianConnectionPool(ConnectionConfig connectionConfig, ConnectionCreator creator, PoolConfig poolConfig) {
+        this(connectionConfig, creator, poolConfig, null);
+    }
+
+    /**
+     * @param connectionConfig specified the JDBC parameters specified how new connections to the databases should be made
+     * @param creator given a {@link ConnectionConfig}, connects to the database.
+     * @param poolConfig contains configurations specifying the behaviour of the pool itself.
+     * @param sizingPolicy decides how many idle connections to keep ready as demand changes, within the bounds of the poolConfig.  Null to just go 
+     *                     by the poolConfig.  See {@link AdaptivePoolSizingPolicy}.
+     */
+    public MortonianConnectionPool(ConnectionConfig connectionConfig, ConnectionCreator creator, PoolConfig poolConfig, PoolSizingPolicy sizingPolicy) {
+        this(connectionConfig, creator, poolConfig, sizingPolicy, null, true);
+    }
+
+    /**
+     * For a pool that's one of many, as in a {@link KeyedConnectionPool}.
+     * 
+     * @param sharedLimit a cap on connections across all of the pools, on top of this pool's own, or null if there's none
+     * @param ownHousekeeper false if somebody else will call {@link #houseKeep()} for this pool, so that it doesn't need a housekeeper thread of its own
+     */
+    MortonianConnectionPool(ConnectionConfig connectionConfig, ConnectionCreator creator, PoolConfig poolConfig, PoolSizingPolicy sizingPolicy, 
+            SharedConnectionLimit sharedLimit, boolean ownHousekeeper) {
         _connectionConfig = connectionConfig;
+        _sharedLimit = sharedLimit;
         _connectionCreator = creator;
+        if (creator instanceof CircuitBreakingConnectionCreator) {
+            _circuitBreaker = (CircuitBreakingConnectionCreator) creator;
+        }
         _poolConfig = poolConfig;
+        _sizingPolicy = sizingPolicy;
+        _maxPoolSize = poolConfig.getMaxPoolSize();
+        // a negative max has always just meant a pool that can't make connections, but one too big for the slot table is a mistake
+        if (_maxPoolSize > MAX_POOL_SIZE) {
+            checkMaxPoolSize(_maxPoolSize);
+        }
+        _minIdle = poolConfig.getMinIdle();
+        _maxIdleTimeInMillis = poolConfig.getMaxIdleTimeInMillis();
+        _maxConnectionAgeInMillis = poolConfig.getMaxConnectionAgeInMillis();
+        _validateOnBorrow = poolConfig.getValidateOnBorrow();
+        _validateIdleConnections = poolConfig.getValidateIdleConnections();
+        _validationBypassWindowInMillis = poolConfig.getValidationBypassWindowInMillis();
+        _validationTimeoutInSeconds = poolConfig.getValidationTimeoutInSeconds();
+        _validationQuery = poolConfig.getValidationQuery();
+        _leakDetectionThresholdInMillis = poolConfig.getLeakDetectionThresholdInMillis();
+        _abandonedLeaseTimeoutInMillis = poolConfig.getAbandonedLeaseTimeoutInMillis();
+        _releasePolicy = poolConfig.getReleasePolicy();
+        if (null == _releasePolicy) {
+            _releasePolicy = poolConfig.getAutoCommit() ? ReleasePolicy.COMMIT_ALWAYS : ReleasePolicy.ROLL_BACK_IF_OPEN;
+        }
+        if (poolConfig.getMaxConcurrentConnects() > 0 || poolConfig.getMaxConnectsPerSecond() > 0) {
+            _creationLimit = new ConnectionCreationLimit(poolConfig.getMaxConcurrentConnects(), poolConfig.getMaxConnectsPerSecond());
+        }
+        _slotTable = new SlotTable(Math.max(0, _maxPoolSize));
+        _stripes = new Stripe[Math.max(1, poolConfig.getNumberOfStripes())];
+        for (int i = 0; i < _stripes.length; i++) {
+            _stripes[i] = new Stripe(i);
+        }
+        if (poolConfig.getThreadAffinity()) {
+            _lastReleasedConnectionEntry = new ThreadLocal<ConnectionPoolEntry>();
+        }
+        _timeoutExecutor.setRemoveOnCancelPolicy(true);
+        _fillerExecutor.allowCoreThreadTimeOut(true);
+        _closerExecutor.allowCoreThreadTimeOut(true);
 
-        int initialPoolSize = poolConfig.getInitialPoolSize();
-
-        if (initialPoolSize > 0) {
-            synchronized (this) {
-                for (int i = 0; i < initialPoolSize; i++) {
-                    try {
-                        ConnectionPoolEntry newConnectionEntry = createNewConnectionEntry(false);
-                        // we'll initialize inside the synchronized block, 
-                        // because I don't want the constructor to complete till it's all initialized
-                        initializeConnection(newConnectionEntry);
-                    } catch (SQLException e) {
-                        _log.error("Error provisioning initial connections "+e,e);
-                        throw new RuntimeException(e);
-                    }
-                }
+        _warmUp = new WarmUp(poolConfig.getInitialPoolSize(), poolConfig.getWarmUpInBackground());
+
+        if (poolConfig.getWarmUpInBackground()) {
+            // usable straight away.  borrowers who show up before the warm-up is done just connect for themselves
+            _shutdown = false;
+            _warmUp.start(poolConfig.getWarmUpConcurrency(), false);
+        } else {
+            _lifecycleLock.lock();
+            try {
+                // I don't want the constructor to complete till it's all initialized
+                _warmUp.start(poolConfig.getWarmUpConcurrency(), true);
+                _warmUp.await();
+            } finally {
+                _lifecycleLock.unlock();
             }
+            _shutdown = false;
+        }
+        fillIfNecessary();
+        int housekeepingInterval = poolConfig.getHousekeepingIntervalInMillis();
+        if (housekeepingInterval > 0 && ownHousekeeper) {
+            _housekeeperExecutor.scheduleWithFixedDelay(this::houseKeep, housekeepingInterval, housekeepingInterval, TimeUnit.MILLISECONDS);
+        }
+        if (null != sizingPolicy) {
+            long sampleInterval = sizingPolicy.getSampleIntervalInMillis();
+            _housekeeperExecutor.scheduleWithFixedDelay(this::resize, sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+        }
+        if (poolConfig.getRegisterMBean()) {
+            registerMBean();
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            _objectName = new ObjectName("com.opower.connectionpool:type=MortonianConnectionPool,name="+_poolGuid);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, _objectName);
+        } catch (JMException e) {
+            // the pool works just as well without it
+            _log.warn("Trouble registering the pool's MBean: "+e,e);
+            _objectName = null;
+        }
+    }
+
+    private void unregisterMBean() {
+        if (null == _objectName) {
+            return;
         }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+        } catch (JMException e) {
+            _log.warn("Trouble unregistering the pool's MBean: "+e,e);
+        }
+    }
         
-        _shutdown = false;
+    /**
+     * @return a future that completes once the {@link PoolConfig#getInitialPoolSize()} connections have all been opened (or the pool is maxed out).
+     *         Unless {@link PoolConfig#getWarmUpInBackground()} is set, that has already happened by the time the constructor returns.  The future 
+     *         is cancelled if the pool is shut down first.
+     */
+    public CompletableFuture<Void> getReadyFuture() {
+        return _warmUp.getReadyFuture();
     }
 
     /**
-     * Gets a connection from the connection pool.  Returns null if the pool has reached its maximum size.  Ever Connection returned is actually a proxy of 
-     * the underlying {@link Connection} resource, which will allow the ConnectionPool to invalidate the lease and disconnect the proxy from the database,
+     * Gets a connection from the connection pool.  Returns null if the pool has reached its maximum size.  Ever Connection returned is actually a wrapper of 
+     * the underlying {@link Connection} resource, which will allow the ConnectionPool to invalidate the lease and disconnect the wrapper from the database,
      * without disconnecting the underlying {@link Connection} resource.  
      * 
-     * These proxies will also implement {@link PooledConnectionInfo}.
+     * These wrappers will also implement {@link PooledConnectionInfo}.
+     * 
+     * If every connection is leased, this waits up to {@link PoolConfig#getRetryAttempts()} times {@link PoolConfig#getRetryWaitTimeInMillis()}
+     * milliseconds for one to be released, exactly as {@link #getConnection(long, TimeUnit)} would.
      * 
      * @return a valid connection from the pool.
      */
     @Override
     public Connection getConnection() throws SQLException {
+        long timeoutInMillis = (long) _poolConfig.getRetryAttempts() * _poolConfig.getRetryWaitTimeInMillis();
+        return getConnection(timeoutInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a connection from the connection pool, waiting up to the given timeout for one if they are all leased.  Waiting borrowers are served
+     * in the order they started waiting: a released connection is handed straight to the longest-waiting borrower, rather than going back into the pool
+     * for whoever happens to ask next.
+     * 
+     * @param timeout how long to wait for a connection.  Zero (or less) means don't wait at all.
+     * @param unit the unit of the timeout
+     * @return a valid connection from the pool, or null if none could be had before the timeout ran out.
+     * @throws SQLException if a new connection had to be made and could not be, or if the thread was interrupted while waiting. 
+     */
+    public Connection getConnection(long timeout, TimeUnit unit) throws SQLException {
         if (_shutdown) {
             throw new RuntimeException("Can't grant new connections ... we're shut down!");
         }
-        ConnectionPoolEntry connectionEntry = getOrCreateInitializedConnectionEntry();
+        long startedAtNanos = System.nanoTime();
+        _numberOfAcquires.increment();
+        ConnectionPoolEntry connectionEntry = null;
+        long timeoutInNanos = unit.toNanos(timeout);
+        if (timeoutInNanos <= 0 || _waiters.isEmpty()) {
+            // don't jump the queue if somebody else is already waiting
+            connectionEntry = claimOrReserveConnectionEntry(true);
+        }
+        if (null == connectionEntry || null == connectionEntry.getRawConnection()) {
+            // nothing idle, so this borrower waits for a connection to be made or released
+            _numberOfWaits.increment();
+        }
+        if (null == connectionEntry && timeoutInNanos > 0) {
+            connectionEntry = awaitConnectionEntry(timeoutInNanos);
+        }
         if (null == connectionEntry) {
-            for (int i = 0; i < _poolConfig.getRetryAttempts(); i++) {
-                try {
-                    Thread.sleep(_poolConfig.getRetryWaitTimeInMillis()); // ugh.  this is so not the way to do this.
-                } catch (InterruptedException e) {
-                    _log.error("someone has awoken my slumber", e);
-                }  
-                connectionEntry = getOrCreateInitializedConnectionEntry();
-                if (null != connectionEntry) {
-                    break;
-                }
-            }
-            if (null == connectionEntry) {
-                return null;
-            }
+            _log.debug("All connections handed out.  Returning null, rather than providing connection.");
+            _metrics.countTimeout();
+            return null;
         }
-        acquireIncrementIfNecessary();
-        return buildConnectionProxy(connectionEntry); 
+        return provideConnection(connectionEntry, startedAtNanos);
     }
 
-    private ConnectionPoolEntry getOrCreateInitializedConnectionEntry() throws SQLException {
-        ConnectionPoolEntry connectionEntry = getOrCreateConnectionEntry();
-        
-        if (null != connectionEntry && null == connectionEntry.getRawConnection()) {
-            initializeConnection(connectionEntry);
+    /**
+     * Gets a connection only if one can be had without waiting, and without jumping ahead of anybody already waiting, for a caller such as 
+     * {@link RoutingConnectionPool} that has somewhere else to go if not.  So unlike {@link #getConnection(long, TimeUnit)} with a zero timeout, 
+     * a miss isn't counted as an acquire or a timeout.
+     * 
+     * @return a connection, or null if none was idle and there was no room to make one
+     * @throws SQLException if a new connection had to be made and could not be
+     */
+    Connection tryGetConnection() throws SQLException {
+        if (_shutdown) {
+            throw new RuntimeException("Can't grant new connections ... we're shut down!");
         }
-        return connectionEntry;
+        long startedAtNanos = System.nanoTime();
+        ConnectionPoolEntry connectionEntry = _waiters.isEmpty() ? claimOrReserveConnectionEntry(true) : null;
+        if (null == connectionEntry) {
+            return null;
+        }
+        _numberOfAcquires.increment();
+        if (null == connectionEntry.getRawConnection()) {
+            _numberOfWaits.increment();
+        }
+        return provideConnection(connectionEntry, startedAtNanos);
     }
 
-    private synchronized ConnectionPoolEntry getOrCreateConnectionEntry() {
-        ConnectionPoolEntry connectionEntry = null;
-        if (!_unleasedConnections.isEmpty()) {
-            _log.debug("providing pre-created connection from pool");
-            String unleasedConnectionUuid = _unleasedConnections.remove();
-            connectionEntry = _connectionEntries.get(unleasedConnectionUuid);
-            boolean wasRetired = retireIfTooOld(connectionEntry);
-            if (wasRetired) {
-                return getOrCreateConnectionEntry();
-            } else {
-                connectionEntry.setLeased(true);
-                connectionEntry.setTimeStampLeased(System.currentTimeMillis());
-            }
-        } else if (_connectionEntries.size() < _poolConfig.getMaxPoolSize()) {
+    /**
+     * Connects the entry the calling thread has claimed, if it's new, tops up the pool, and leases the entry to the calling thread.
+     */
+    private Connection provideConnection(ConnectionPoolEntry connectionEntry, long startedAtNanos) throws SQLException {
+        if (null == connectionEntry.getRawConnection()) {
             _log.debug("pool too small.  providing newly created connection from pool");
-            // DO NOT initialize the connection here, because it's slow and we're in a synchronized block.
-            // initialize outside of the block
-            connectionEntry = createNewConnectionEntry(true);
-        } else {
-            // Or block, or throw exception, or ....
-            _log.debug("All connections handed out.  Returning null, rather than providing connection.");
+            initializeConnection(connectionEntry);
         }
-        return connectionEntry;
-    }
-
-    private synchronized ConnectionPoolEntry createNewConnectionEntry(boolean leased) {
-        ConnectionPoolEntry connectionEntry = new ConnectionPoolEntry();
-        connectionEntry.setTimeStampCreated(System.currentTimeMillis());
-        _connectionEntries.put(connectionEntry.getConnectionUuid(), connectionEntry);
-        connectionEntry.setLeased(leased);
-        if (!leased) {
-            _unleasedConnections.add(connectionEntry.getConnectionUuid());
+        if (isFillerEnabled()) {
+            fillIfNecessary();
         } else {
-            connectionEntry.setTimeStampLeased(System.currentTimeMillis());
+            acquireIncrementIfNecessary();
         }
-        return connectionEntry;
+        _metrics.recordAcquireWaitTime(System.nanoTime() - startedAtNanos);
+        return leaseConnection(connectionEntry, captureLeaseOrigin()); 
     }
 
-    private void initializeConnection(ConnectionPoolEntry connectionEntry) throws SQLException {
-        if (null != connectionEntry && null == connectionEntry.getRawConnection()) {
-            connectionEntry.setRawConnection(_connectionCreator.createConnection(_connectionConfig));
-        }
+    /**
+     * Asks for a connection without blocking, waiting up to {@link PoolConfig#getRetryAttempts()} times {@link PoolConfig#getRetryWaitTimeInMillis()}
+     * milliseconds for one, exactly as {@link #getConnectionAsync(long, TimeUnit)} would.
+     */
+    @Override
+    public CompletableFuture<Connection> getConnectionAsync() {
+        long timeoutInMillis = (long) _poolConfig.getRetryAttempts() * _poolConfig.getRetryWaitTimeInMillis();
+        return getConnectionAsync(timeoutInMillis, TimeUnit.MILLISECONDS);
     }
 
-    private void acquireIncrementIfNecessary() throws SQLException {
-        List<ConnectionPoolEntry> newEntries = new ArrayList<ConnectionPoolEntry>();
-        if (_unleasedConnections.size() == 0) {
-            while (shouldMoreBeProactivelyAcquired()) {
-                // DO NOT initialize the connection here, because it's slow and we're in a synchronized block.
-                // initialize outside of the block
-                ConnectionPoolEntry createNewConnectionEntry = createNewConnectionEntry(false);
-                newEntries.add(createNewConnectionEntry);
+    /**
+     * Asks for a connection without blocking.  Waiting for a connection doesn't tie up any thread: the returned future waits in the same line as 
+     * borrowers blocked in {@link #getConnection(long, TimeUnit)}, and is completed by whichever thread releases a connection to it.  New physical 
+     * connections are made, and idle ones checked if {@link PoolConfig#getValidateOnBorrow()} says to, on the pool's own connector threads, never 
+     * on the calling thread.
+     * 
+     * Cancelling the future gives up its place in line.  Note that dependent stages that aren't *Async will run on the thread that completed the future,
+     * which may well be some other borrower's thread in the middle of {@link #releaseConnection(Connection)}.
+     * 
+     * @param timeout how long to wait for a connection.  Zero (or less) means don't wait at all.
+     * @param unit the unit of the timeout
+     * @return a future that completes with a connection, or completes exceptionally with an {@link SQLTimeoutException} if none could be had before
+     *         the timeout ran out, or with an {@link SQLException} if a new connection had to be made and could not be.
+     */
+    @Override
+    public CompletableFuture<Connection> getConnectionAsync(long timeout, TimeUnit unit) {
+        if (_shutdown) {
+            throw new RuntimeException("Can't grant new connections ... we're shut down!");
+        }
+        CompletableFuture<Connection> future = new CompletableFuture<Connection>();
+        final AsyncConnectionWaiter waiter = new AsyncConnectionWaiter(future);
+        _numberOfAcquires.increment();
+        long timeoutInNanos = unit.toNanos(timeout);
+        if (timeoutInNanos <= 0 || _waiters.isEmpty()) {
+            // not checked here, since the check is a round trip, which the connector thread that completes the future makes instead
+            ConnectionPoolEntry connectionEntry = claimOrReserveConnectionEntry(false);
+            if (null != connectionEntry) {
+                if (null == connectionEntry.getRawConnection()) {
+                    _numberOfWaits.increment();
+                }
+                waiter.handOver(connectionEntry, true);
+                return future;
             }
         }
-        for (ConnectionPoolEntry newEntry : newEntries) {
-            initializeConnection(newEntry);
+        _numberOfWaits.increment();
+        if (timeoutInNanos <= 0) {
+            _metrics.countTimeout();
+            future.completeExceptionally(new SQLTimeoutException("All connections handed out"));
+            return future;
         }
-    }
-    
-    private synchronized boolean shouldMoreBeProactivelyAcquired() {
-        boolean shouldMoreBeProactivelyAcquired = (_connectionEntries.size() < _poolConfig.getMaxPoolSize()) && (_unleasedConnections.size() < _poolConfig.getAcquireIncrement());
-        _log.debug("testing if we should proactively acquire connections.  Number created is "+_connectionEntries.size()
-                +", max pool size is "+_poolConfig.getMaxPoolSize()
-                +", connections available is "+_unleasedConnections.size()
-                +", and acquire increment is "+_poolConfig.getAcquireIncrement()
-                +" answer is "+shouldMoreBeProactivelyAcquired);
-        return shouldMoreBeProactivelyAcquired;
-    }
-
-    private boolean retireIfTooOld(ConnectionPoolEntry connectionEntry) {
-        boolean wasRetired = false;
-        long currentTimeMillis = System.currentTimeMillis();
-        
-        Long timeStampCreated = connectionEntry.getTimeStampCreated();
-        Long timeStampLeased = connectionEntry.getTimeStampLeased();
-        
-        long connectionAge = currentTimeMillis - timeStampCreated;
-        long connectionIdleTime = null != timeStampLeased ? currentTimeMillis - timeStampLeased : connectionAge;
-        
-        int maxConnectionAge = _poolConfig.getMaxConnectionAgeInMillis();
-        int maxIdleTime = _poolConfig.getMaxIdleTimeInMillis();
-        
-        if ((maxConnectionAge > 0 && connectionAge >= maxConnectionAge) || (maxIdleTime > 0 && connectionIdleTime >= maxIdleTime)) {
-            if (connectionEntry.isLeased()) {
-                try {
-                    releaseConnection(buildConnectionProxy(connectionEntry));
-                } catch (SQLException e) {
-                    _log.error("Trouble releasing connection: "+e,e);
-                }
+        future.whenComplete((connection, failure) -> {
+            if (null != failure) {
+                // timed out or cancelled, so get out of line
+                removeWaiter(waiter);
             }
-            try {
-                connectionEntry.getRawConnection().close();
-            } catch (SQLException e) {
-                _log.error("Trouble closing connection: "+e,e);
+        });
+        final ScheduledFuture<?> timeoutTask = _timeoutExecutor.schedule(() -> {
+            if (future.completeExceptionally(new SQLTimeoutException("Timed out waiting for a connection"))) {
+                _metrics.countTimeout();
             }
-            _connectionEntries.remove(connectionEntry.getConnectionUuid());
-            wasRetired = true;
+        }, timeoutInNanos, TimeUnit.NANOSECONDS);
+        future.whenComplete((connection, failure) -> timeoutTask.cancel(false));
+        getInLine(waiter);
+        return future;
+    }
+
+    /**
+     * Stamps the lease on an entry the calling thread has claimed, and wraps it up for the borrower.
+     * 
+     * @param leaseOrigin from {@link #captureLeaseOrigin()}, on the borrower's own thread
+     */
+    private Connection leaseConnection(ConnectionPoolEntry connectionEntry, Throwable leaseOrigin) {
+        connectionEntry.setTimeStampLeased(System.currentTimeMillis());
+        PooledConnection pooledConnection = new PooledConnection(_poolGuid, connectionEntry, leaseOrigin);
+        connectionEntry.setCurrentLease(pooledConnection);
+        return pooledConnection;
+    }
+
+    /**
+     * @return the calling borrower's stack, to log if it never releases its connection, or null unless {@link PoolConfig#getLeakDetectionThresholdInMillis()} 
+     *         or {@link PoolConfig#getAbandonedLeaseTimeoutInMillis()} is set, so that nobody else pays for filling in a stack trace
+     */
+    private Throwable captureLeaseOrigin() {
+        if (_leakDetectionThresholdInMillis <= 0 && _abandonedLeaseTimeoutInMillis <= 0) {
+            return null;
         }
-        return wasRetired;
+        return new Throwable("Connection leased by thread "+Thread.currentThread().getName());
     }
 
     /**
-     *  Release the passed Connection.  Throws an exception if the connection did not come from this pool     *  
+     * Claims an idle entry, or reserves a slot for a new one if the pool has room for it.  Neither path takes a lock:
+     * idle entries are claimed by a compare-and-set on their state, and new entries by reserving a slot with {@link #reserveConnectionSlot()}.
+     * 
+     * @param validate false to leave checking an idle entry, if {@link PoolConfig#getValidateOnBorrow()} calls for it, to whoever the entry is for
+     * @return a leased entry, which will not be connected yet if it's new, or null if the pool is maxed out.
      */
-    @Override
-    public void releaseConnection(Connection connection) throws SQLException {
-        if (connection != null) {
-            synchronized (this) { 
-                PooledConnectionInfo connectionInfo = (PooledConnectionInfo) connection;
-                
-                if (!_poolGuid.equals(connectionInfo.getConnectionPoolUuid())) {
-                    _log.error("Cannot release connection from another pool.  This pools uuid is "+_poolGuid+", but the connection's was "+connectionInfo.getConnectionPoolUuid());
-                    throw new RuntimeException("Cannot release connection from another pool.  This pools uuid is "+_poolGuid+", but the connection's was "+connectionInfo.getConnectionPoolUuid());
-                }
-                
-                if (_poolConfig.getAutoCommit()) {
-                    connection.commit();
+    private ConnectionPoolEntry claimOrReserveConnectionEntry(boolean validate) {
+        ConnectionPoolEntry connectionEntry = claimIdleConnectionEntry(validate);
+        if (null == connectionEntry && reserveConnectionSlot()) {
+            connectionEntry = new ConnectionPoolEntry();
+        }
+        return connectionEntry;
+    }
+
+    /**
+     * Claims the entry the calling thread last released, if {@link PoolConfig#getThreadAffinity()} is on and nobody else has claimed it since.
+     * Otherwise claims an idle entry from the calling thread's own stripe if it has one, or steals one from the other stripes.
+     */
+    private ConnectionPoolEntry claimIdleConnectionEntry(boolean validate) {
+        if (null != _lastReleasedConnectionEntry) {
+            ConnectionPoolEntry connectionEntry = _lastReleasedConnectionEntry.get();
+            // it's still sitting in its stripe's queue, but whoever polls it from there will find it already leased, and skip it
+            if (null != connectionEntry && claimIdleConnectionEntry(connectionEntry)) {
+                fillIfNecessary();
+                if (!retireIfExpired(connectionEntry, true) && !(validate && retireIfBrokenOnBorrow(connectionEntry))) {
+                    _log.debug("providing this thread's last released connection from pool");
+                    return connectionEntry;
                 }
-                
-                connectionInfo.invalidateLease();
-                
-                String connectionUuid = connectionInfo.getConnectionUuid();
-                ConnectionPoolEntry connectionPoolEntry = _connectionEntries.get(connectionUuid);
-                connectionPoolEntry.setLeased(false);
-                if (!_unleasedConnections.contains(connectionUuid)) {
-                    _unleasedConnections.add(connectionUuid);
+            }
+        }
+        int homeStripeIndex = getHomeStripeIndex();
+        for (int i = 0; i < _stripes.length; i++) {
+            Stripe stripe = _stripes[(homeStripeIndex + i) % _stripes.length];
+            ConnectionPoolEntry connectionEntry;
+            while (null != (connectionEntry = stripe.claimIdleConnectionEntry())) {
+                fillIfNecessary();
+                if (retireIfExpired(connectionEntry, true) || (validate && retireIfBrokenOnBorrow(connectionEntry))) {
+                    continue;
                 }
+                _log.debug("providing pre-created connection from pool");
+                return connectionEntry;
             }
         }
+        return null;
     }
 
     /**
-     * @return whether or not this Connection Pool is shutdown
+     * @return true if the entry was idle, and is now leased by the calling thread
      */
-    public boolean isShutdown() {
-        return _shutdown;
+    private boolean claimIdleConnectionEntry(ConnectionPoolEntry connectionEntry) {
+        if (!connectionEntry.claim()) {
+            return false;
+        }
+        _stripes[connectionEntry.getStripeIndex()].connectionClaimed();
+        _numberOfConnectionsLeased.increment();
+        return true;
     }
-    
+
     /**
-     * Shuts down the connection pool by releasing all leased connections, and then preventing any new connections from getting leased.
-     * 
-     * @throws SQLException if there are problems releasing leased connections
+     * @return the stripe the calling thread borrows from first, and releases to.  A thread that borrows and releases over and over keeps 
+     *         coming back to the same stripe, so it mostly stays out of the way of threads homed on other stripes.
      */
-    public synchronized void shutdown() throws SQLException {
-        if (!isShutdown()) {
-            for (ConnectionPoolEntry entry : _connectionEntries.values()) {
-                try {
-                    if (entry.isLeased()) {
-                        releaseConnection(buildConnectionProxy(entry));
-                    }
-                } catch (SQLException e) {
-                    throw e;
-                } finally {
-                    if (!entry.getRawConnection().isClosed()) {
-                        entry.getRawConnection().close();
-                    }
-                }
-            }
-            _shutdown = true;
+    private int getHomeStripeIndex() {
+        return (int) (Thread.currentThread().getId() % _stripes.length);
+    }
+
+    private int countConnectionsAvailable() {
+        int numberOfConnectionsAvailable = 0;
+        for (Stripe stripe : _stripes) {
+            numberOfConnectionsAvailable += stripe.getNumberOfConnectionsAvailable();
         }
+        return numberOfConnectionsAvailable;
     }
 
-    private Connection buildConnectionProxy(ConnectionPoolEntry poolEntry) {
-        return (Connection)Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[] { Connection.class, PooledConnectionInfo.class }, new ConnectionInvocationHandler(poolEntry));
+    /**
+     * Parks the calling thread at the back of the wait queue until a connection is handed to it, or the timeout runs out.  An idle connection that 
+     * was claimed for it by some other thread is checked here, on the calling thread, if {@link PoolConfig#getValidateOnBorrow()} calls for it.
+     */
+    private ConnectionPoolEntry awaitConnectionEntry(long timeoutInNanos) throws SQLException {
+        long deadline = System.nanoTime() + timeoutInNanos;
+        while (true) {
+            BlockingConnectionWaiter waiter = new BlockingConnectionWaiter();
+            getInLine(waiter);
+            ConnectionPoolEntry connectionEntry = awaitHandOver(waiter, deadline);
+            if (null == connectionEntry || !waiter.isUnchecked() || !retireIfBrokenOnBorrow(connectionEntry)) {
+                return connectionEntry;
+            }
+            // it was broken.  we were first in line, so we may as well have the next one, checked right here
+            connectionEntry = claimOrReserveConnectionEntry(true);
+            if (null != connectionEntry) {
+                return connectionEntry;
+            }
+        }
     }
 
-    private class ConnectionInvocationHandler implements InvocationHandler {
-        
-        private ConnectionPoolEntry _poolEntry;
-        private PooledConnectionInfo _pooledConnectionInfo;
+    private ConnectionPoolEntry awaitHandOver(BlockingConnectionWaiter waiter, long deadline) throws SQLException {
+        while (true) {
+            ConnectionPoolEntry connectionEntry = waiter.getConnectionEntry();
+            if (null != connectionEntry) {
+                return connectionEntry;
+            }
+            if (_shutdown || waiter.isCancelled()) {
+                if (waiter.cancel()) {
+                    removeWaiter(waiter);
+                }
+                giveBackIfHandedOver(waiter);
+                throw new RuntimeException("Can't grant new connections ... we're shut down!");
+            }
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                if (waiter.cancel()) {
+                    removeWaiter(waiter);
+                    return null;
+                }
+                // lost the race with a release, so the connection is ours after all
+                continue;
+            }
+            LockSupport.parkNanos(this, remainingNanos);
+            if (Thread.interrupted()) {
+                if (waiter.cancel()) {
+                    removeWaiter(waiter);
+                }
+                giveBackIfHandedOver(waiter);
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection");
+            }
+        }
+    }
 
-        protected ConnectionInvocationHandler(final ConnectionPoolEntry poolEntry) {
-            _poolEntry = poolEntry;
-            _pooledConnectionInfo = buildPooledConnectionInfo(poolEntry);
+    /**
+     * Puts the waiter at the back of the wait queue, then has a go at handing it something, in case a connection was released (or retired) 
+     * between its first look and getting in line, or went idle in some other pool with a shared cap already reached.
+     */
+    private void getInLine(ConnectionWaiter waiter) {
+        addWaiter(waiter);
+        dispatchToWaiters();
+        if (null != _sharedLimit) {
+            _sharedLimit.makeRoomForWaiters();
         }
-        
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            
-            if (PooledConnectionInfo.class.equals(method.getDeclaringClass())) {
-                return method.invoke(_pooledConnectionInfo, args);
-            } else if (_pooledConnectionInfo.isLeaseValid()) {
-                return method.invoke(_poolEntry.getRawConnection(), args);
-            } else {
-                String message = "Lease on Connection "+_pooledConnectionInfo.getConnectionUuid()+" no longer valid";
-                _log.error(message);
-                throw new RuntimeException(message);
-            }
-        } 
     }
 
-    private PooledConnectionInfo buildPooledConnectionInfo(final ConnectionPoolEntry poolEntry) {
-        return new PooledConnectionInfo() {
-            
-            private boolean _isLeaseValid = poolEntry.isLeased();
-            private Long _timeStampCreated = poolEntry.getTimeStampCreated();
-            private Long _timeStampLeased = poolEntry.getTimeStampLeased();
+    private void giveBackIfHandedOver(BlockingConnectionWaiter waiter) {
+        ConnectionPoolEntry connectionEntry = waiter.getConnectionEntry();
+        if (null != connectionEntry) {
+            makeAvailable(connectionEntry);
+        }
+    }
 
-            @Override
-            public String getConnectionPoolUuid() {
-                return _poolGuid;
+    /**
+     * Hands idle entries, or slots for new entries, to waiting borrowers until we run out of one or the other.  Anyone who adds a waiter, or
+     * makes an entry or slot available, calls this afterwards, so that a waiter can never miss a connection that showed up while it was getting in line.
+     * So does a {@link SharedConnectionLimit}, when another pool gives back a place under it.
+     */
+    void dispatchToWaiters() {
+        while (!_waiters.isEmpty()) {
+            // left for the waiter to check, since this may well be some other borrower's thread in the middle of releasing
+            ConnectionPoolEntry connectionEntry = claimOrReserveConnectionEntry(false);
+            if (null == connectionEntry) {
+                return;
             }
-
-            @Override
-            public String getConnectionUuid() {
-                return poolEntry.getConnectionUuid();
+            if (!handToWaiter(connectionEntry, null != connectionEntry.getRawConnection())) {
+                // everybody stopped waiting, so put it back.  loop around in case someone new got in line meanwhile.
+                makeAvailable(connectionEntry);
             }
+        }
+    }
 
-            @Override
-            public void invalidateLease() {
-                _isLeaseValid = false;
-            }
+    private void addWaiter(ConnectionWaiter waiter) {
+        // counted first, so the count never dips below zero
+        _numberOfWaiters.increment();
+        _waiters.add(waiter);
+    }
 
-            @Override
-            public boolean isLeaseValid() {
-                return _isLeaseValid;
-            }
+    private ConnectionWaiter pollWaiter() {
+        ConnectionWaiter waiter = _waiters.poll();
+        if (null != waiter) {
+            _numberOfWaiters.decrement();
+        }
+        return waiter;
+    }
 
-            @Override
-            public Long getTimeStampCreated() {
-                return _timeStampCreated;
-            }
+    private void removeWaiter(ConnectionWaiter waiter) {
+        if (_waiters.remove(waiter)) {
+            _numberOfWaiters.decrement();
+        }
+    }
 
-            @Override
-            public Long getTimeStampLeased() {
-                return _timeStampLeased;
+    /**
+     * @param unchecked true if the entry was claimed idle, without the check {@link PoolConfig#getValidateOnBorrow()} may call for
+     * @return true if the leased entry was handed over to the longest-waiting borrower, who now owns it.
+     */
+    private boolean handToWaiter(ConnectionPoolEntry connectionEntry, boolean unchecked) {
+        ConnectionWaiter waiter;
+        while (null != (waiter = pollWaiter())) {
+            if (waiter.handOver(connectionEntry, unchecked)) {
+                return true;
             }
-            
-        };
+        }
+        return false;
     }
-    
-    private class ConnectionPoolEntry {
 
-        private boolean _isLeased = true;
-        private String _connectionUuid = UUID.randomUUID().toString(); 
-        private Connection _rawConnection = null;
-        private Long _timeStampCreated = null;
-        private Long _timeStampLeased = null;
-        
-        public String getConnectionUuid() {
-            return _connectionUuid;
+    /**
+     * @return true if a slot for a new physical connection was reserved without violating {@link PoolConfig#getMaxPoolSize()}, or the 
+     *         {@link SharedConnectionLimit} if there is one, and {@link PoolConfig#getMaxConcurrentConnects()} and 
+     *         {@link PoolConfig#getMaxConnectsPerSecond()} allow a connect right now.  Whoever reserves a slot must either create a connection in it, 
+     *         or give the slot back.
+     */
+    private boolean reserveConnectionSlot() {
+        int maxPoolSize = _maxPoolSize;
+        if ((null != _sharedLimit || null != _creationLimit) && _numberOfConnections.get() >= maxPoolSize) {
+            return false;
         }
-
-        public boolean isLeased() {
-            return _isLeased;
+        if (null != _creationLimit && !_creationLimit.tryStart()) {
+            dispatchToWaitersWhenThrottleLifts();
+            return false;
         }
-        
-        public void setLeased(boolean leaseValid) {
-            _isLeased = leaseValid;
+        if (null != _sharedLimit && !_sharedLimit.tryReserve()) {
+            cancelConnect();
+            return false;
         }
-        
-        public Connection getRawConnection() {
-            return _rawConnection;
+        while (true) {
+            int numberOfConnections = _numberOfConnections.get();
+            if (numberOfConnections >= maxPoolSize) {
+                cancelConnect();
+                if (null != _sharedLimit) {
+                    _sharedLimit.release();
+                }
+                return false;
+            }
+            if (_numberOfConnections.compareAndSet(numberOfConnections, numberOfConnections + 1)) {
+                _numberOfConnectionsPending.increment();
+                return true;
+            }
         }
-        
-        public void setRawConnection(Connection rawConnection) {
-            _rawConnection = rawConnection;
+    }
+
+    /**
+     * Gives back a slot reserved with {@link #reserveConnectionSlot()} that never got a connection made in it.
+     */
+    private void releaseReservedConnectionSlot() {
+        _numberOfConnectionsPending.decrement();
+        if (null != _creationLimit) {
+            _creationLimit.finished();
         }
+        releaseConnectionSlot();
+    }
 
-        public void setTimeStampCreated(Long timeStampCreated) {
-            this._timeStampCreated = timeStampCreated;
+    /**
+     * Gives back the chance to connect that {@link #reserveConnectionSlot()} took, when it turned out there was no slot to connect in.
+     */
+    private void cancelConnect() {
+        if (null != _creationLimit) {
+            _creationLimit.cancel();
         }
+    }
 
-        public Long getTimeStampCreated() {
-            return _timeStampCreated;
+    /**
+     * When {@link PoolConfig#getMaxConnectsPerSecond()} held somebody back, nobody may release anything before it lets them connect, so the timeout 
+     * thread has another go at the waiters, and the filler, once it does.  Being held back by {@link PoolConfig#getMaxConcurrentConnects()} needs no 
+     * such thing, since every connect that finishes has a go at the waiters anyway.
+     */
+    private void dispatchToWaitersWhenThrottleLifts() {
+        long nanosUntilNextToken = _creationLimit.getNanosUntilNextToken();
+        if (nanosUntilNextToken <= 0 || !_throttledDispatchScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            _timeoutExecutor.schedule(() -> {
+                _throttledDispatchScheduled.set(false);
+                dispatchToWaiters();
+                fillIfNecessary();
+            }, nanosUntilNextToken, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // we're shutting down, so nobody's waiting any more
+            _throttledDispatchScheduled.set(false);
         }
+    }
 
-        public void setTimeStampLeased(Long timeStampLeased) {
-            this._timeStampLeased = timeStampLeased;
+    /**
+     * Frees up a slot, and lets the next waiter (if there is one) make a connection in it.
+     */
+    private void releaseConnectionSlot() {
+        _numberOfConnections.decrementAndGet();
+        if (null != _sharedLimit) {
+            _sharedLimit.release();
         }
+        dispatchToWaiters();
+    }
 
-        public Long getTimeStampLeased() {
-            return _timeStampLeased;
+    /**
+     * Connects a new entry in a slot that was already reserved with {@link #reserveConnectionSlot()}.  The entry stays leased by the calling thread,
+     * and is only visible to other threads once it has a raw connection.  If the connection can't be made, the reserved slot is given back, and if
+     * the pool was shut down while it was being made, it's closed again.
+     */
+    private void initializeConnection(ConnectionPoolEntry connectionEntry) throws SQLException {
+        long startedAtNanos = System.nanoTime();
+        try {
+            connectionEntry.setRawConnection(_connectionCreator.createConnection(_connectionConfig));
+        } catch (SQLException e) {
+            _metrics.countConnectFailure();
+            releaseReservedConnectionSlot();
+            throw e;
+        } catch (RuntimeException e) {
+            _metrics.countConnectFailure();
+            releaseReservedConnectionSlot();
+            throw e;
+        }
+        _metrics.recordConnectTime(System.nanoTime() - startedAtNanos);
+        _metrics.countCreation();
+        connectionEntry.setTimeStampCreated(System.currentTimeMillis());
+        connectionEntry.setTimeStampLastUsed(connectionEntry.getTimeStampCreated());
+        connectionEntry.setEvictionGeneration(_evictionGeneration);
+        connectionEntry.setMaxAgeJitter(ThreadLocalRandom.current().nextFloat());
+        int statementCacheSize = _poolConfig.getStatementCacheSize();
+        if (statementCacheSize > 0) {
+            connectionEntry.setStatementCache(new StatementCache(statementCacheSize, _statementCacheHits, _statementCacheMisses, _statementCacheEvictions));
+        }
+        occupySlot(connectionEntry);
+        _numberOfConnectionsPending.decrement();
+        _numberOfConnectionsLeased.increment();
+        if (null != _creationLimit) {
+            _creationLimit.finished();
+            // someone may have been waiting for their turn to connect, rather than for a connection
+            dispatchToWaiters();
+        }
+        if (_shutdownStarted) {
+            // shutdown may have swept past this slot before we got into it, in which case nobody else is going to close the connection.  Whichever 
+            // of us takes the entry out of its slot gives back its place, just as shutdown does.
+            closeAfterShutdown(connectionEntry);
+            throw new SQLException("Can't grant new connections ... we're shut down!");
         }
     }
-    
+
     /**
-     * @return the number of pre-built {@link Connection} resources that the pool has, ready to lease.  Note that {@link #getNumberOfConnectionsLeased()} +
-     * and {@link #getNumberOfConnectionsAvailable()} does not necessarily add up to the max size.  This is only the ready-to-go, pre-built connections.
+     * Closes an entry the calling thread has leased, once {@link #shutdown()} has started, giving back its place if shutdown hasn't already.
      */
-    public synchronized int getNumberOfConnectionsAvailable() {
-        // probably doesn't need to be synchronized, 
-        // since every method on ConcurrentLinkedQueue should be atomic
-        // but, better safe than sorry
-        return _unleasedConnections.size();
+    private void closeAfterShutdown(ConnectionPoolEntry connectionEntry) {
+        connectionEntry.markClosed();
+        if (_slotTable.compareAndSet(connectionEntry.getSlot(), connectionEntry, null)) {
+            _numberOfConnectionsLeased.decrement();
+            _numberOfConnections.decrementAndGet();
+            if (null != _sharedLimit) {
+                _sharedLimit.release();
+            }
+            closeQuietly(connectionEntry.getRawConnection(), false);
+        }
     }
-    
+
     /**
-     * @return the number of connections that the pool has currently leased out.
+     * Puts a newly connected entry into a free slot of the entry table.  There's always one to be had, since the entry's place in the pool
+     * was already reserved with {@link #reserveConnectionSlot()}, but one that's being freed up right now may not show up on the first pass.
      */
-    public synchronized int getNumberOfConnectionsLeased() {
-        int count = 0;
-        for (ConnectionPoolEntry entry : _connectionEntries.values()) {
-            if (entry.isLeased()) {
-                count++;
-            }   
+    private void occupySlot(ConnectionPoolEntry connectionEntry) {
+        while (true) {
+            for (int slot = 0; slot < _slotTable.getCapacity(); slot++) {
+                if (null == _slotTable.get(slot)) {
+                    connectionEntry.setSlot(slot);
+                    if (_slotTable.compareAndSet(slot, null, connectionEntry)) {
+                        return;
+                    }
+                }
+            }
         }
-        return count;
+    }
+
+    private ConnectionPoolEntry createInitializedConnectionEntry() throws SQLException {
+        ConnectionPoolEntry connectionEntry = new ConnectionPoolEntry();
+        initializeConnection(connectionEntry);
+        return connectionEntry;
+    }
+
+    /**
+     * Hands an entry (or a reserved slot) that the calling thread has leased back to the pool.  If anyone is waiting, the longest-waiting borrower gets it 
+     * directly, otherwise it goes into the pool for other threads to claim.
+     */
+    private void makeAvailable(ConnectionPoolEntry connectionEntry) {
+        if (null == connectionEntry.getRawConnection()) {
+            releaseReservedConnectionSlot();
+            return;
+        }
+        if (retireIfExpired(connectionEntry, false) || handToWaiter(connectionEntry, false)) {
+            return;
+        }
+        if (_stripes[getHomeStripeIndex()].makeAvailable(connectionEntry)) {
+            if (_shutdownStarted && claimIdleConnectionEntry(connectionEntry)) {
+                // shutdown may have swept past this slot while we still had the entry, so it's ours to close
+                closeAfterShutdown(connectionEntry);
+                return;
+            }
+            if (null != _lastReleasedConnectionEntry) {
+                _lastReleasedConnectionEntry.set(connectionEntry);
+            }
+            dispatchToWaiters();
+            if (null != _sharedLimit) {
+                // a borrower of some other pool may be waiting for a place that only closing an idle connection will free up
+                _sharedLimit.makeRoomForWaiters();
+            }
+        }
+    }
+
+    private void acquireIncrementIfNecessary() throws SQLException {
+        if (countConnectionsAvailable() > 0) {
+            return;
+        }
+        List<ConnectionPoolEntry> newEntries = new ArrayList<ConnectionPoolEntry>();
+        int numberToAcquire = _poolConfig.getAcquireIncrement();
+        if (_log.isDebugEnabled()) {
+            _log.debug("testing if we should proactively acquire connections.  Number created is "+_numberOfConnections.get()
+                    +", max pool size is "+_maxPoolSize
+                    +", connections available is "+countConnectionsAvailable()
+                    +", and acquire increment is "+numberToAcquire);
+        }
+        try {
+            for (int i = 0; i < numberToAcquire && reserveConnectionSlot(); i++) {
+                newEntries.add(createInitializedConnectionEntry());
+            }
+        } finally {
+            // publish them all at once, so that nobody else's borrow sneaks in and makes us think the pool needs even more
+            for (ConnectionPoolEntry newEntry : newEntries) {
+                makeAvailable(newEntry);
+            }
+        }
+    }
+
+    /**
+     * Does {@link #acquireIncrementIfNecessary()} on a connector thread, for callers who must not block.
+     */
+    private void acquireIncrementInBackgroundIfNecessary() {
+        if (isFillerEnabled()) {
+            fillIfNecessary();
+            return;
+        }
+        if (_poolConfig.getAcquireIncrement() <= 0 || countConnectionsAvailable() > 0) {
+            return;
+        }
+        try {
+            _connectionExecutor.execute(() -> {
+                try {
+                    acquireIncrementIfNecessary();
+                } catch (SQLException e) {
+                    _log.error("Trouble acquiring more connections: "+e,e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _log.debug("Not acquiring more connections, since we're shutting down");
+        }
+    }
+    
+    /**
+     * @return true if {@link PoolConfig#getMinIdle()} is set, or there's a {@link PoolSizingPolicy}, in which case the filler thread makes all the 
+     *         connections nobody has asked for yet, and borrowers only ever connect for themselves.
+     */
+    private boolean isFillerEnabled() {
+        return _minIdle > 0 || null != _sizingPolicy;
+    }
+
+    private boolean needsFilling() {
+        return countConnectionsAvailable() < getIdleTarget();
+    }
+
+    /**
+     * @return how many idle connections the pool is keeping ready: {@link PoolConfig#getMinIdle()}, or more if the {@link PoolSizingPolicy} says so
+     */
+    private int getIdleTarget() {
+        return Math.max(_minIdle, _targetIdle);
+    }
+
+    /**
+     * Runs on the housekeeper thread every {@link PoolSizingPolicy#getSampleIntervalInMillis()}: asks the sizing policy how many idle connections 
+     * to keep, then has the filler make more, or closes the least recently used idle ones, to get there.
+     */
+    private void resize() {
+        try {
+            long numberOfAcquires = _numberOfAcquires.sum();
+            long numberOfWaits = _numberOfWaits.sum();
+            PoolSizingSample sample = new PoolSizingSample(getNumberOfConnections(), getNumberOfConnectionsLeased(), countConnectionsAvailable(), 
+                    numberOfAcquires - _numberOfAcquiresAtLastSample, numberOfWaits - _numberOfWaitsAtLastSample, _minIdle, _maxPoolSize);
+            _numberOfAcquiresAtLastSample = numberOfAcquires;
+            _numberOfWaitsAtLastSample = numberOfWaits;
+            int targetIdle = Math.max(0, _sizingPolicy.getTargetIdleConnections(sample));
+            if (targetIdle != _targetIdle && _log.isDebugEnabled()) {
+                _log.debug("Sizing policy moved the idle target of pool "+_poolGuid+" from "+_targetIdle+" to "+targetIdle);
+            }
+            _targetIdle = targetIdle;
+            retireSurplusIdleConnections();
+            fillIfNecessary();
+        } catch (RuntimeException e) {
+            // don't let it stop the next run from being scheduled
+            _log.error("Trouble resizing the pool: "+e,e);
+        }
+    }
+
+    /**
+     * Closes idle connections, least recently leased first, until there are no more than {@link #getIdleTarget()} of them.
+     */
+    private void retireSurplusIdleConnections() {
+        int surplus = countConnectionsAvailable() - getIdleTarget();
+        if (surplus <= 0) {
+            return;
+        }
+        List<ConnectionPoolEntry> idleEntries = new ArrayList<ConnectionPoolEntry>();
+        for (int slot = 0; slot < _slotTable.getCapacity(); slot++) {
+            ConnectionPoolEntry connectionEntry = _slotTable.get(slot);
+            if (null != connectionEntry && connectionEntry.isIdle()) {
+                idleEntries.add(connectionEntry);
+            }
+        }
+        idleEntries.sort(Comparator.comparingLong(ConnectionPoolEntry::getTimeStampLeased));
+        for (ConnectionPoolEntry connectionEntry : idleEntries) {
+            if (surplus <= 0) {
+                return;
+            }
+            if (claimIdleConnectionEntry(connectionEntry) && connectionEntry.startRetiring()) {
+                retire(connectionEntry);
+                surplus--;
+            }
+        }
+    }
+
+    /**
+     * @return true if a borrower is waiting, and the pool has room for another connection if only a {@link SharedConnectionLimit} would give it a place
+     */
+    boolean hasWaitersWithRoom() {
+        return !_waiters.isEmpty() && _numberOfConnections.get() < _maxPoolSize;
+    }
+
+    /**
+     * @return when the least recently used idle connection was last used, or {@link Long#MAX_VALUE} if none are idle
+     */
+    long getLeastRecentlyUsedIdleTimeStamp() {
+        ConnectionPoolEntry connectionEntry = findLeastRecentlyUsedIdleEntry();
+        return null != connectionEntry ? connectionEntry.getTimeStampLastUsed() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Closes the least recently used idle connection, so that some other pool sharing a {@link SharedConnectionLimit} with this one can have its place.
+     * 
+     * @return true if there was one to close
+     */
+    boolean retireLeastRecentlyUsedIdleConnection() {
+        ConnectionPoolEntry connectionEntry = findLeastRecentlyUsedIdleEntry();
+        if (null != connectionEntry && claimIdleConnectionEntry(connectionEntry) && connectionEntry.startRetiring()) {
+            retire(connectionEntry);
+            return true;
+        }
+        return false;
+    }
+
+    private ConnectionPoolEntry findLeastRecentlyUsedIdleEntry() {
+        ConnectionPoolEntry leastRecentlyUsedEntry = null;
+        for (int slot = 0; slot < _slotTable.getCapacity(); slot++) {
+            ConnectionPoolEntry connectionEntry = _slotTable.get(slot);
+            if (null != connectionEntry && connectionEntry.isIdle() 
+                    && (null == leastRecentlyUsedEntry || connectionEntry.getTimeStampLastUsed() < leastRecentlyUsedEntry.getTimeStampLastUsed())) {
+                leastRecentlyUsedEntry = connectionEntry;
+            }
+        }
+        return leastRecentlyUsedEntry;
+    }
+
+    /**
+     * Wakes up the filler thread if there are fewer idle connections than {@link PoolConfig#getMinIdle()}.  Cheap enough to call after every borrow: 
+     * at most one fill is ever scheduled at a time.
+     */
+    private void fillIfNecessary() {
+        if (!_shutdown && needsFilling() && _fillScheduled.compareAndSet(false, true)) {
+            try {
+                _fillerExecutor.execute(this::fill);
+            } catch (RejectedExecutionException e) {
+                _fillScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Runs on the filler thread, making connections until there are {@link PoolConfig#getMinIdle()} idle ones (or the pool is maxed out).
+     * Gives up for now on the first failure, rather than hammering a database that isn't answering; the next borrow will wake it up again.
+     */
+    private void fill() {
+        try {
+            while (!_shutdown && needsFilling() && reserveConnectionSlot()) {
+                ConnectionPoolEntry connectionEntry;
+                try {
+                    connectionEntry = createInitializedConnectionEntry();
+                } catch (SQLException | RuntimeException e) {
+                    _log.error("Trouble filling the pool up to its minimum idle size: "+e,e);
+                    return;
+                }
+                if (_shutdown) {
+                    discard(connectionEntry);
+                    return;
+                }
+                makeAvailable(connectionEntry);
+            }
+        } finally {
+            _fillScheduled.set(false);
+        }
+        // a borrow may have slipped in after our last look, but before we said we were done
+        fillIfNecessary();
+    }
+
+    /**
+     * Closes an entry the calling thread has leased, rather than giving it back to the pool.
+     */
+    private void discard(ConnectionPoolEntry connectionEntry) {
+        if (connectionEntry.startRetiring()) {
+            retire(connectionEntry);
+        }
+    }
+
+    /**
+     * Retires an entry the calling thread has leased, if it has outlived {@link PoolConfig#getMaxConnectionAgeInMillis()} or
+     * {@link PoolConfig#getMaxIdleTimeInMillis()}, or was connected before the last {@link #softEvictConnections()}, or is one more than the pool 
+     * has room for since {@link #setMaxPoolSize(int)} made it smaller.
+     * 
+     * @param checkIdleTime false if the entry is being handed straight from one borrower to another, and so was never idle.
+     */
+    private boolean retireIfExpired(ConnectionPoolEntry connectionEntry, boolean checkIdleTime) {
+        if (isExpired(connectionEntry, checkIdleTime) && connectionEntry.startRetiring()) {
+            retire(connectionEntry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Just a look at the entry's timestamps, so it's cheap enough for every borrow.  Each entry's age limit is cut short by its own random share of 
+     * up to {@link #MAX_AGE_JITTER} of {@link PoolConfig#getMaxConnectionAgeInMillis()}, so that connections made together don't all expire together.
+     */
+    private boolean isExpired(ConnectionPoolEntry connectionEntry, boolean checkIdleTime) {
+        long currentTimeMillis = System.currentTimeMillis();
+        
+        long timeStampCreated = connectionEntry.getTimeStampCreated();
+        long timeStampLeased = connectionEntry.getTimeStampLeased();
+        
+        long connectionAge = currentTimeMillis - timeStampCreated;
+        long connectionIdleTime = 0 != timeStampLeased ? currentTimeMillis - timeStampLeased : connectionAge;
+        
+        int maxConnectionAge = _maxConnectionAgeInMillis;
+        int maxIdleTime = _maxIdleTimeInMillis;
+        long jitteredMaxConnectionAge = maxConnectionAge - (long) (maxConnectionAge * MAX_AGE_JITTER * connectionEntry.getMaxAgeJitter());
+        
+        return (maxConnectionAge > 0 && connectionAge >= jitteredMaxConnectionAge) || (checkIdleTime && maxIdleTime > 0 && connectionIdleTime >= maxIdleTime)
+                || connectionEntry.getEvictionGeneration() != _evictionGeneration || _numberOfConnections.get() > _maxPoolSize;
+    }
+
+    /**
+     * Retires an entry the calling thread has just claimed from the idle pool, if {@link PoolConfig#getValidateOnBorrow()} is on and the entry turns out
+     * to be broken.  The borrower then goes on to the next idle entry, or makes a new one in the slot this frees up, within the same call.
+     */
+    private boolean retireIfBrokenOnBorrow(ConnectionPoolEntry connectionEntry) {
+        return _validateOnBorrow && retireIfBroken(connectionEntry);
+    }
+
+    /**
+     * Retires an entry the calling thread has leased, if it hasn't been used in the last {@link PoolConfig#getValidationBypassWindowInMillis()}, and
+     * doesn't pass {@link #isValid(ConnectionPoolEntry)}.
+     */
+    private boolean retireIfBroken(ConnectionPoolEntry connectionEntry) {
+        if (!needsValidation(connectionEntry) || isValid(connectionEntry)) {
+            return false;
+        }
+        _log.warn("Connection "+connectionEntry.getConnectionUuid()+" of pool "+_poolGuid+" doesn't work anymore.  Closing it.");
+        discard(connectionEntry);
+        return true;
+    }
+
+    /**
+     * @return true if the entry hasn't been used in the last {@link PoolConfig#getValidationBypassWindowInMillis()}, so it may have broken since
+     */
+    private boolean needsValidation(ConnectionPoolEntry connectionEntry) {
+        return System.currentTimeMillis() - connectionEntry.getTimeStampLastUsed() >= _validationBypassWindowInMillis;
+    }
+
+    /**
+     * Checks an entry the calling thread has leased against the database, with {@link PoolConfig#getValidationQuery()} if there is one, or with
+     * {@link Connection#isValid(int)} otherwise.  Anything going wrong counts as the connection being broken.
+     */
+    private boolean isValid(ConnectionPoolEntry connectionEntry) {
+        long startedAtNanos = System.nanoTime();
+        Connection rawConnection = connectionEntry.getRawConnection();
+        boolean valid;
+        try {
+            if (null == _validationQuery) {
+                valid = rawConnection.isValid(_validationTimeoutInSeconds);
+            } else {
+                try (Statement statement = rawConnection.createStatement()) {
+                    statement.setQueryTimeout(_validationTimeoutInSeconds);
+                    statement.execute(_validationQuery);
+                }
+                valid = true;
+            }
+        } catch (SQLException | RuntimeException e) {
+            _log.debug("Connection "+connectionEntry.getConnectionUuid()+" failed validation: "+e,e);
+            valid = false;
+        }
+        _metrics.recordValidationTime(System.nanoTime() - startedAtNanos);
+        if (valid) {
+            connectionEntry.setTimeStampLastUsed(System.currentTimeMillis());
+        }
+        return valid;
+    }
+
+    /**
+     * Runs on the housekeeper thread every {@link PoolConfig#getHousekeepingIntervalInMillis()}, retiring idle entries that have expired, or that are
+     * broken if {@link PoolConfig#getValidateIdleConnections()} is on, so that borrowers seldom come across one.  It only claims entries that look
+     * expired, or are due a check, so it stays out of borrowers' way otherwise.  It also looks out for leases that have been held too long.
+     */
+    void houseKeep() {
+        try {
+            for (int slot = 0; slot < _slotTable.getCapacity() && !_shutdown; slot++) {
+                ConnectionPoolEntry connectionEntry = _slotTable.get(slot);
+                if (null != connectionEntry && connectionEntry.isLeased()) {
+                    checkForLeak(connectionEntry);
+                    continue;
+                }
+                if (null == connectionEntry || !connectionEntry.isIdle() 
+                        || !(isExpired(connectionEntry, true) || (_validateIdleConnections && needsValidation(connectionEntry))) 
+                        || !claimIdleConnectionEntry(connectionEntry)) {
+                    continue;
+                }
+                if (!retireIfExpired(connectionEntry, true) && !(_validateIdleConnections && retireIfBroken(connectionEntry))) {
+                    // it was borrowed and released again between our look and our claim, or it checked out fine, so it's good for a while yet
+                    makeAvailable(connectionEntry);
+                }
+            }
+            fillIfNecessary();
+        } catch (RuntimeException e) {
+            // don't let it stop the next run from being scheduled
+            _log.error("Trouble housekeeping the pool: "+e,e);
+        }
+    }
+
+    /**
+     * Logs the lease on a leased entry as a possible leak, once, if it has been held longer than {@link PoolConfig#getLeakDetectionThresholdInMillis()}.
+     * Takes the entry back from its borrower if it has been held longer than {@link PoolConfig#getAbandonedLeaseTimeoutInMillis()}: ending the borrower's
+     * lease first means that only one of us can ever get to give it back, even if the borrower releases it right now.
+     */
+    private void checkForLeak(ConnectionPoolEntry connectionEntry) {
+        int leakDetectionThreshold = _leakDetectionThresholdInMillis;
+        int abandonedLeaseTimeout = _abandonedLeaseTimeoutInMillis;
+        PooledConnection lease = connectionEntry.getCurrentLease();
+        if ((leakDetectionThreshold <= 0 && abandonedLeaseTimeout <= 0) || null == lease || !lease.isLeaseValid()) {
+            return;
+        }
+        long leasedForMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lease.getLeasedAtNanos());
+        if (leakDetectionThreshold > 0 && leasedForMillis >= leakDetectionThreshold && !lease.isReportedAsLeak()) {
+            lease.setReportedAsLeak(true);
+            _metrics.countLeak();
+            _log.warn("Connection "+connectionEntry.getConnectionUuid()+" of pool "+_poolGuid+" has been leased for "+leasedForMillis
+                    +"ms without being released.  It may have leaked.  It was leased here:", lease.getLeaseOrigin());
+        }
+        if (abandonedLeaseTimeout > 0 && leasedForMillis >= abandonedLeaseTimeout && lease.endLease()) {
+            if (!lease.isReportedAsLeak()) {
+                _metrics.countLeak();
+            }
+            _log.warn("Taking back connection "+connectionEntry.getConnectionUuid()+" of pool "+_poolGuid+", which was abandoned "+leasedForMillis
+                    +"ms after being leased here:", lease.getLeaseOrigin());
+            if (connectionEntry.startRetiring()) {
+                retire(connectionEntry, true);
+            }
+        }
+    }
+
+    private void retire(ConnectionPoolEntry connectionEntry) {
+        retire(connectionEntry, false);
+    }
+
+    /**
+     * Takes an entry that the calling thread has moved into the retiring state out of the pool, frees up its slot, and then has a closer thread 
+     * close it.  Until that close is done, the pool may have a few more physical connections open than {@link PoolConfig#getMaxPoolSize()}.
+     * 
+     * @param rollBack true if the connection was taken away from a borrower, who may have left a transaction open on it
+     */
+    private void retire(ConnectionPoolEntry connectionEntry, final boolean rollBack) {
+        _numberOfConnectionsLeased.decrement();
+        _metrics.countRetirement();
+        connectionEntry.markClosed();
+        _slotTable.compareAndSet(connectionEntry.getSlot(), connectionEntry, null);
+        releaseConnectionSlot();
+        fillIfNecessary();
+        final Connection rawConnection = connectionEntry.getRawConnection();
+        try {
+            _closerExecutor.execute(() -> closeQuietly(rawConnection, rollBack));
+        } catch (RejectedExecutionException e) {
+            // we're shutting down, so there's nobody left to hold up
+            closeQuietly(rawConnection, rollBack);
+        }
+    }
+
+    private void closeQuietly(Connection rawConnection, boolean rollBack) {
+        if (rollBack) {
+            try {
+                if (!rawConnection.getAutoCommit()) {
+                    rawConnection.rollback();
+                }
+            } catch (SQLException | RuntimeException e) {
+                _log.error("Trouble rolling back connection: "+e,e);
+            }
+        }
+        try {
+            rawConnection.close();
+        } catch (SQLException | RuntimeException e) {
+            _log.error("Trouble closing connection: "+e,e);
+        }
+    }
+
+    /**
+     * Commits the borrower's work on release if the {@link ReleasePolicy} says to.  Called once the borrower's lease has ended, by whoever ended it.
+     */
+    private void commitIfNecessary(ConnectionPoolEntry connectionEntry) throws SQLException {
+        SessionState sessionState = connectionEntry.getSessionState();
+        Connection rawConnection = connectionEntry.getRawConnection();
+        switch (_releasePolicy) {
+            case COMMIT_ALWAYS:
+                rawConnection.commit();
+                break;
+            case COMMIT_IF_OPEN:
+                if (!sessionState.isTransactionOpen(rawConnection)) {
+                    return;
+                }
+                rawConnection.commit();
+                break;
+            default:
+                // whatever's left open gets rolled back by resetSession()
+                return;
+        }
+        sessionState.committedOnRelease();
+    }
+
+    /**
+     * Rolls back the borrower's transaction if it may have left one open, and puts back whatever session properties it changed, once its lease has
+     * ended.  Only what the borrower actually touched costs a round trip.
+     * 
+     * @return false if that didn't work, and the connection is in no state to lend to anybody else
+     */
+    private boolean resetSession(ConnectionPoolEntry connectionEntry) {
+        try {
+            connectionEntry.getSessionState().reset(connectionEntry.getRawConnection());
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            _log.error("Trouble resetting connection "+connectionEntry.getConnectionUuid()+", so closing it rather than lending it out again: "+e,e);
+            return false;
+        }
+    }
+
+    /**
+     *  Release the passed Connection.  Throws an exception if the connection did not come from this pool     *  
+     *  
+     *  The lease ends first, so that once this has started, nobody else (the housekeeper taking back an abandoned lease, say) can touch the connection.
+     *  If the {@link PoolConfig#getReleasePolicy()} calls for a commit, it happens after that, on the calling thread, so a slow commit only holds up its 
+     *  own caller.  A commit that fails is the caller's to know about, so it's thrown back at them, with the lease theirs again.  Putting the connection 
+     *  back the way the pool lent it out happens on the calling thread too: an open transaction is rolled back, and any of auto-commit, transaction 
+     *  isolation, read-only, catalog, schema and network timeout that the caller changed is set back.
+     */
+    @Override
+    public void releaseConnection(Connection connection) throws SQLException {
+        if (connection != null) {
+            PooledConnectionInfo connectionInfo = (PooledConnectionInfo) connection;
+                
+            if (!_poolGuid.equals(connectionInfo.getConnectionPoolUuid())) {
+                _log.error("Cannot release connection from another pool.  This pools uuid is "+_poolGuid+", but the connection's was "+connectionInfo.getConnectionPoolUuid());
+                throw new RuntimeException("Cannot release connection from another pool.  This pools uuid is "+_poolGuid+", but the connection's was "+connectionInfo.getConnectionPoolUuid());
+            }
+                
+            PooledConnection pooledConnection = (PooledConnection) connection;
+            if (!pooledConnection.endLease()) {
+                // already released, or taken back, by whoever ended the lease, and it's theirs to give back
+                if (_log.isDebugEnabled()) {
+                    _log.debug("Connection "+connectionInfo.getConnectionUuid()+" was already released");
+                }
+                return;
+            }
+                
+            try {
+                commitIfNecessary(pooledConnection.getPoolEntry());
+            } catch (SQLException | RuntimeException e) {
+                // nobody else touches an entry whose lease they didn't end, so the lease is still there to resume
+                pooledConnection.resumeLease();
+                throw e;
+            }
+            boolean sessionReset = resetSession(pooledConnection.getPoolEntry());
+                
+            _metrics.recordLeaseTime(System.nanoTime() - pooledConnection.getLeasedAtNanos());
+            if (!sessionReset) {
+                discard(pooledConnection.getPoolEntry());
+                return;
+            }
+            pooledConnection.getPoolEntry().setTimeStampLastUsed(System.currentTimeMillis());
+
+            makeAvailable(pooledConnection.getPoolEntry());
+        }
+    }
+
+    /**
+     * @return whether or not this Connection Pool is shutdown
+     */
+    public boolean isShutdown() {
+        return _shutdown;
+    }
+    
+    /**
+     * Shuts down the connection pool by releasing all leased connections, and then preventing any new connections from getting leased.
+     * 
+     * @throws SQLException if there are problems releasing leased connections, once every connection has been closed all the same.  Any after 
+     *         the first are suppressed by it.
+     */
+    public void shutdown() throws SQLException {
+        _lifecycleLock.lock();
+        try {
+            if (isShutdown()) {
+                return;
+            }
+            _shutdown = true;
+            _shutdownStarted = true;
+            _warmUp.cancel();
+            ConnectionWaiter waiter;
+            while (null != (waiter = pollWaiter())) {
+                waiter.abort();
+            }
+            _connectionExecutor.shutdown();
+            _fillerExecutor.shutdownNow();
+            _housekeeperExecutor.shutdownNow();
+            _timeoutExecutor.shutdownNow();
+            // let the closer threads finish whatever they've been given, but no more
+            _closerExecutor.shutdown();
+            unregisterMBean();
+        } finally {
+            _lifecycleLock.unlock();
+        }
+        // nobody else gets past isShutdown() now, so the commits and closes can happen without holding anybody up.  Each entry is claimed before it's
+        // touched, just as anywhere else, and one that can't be is closed by whoever has it, once they see we're shut down.
+        Exception firstException = null;
+        for (int slot = 0; slot < _slotTable.getCapacity(); slot++) {
+            ConnectionPoolEntry entry = _slotTable.get(slot);
+            if (null == entry) {
+                continue;
+            }
+            try {
+                if (!claimIdleConnectionEntry(entry) && !takeBackLeaseOnShutdown(entry)) {
+                    continue;
+                }
+            } catch (SQLException | RuntimeException e) {
+                // the commit on release failed, but the lease is over all the same, and the connection ours to close
+                firstException = addException(firstException, e);
+            }
+            // give back its place, which matters to the other pools if it's under a SharedConnectionLimit
+            entry.markClosed();
+            if (_slotTable.compareAndSet(slot, entry, null)) {
+                _numberOfConnectionsLeased.decrement();
+                _numberOfConnections.decrementAndGet();
+                if (null != _sharedLimit) {
+                    _sharedLimit.release();
+                }
+            }
+            try {
+                if (!entry.getRawConnection().isClosed()) {
+                    entry.getRawConnection().close();
+                }
+            } catch (SQLException | RuntimeException e) {
+                firstException = addException(firstException, e);
+            }
+        }
+        if (firstException instanceof SQLException) {
+            throw (SQLException) firstException;
+        }
+        if (null != firstException) {
+            throw (RuntimeException) firstException;
+        }
+    }
+
+    /**
+     * Ends the lease on an entry that's still out, so that whoever holds it can't use it any more, and commits their work if the 
+     * {@link ReleasePolicy} says to, just as {@link #releaseConnection(Connection)} would have.  A commit that fails is thrown, but the lease 
+     * stays ended, and the entry the calling thread's to close.
+     * 
+     * @return true if the calling thread now has the entry to close, or false if somebody else is in the middle of giving it back (or of 
+     *         lending it out), and will close it themselves once they see the pool is shut down
+     */
+    private boolean takeBackLeaseOnShutdown(ConnectionPoolEntry entry) throws SQLException {
+        PooledConnection lease = entry.getCurrentLease();
+        if (!entry.isLeased() || null == lease || !lease.endLease()) {
+            return false;
+        }
+        commitIfNecessary(entry);
+        resetSession(entry);
+        return true;
+    }
+
+    private static Exception addException(Exception firstException, Exception e) {
+        if (null == firstException) {
+            return e;
+        }
+        firstException.addSuppressed(e);
+        return firstException;
+    }
+    
+    /**
+     * A borrower waiting in line for a connection.  Whoever has a connection to give hands it over with {@link #handOver(ConnectionPoolEntry, boolean)}, 
+     * which only works if the borrower hasn't given up (timed out, been interrupted or cancelled, or been aborted by shutdown) yet.
+     */
+    private interface ConnectionWaiter {
+
+        /**
+         * @param connectionEntry an entry leased by the calling thread.  It may not be connected yet, in which case the waiter makes the connection.
+         * @param unchecked true if the entry was claimed idle, in which case the waiter checks it if {@link PoolConfig#getValidateOnBorrow()} says to.
+         *                  Only ever called by the one thread that took the waiter out of line.
+         * @return true if the waiter took the entry, false if it has given up waiting, and the entry still belongs to the calling thread.
+         */
+        public boolean handOver(ConnectionPoolEntry connectionEntry, boolean unchecked);
+
+        public void abort();
+    }
+
+    /**
+     * A thread parked in {@link MortonianConnectionPool#getConnection(long, TimeUnit)}.
+     */
+    private static class BlockingConnectionWaiter implements ConnectionWaiter {
+
+        private static final Object CANCELLED = new Object();
+
+        private final Thread _thread = Thread.currentThread();
+        private final AtomicReference<Object> _handOff = new AtomicReference<Object>();
+        // written before the hand-off, which publishes it
+        private volatile boolean _unchecked;
+
+        @Override
+        public boolean handOver(ConnectionPoolEntry connectionEntry, boolean unchecked) {
+            _unchecked = unchecked;
+            if (_handOff.compareAndSet(null, connectionEntry)) {
+                LockSupport.unpark(_thread);
+                return true;
+            }
+            return false;
+        }
+
+        public ConnectionPoolEntry getConnectionEntry() {
+            Object handedOff = _handOff.get();
+            return handedOff instanceof ConnectionPoolEntry ? (ConnectionPoolEntry) handedOff : null;
+        }
+
+        /**
+         * @return true if what was handed over was claimed idle, and still needs checking if {@link PoolConfig#getValidateOnBorrow()} says so
+         */
+        public boolean isUnchecked() {
+            return _unchecked;
+        }
+
+        /**
+         * @return true if the waiter gave up before anything was handed over
+         */
+        public boolean cancel() {
+            return _handOff.compareAndSet(null, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return CANCELLED == _handOff.get();
+        }
+
+        @Override
+        public void abort() {
+            if (cancel()) {
+                LockSupport.unpark(_thread);
+            }
+        }
+    }
+
+    /**
+     * A future handed out by {@link MortonianConnectionPool#getConnectionAsync(long, TimeUnit)}.  No thread waits on its behalf; the future itself
+     * decides whether a hand-over still counts, since it can only be completed once.  Anything that takes a round trip, making a new connection or 
+     * checking an idle one, happens on a connector thread, which then completes the future.
+     */
+    private class AsyncConnectionWaiter implements ConnectionWaiter {
+
+        private final CompletableFuture<Connection> _future;
+        // set while a connector thread has the waiter's entry, and cleared if it gets back in line
+        private final AtomicBoolean _working = new AtomicBoolean();
+        private final long _startedAtNanos = System.nanoTime();
+        private final Throwable _leaseOrigin = captureLeaseOrigin();
+
+        public AsyncConnectionWaiter(CompletableFuture<Connection> future) {
+            _future = future;
+        }
+
+        @Override
+        public boolean handOver(final ConnectionPoolEntry connectionEntry, boolean unchecked) {
+            if (null != connectionEntry.getRawConnection() && !(unchecked && _validateOnBorrow && needsValidation(connectionEntry))) {
+                Connection connection = leaseConnection(connectionEntry, _leaseOrigin);
+                if (_future.complete(connection)) {
+                    _metrics.recordAcquireWaitTime(System.nanoTime() - _startedAtNanos);
+                    acquireIncrementInBackgroundIfNecessary();
+                    return true;
+                }
+                ((PooledConnectionInfo) connection).invalidateLease();
+                return false;
+            }
+            if (_future.isDone() || !_working.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                _connectionExecutor.execute(() -> {
+                    if (null == connectionEntry.getRawConnection()) {
+                        connectAndComplete(connectionEntry);
+                    } else {
+                        checkAndComplete(connectionEntry);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // we're shutting down
+                if (null == connectionEntry.getRawConnection()) {
+                    releaseReservedConnectionSlot();
+                } else {
+                    makeAvailable(connectionEntry);
+                }
+                _future.completeExceptionally(new SQLException("Can't grant new connections ... we're shut down!", e));
+            }
+            return true;
+        }
+
+        private void connectAndComplete(ConnectionPoolEntry connectionEntry) {
+            try {
+                initializeConnection(connectionEntry);
+            } catch (Throwable t) {
+                _future.completeExceptionally(t);
+                return;
+            }
+            complete(connectionEntry);
+        }
+
+        /**
+         * Checks an idle entry that was claimed for this waiter, on the connector thread.  If it's broken, the waiter has the next one, checked here 
+         * too, since it was first in line, or gets back in line if there's none.
+         */
+        private void checkAndComplete(ConnectionPoolEntry connectionEntry) {
+            if (_future.isDone()) {
+                // gave up before we got to it, so somebody else can have it
+                makeAvailable(connectionEntry);
+                return;
+            }
+            if (!retireIfBrokenOnBorrow(connectionEntry)) {
+                complete(connectionEntry);
+                return;
+            }
+            ConnectionPoolEntry nextConnectionEntry = claimOrReserveConnectionEntry(true);
+            if (null == nextConnectionEntry) {
+                _working.set(false);
+                if (!_future.isDone()) {
+                    getInLine(this);
+                }
+            } else if (null == nextConnectionEntry.getRawConnection()) {
+                connectAndComplete(nextConnectionEntry);
+            } else {
+                complete(nextConnectionEntry);
+            }
+        }
+
+        private void complete(ConnectionPoolEntry connectionEntry) {
+            Connection connection = leaseConnection(connectionEntry, _leaseOrigin);
+            if (_future.complete(connection)) {
+                _metrics.recordAcquireWaitTime(System.nanoTime() - _startedAtNanos);
+                acquireIncrementInBackgroundIfNecessary();
+            } else {
+                // gave up meanwhile, so somebody else can have it
+                ((PooledConnectionInfo) connection).invalidateLease();
+                makeAvailable(connectionEntry);
+            }
+        }
+
+        @Override
+        public void abort() {
+            _future.completeExceptionally(new SQLException("Can't grant new connections ... we're shut down!"));
+        }
+    }
+
+    /**
+     * Opens the {@link PoolConfig#getInitialPoolSize()} connections, up to {@link PoolConfig#getWarmUpConcurrency()} of them at a time.  Each worker takes 
+     * the next connection that still needs opening until there are none left, so a slow connection only holds up its own worker.
+     * 
+     * In the background, a connection that can't be opened is put back to be tried again later, with the wait doubling each time (up to a limit).
+     * Otherwise the first failure fails the whole warm-up, and the constructor throws.
+     */
+    private class WarmUp {
+
+        private static final long FIRST_RETRY_DELAY_IN_MILLIS = 100;
+        private static final long MAX_RETRY_DELAY_IN_MILLIS = 10000;
+        // how soon to look again, when held back by the connect limits rather than a failure
+        private static final long THROTTLED_RETRY_DELAY_IN_MILLIS = 10;
+
+        private final int _initialPoolSize;
+        private final boolean _retryFailures;
+        private final AtomicInteger _numberLeftToOpen;
+        private final AtomicInteger _numberOpened = new AtomicInteger();
+        private final CompletableFuture<Void> _ready = new CompletableFuture<Void>();
+
+        public WarmUp(int initialPoolSize, boolean retryFailures) {
+            _initialPoolSize = Math.max(0, initialPoolSize);
+            _retryFailures = retryFailures;
+            _numberLeftToOpen = new AtomicInteger(_initialPoolSize);
+            if (0 == _initialPoolSize) {
+                _ready.complete(null);
+            }
+        }
+
+        /**
+         * @param useCallingThread true to have the calling thread do its share of the work (and so not return until it runs out), 
+         *                         rather than leave it all to connector threads
+         */
+        public void start(int concurrency, boolean useCallingThread) {
+            int numberOfWorkers = Math.max(1, Math.min(concurrency, _initialPoolSize));
+            for (int i = useCallingThread ? 1 : 0; i < numberOfWorkers && !_ready.isDone(); i++) {
+                workLater(0);
+            }
+            if (useCallingThread) {
+                work(0);
+            }
+        }
+
+        /**
+         * Waits for the warm-up to finish, rethrowing whatever failed it.
+         */
+        public void await() {
+            try {
+                _ready.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                _log.error("Error provisioning initial connections "+cause,cause);
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+            } catch (InterruptedException e) {
+                _ready.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while provisioning initial connections", e);
+            }
+        }
+
+        public CompletableFuture<Void> getReadyFuture() {
+            // callers get their own dependent future, so that they can't complete or cancel ours
+            return _ready.thenApply(Function.<Void>identity());
+        }
+
+        public void cancel() {
+            _ready.cancel(false);
+        }
+
+        private void work(long retryDelayInMillis) {
+            while (!_ready.isDone() && takeOneToOpen()) {
+                if (!reserveConnectionSlot()) {
+                    if (isHeldBackByConnectLimits()) {
+                        _numberLeftToOpen.incrementAndGet();
+                        workWhenThrottleLifts(retryDelayInMillis);
+                        return;
+                    }
+                    // the pool is smaller than its initial size, or borrowers filled it up first.  either way, it's as warm as it gets
+                    _ready.complete(null);
+                    return;
+                }
+                ConnectionPoolEntry connectionEntry;
+                try {
+                    connectionEntry = createInitializedConnectionEntry();
+                } catch (SQLException | RuntimeException e) {
+                    _numberLeftToOpen.incrementAndGet();
+                    if (!_retryFailures) {
+                        _ready.completeExceptionally(e);
+                        return;
+                    }
+                    long nextRetryDelayInMillis = 0 == retryDelayInMillis ? FIRST_RETRY_DELAY_IN_MILLIS : Math.min(retryDelayInMillis * 2, MAX_RETRY_DELAY_IN_MILLIS);
+                    _log.warn("Trouble provisioning an initial connection, trying again in "+nextRetryDelayInMillis+"ms: "+e,e);
+                    retryLater(nextRetryDelayInMillis);
+                    return;
+                }
+                if (_ready.isCompletedExceptionally()) {
+                    // failed or cancelled while we were connecting, so nobody's going to use it
+                    discard(connectionEntry);
+                    return;
+                }
+                makeAvailable(connectionEntry);
+                retryDelayInMillis = 0;
+                if (_numberOpened.incrementAndGet() >= _initialPoolSize) {
+                    _ready.complete(null);
+                }
+            }
+        }
+
+        private boolean takeOneToOpen() {
+            while (true) {
+                int numberLeftToOpen = _numberLeftToOpen.get();
+                if (numberLeftToOpen <= 0) {
+                    return false;
+                }
+                if (_numberLeftToOpen.compareAndSet(numberLeftToOpen, numberLeftToOpen - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void workLater(final long retryDelayInMillis) {
+            try {
+                _connectionExecutor.execute(() -> work(retryDelayInMillis));
+            } catch (RejectedExecutionException e) {
+                _ready.cancel(false);
+            }
+        }
+
+        /**
+         * @return true if the pool has room for more connections, so it can only have been {@link PoolConfig#getMaxConcurrentConnects()} or 
+         *         {@link PoolConfig#getMaxConnectsPerSecond()} that stopped us making one
+         */
+        private boolean isHeldBackByConnectLimits() {
+            return null != _creationLimit && _numberOfConnections.get() < _maxPoolSize && (null == _sharedLimit || !_sharedLimit.isReached());
+        }
+
+        private void workWhenThrottleLifts(final long retryDelayInMillis) {
+            long delayInMillis = Math.max(THROTTLED_RETRY_DELAY_IN_MILLIS, TimeUnit.NANOSECONDS.toMillis(_creationLimit.getNanosUntilNextToken()));
+            try {
+                _timeoutExecutor.schedule(() -> workLater(retryDelayInMillis), delayInMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                _ready.cancel(false);
+            }
+        }
+
+        private void retryLater(final long retryDelayInMillis) {
+            try {
+                // the timeout thread only waits; the connecting is done on a connector thread, so it can't hold up anybody's timeout
+                _timeoutExecutor.schedule(() -> workLater(retryDelayInMillis), retryDelayInMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                _ready.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * One of the pool's idle sub-pools.  Each has its own stack and count, so threads homed on different stripes don't fight over the same 
+     * cache lines when they borrow and release.  {@link PoolConfig#getMaxPoolSize()} is still enforced across all of them, by 
+     * {@link MortonianConnectionPool#reserveConnectionSlot()}.
+     * 
+     * The stack holds slots in the entry table, not entries, and is linked through the table's next-slot links, so pushing and popping 
+     * allocates nothing.  The top is a single long: the slot (plus one, so that zero means empty) in the low half, and a stamp that's bumped on 
+     * every change in the high half, so that a slot popped and pushed again in between can't fool a compare-and-set.
+     * 
+     * An entry can be claimed without being popped (see {@link PoolConfig#getThreadAffinity()}), so the stack may hold slots whose entries are 
+     * leased, or were released again since, or have been retired and replaced.  Each slot is only ever in one stack once, though: it's only 
+     * pushed if it isn't queued already, and whoever pops a slot whose entry isn't idle just drops it.
+     */
+    private class Stripe {
+
+        private final int _index;
+        private final AtomicLong _top = new AtomicLong();
+        private final AtomicInteger _numberOfConnectionsAvailable = new AtomicInteger();
+
+        public Stripe(int index) {
+            _index = index;
+        }
+
+        /**
+         * @return an entry now leased by the calling thread, or null if the stripe has no idle entries
+         */
+        public ConnectionPoolEntry claimIdleConnectionEntry() {
+            int slot;
+            while (-1 != (slot = pop())) {
+                _slotTable.clearQueued(slot);
+                ConnectionPoolEntry connectionEntry = _slotTable.get(slot);
+                if (null != connectionEntry && MortonianConnectionPool.this.claimIdleConnectionEntry(connectionEntry)) {
+                    return connectionEntry;
+                }
+                // some other thread has leased, or is retiring or closing, this one.  It's theirs now.
+            }
+            return null;
+        }
+
+        /**
+         * @return true if the entry, which the calling thread had leased, is now idle in this stripe
+         */
+        public boolean makeAvailable(ConnectionPoolEntry connectionEntry) {
+            if (!connectionEntry.isLeased()) {
+                return false;
+            }
+            // counted before it can be claimed, so the count never dips below zero
+            connectionEntry.setStripeIndex(_index);
+            _numberOfConnectionsAvailable.incrementAndGet();
+            if (!connectionEntry.makeIdle()) {
+                _numberOfConnectionsAvailable.decrementAndGet();
+                return false;
+            }
+            _numberOfConnectionsLeased.decrement();
+            int slot = connectionEntry.getSlot();
+            if (_slotTable.markQueued(slot)) {
+                push(slot);
+            }
+            return true;
+        }
+
+        /**
+         * Takes an entry that was counted as available in this stripe off the count, once somebody has claimed it.
+         */
+        public void connectionClaimed() {
+            _numberOfConnectionsAvailable.decrementAndGet();
+        }
+
+        public int getNumberOfConnectionsAvailable() {
+            return _numberOfConnectionsAvailable.get();
+        }
+
+        private void push(int slot) {
+            while (true) {
+                long top = _top.get();
+                _slotTable.setNextIdleSlot(slot, (int) top - 1);
+                if (_top.compareAndSet(top, nextTop(top, slot))) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the slot on top of the stack, or -1 if it's empty
+         */
+        private int pop() {
+            while (true) {
+                long top = _top.get();
+                int slot = (int) top - 1;
+                if (slot < 0) {
+                    return -1;
+                }
+                if (_top.compareAndSet(top, nextTop(top, _slotTable.getNextIdleSlot(slot)))) {
+                    return slot;
+                }
+            }
+        }
+
+        private long nextTop(long top, int slot) {
+            return (((top >>> 32) + 1) << 32) | (slot + 1);
+        }
+    }
+
+    /**
+     * @return the number of pre-built {@link Connection} resources that the pool has, ready to lease.  Note that {@link #getNumberOfConnectionsLeased()} +
+     * and {@link #getNumberOfConnectionsAvailable()} does not necessarily add up to the max size.  This is only the ready-to-go, pre-built connections.
+     */
+    public int getNumberOfConnectionsAvailable() {
+        return countConnectionsAvailable();
+    }
+    
+    /**
+     * @return the number of connections that the pool has currently leased out.
+     */
+    public int getNumberOfConnectionsLeased() {
+        return (int) _numberOfConnectionsLeased.sum();
+    }
+
+    @Override
+    public String getPoolUuid() {
+        return _poolGuid;
+    }
+
+    @Override
+    public int getNumberOfWaiters() {
+        return (int) _numberOfWaiters.sum();
+    }
+
+    @Override
+    public long getNumberOfConnectionsCreated() {
+        return _metrics.getCreations();
+    }
+
+    @Override
+    public long getNumberOfConnectFailures() {
+        return _metrics.getConnectFailures();
+    }
+
+    @Override
+    public long getNumberOfConnectionsRetired() {
+        return _metrics.getRetirements();
+    }
+
+    @Override
+    public long getNumberOfTimeouts() {
+        return _metrics.getTimeouts();
+    }
+
+    @Override
+    public double getConnectionsCreatedPerSecond() {
+        return _metrics.getCreationsPerSecond();
+    }
+
+    @Override
+    public long getNumberOfLeaksDetected() {
+        return _metrics.getLeaks();
+    }
+
+    @Override
+    public CircuitBreakingConnectionCreator.State getCircuitState() {
+        return null == _circuitBreaker ? null : _circuitBreaker.getState();
+    }
+
+    @Override
+    public long getNumberOfTimesCircuitOpened() {
+        return null == _circuitBreaker ? 0 : _circuitBreaker.getNumberOfTimesOpened();
+    }
+
+    @Override
+    public long getNumberOfTimesCircuitClosed() {
+        return null == _circuitBreaker ? 0 : _circuitBreaker.getNumberOfTimesClosed();
+    }
+
+    @Override
+    public int getMaxPoolSize() {
+        return _maxPoolSize;
+    }
+
+    @Override
+    public void setMaxPoolSize(int maxPoolSize) {
+        checkMaxPoolSize(maxPoolSize);
+        _lifecycleLock.lock();
+        try {
+            // the table only ever grows, so connections the pool no longer has room for keep their slots until they're retired
+            _slotTable.ensureCapacity(maxPoolSize);
+            _maxPoolSize = maxPoolSize;
+        } finally {
+            _lifecycleLock.unlock();
+        }
+        _log.info("Max pool size of pool "+_poolGuid+" is now "+maxPoolSize);
+        // there may be room for waiters to make connections now
+        dispatchToWaiters();
+        fillIfNecessary();
+    }
+
+    private static void checkMaxPoolSize(int maxPoolSize) {
+        if (maxPoolSize < 0) {
+            throw new IllegalArgumentException("Max pool size can't be negative, but was "+maxPoolSize);
+        }
+        if (maxPoolSize > MAX_POOL_SIZE) {
+            throw new IllegalArgumentException("Max pool size can't be more than "+MAX_POOL_SIZE+", but was "+maxPoolSize);
+        }
+    }
+
+    /**
+     * @return how many idle connections the {@link PoolSizingPolicy} last asked for, or 0 if there isn't one
+     */
+    public int getTargetIdleConnections() {
+        return _targetIdle;
+    }
+
+    @Override
+    public int getMinIdle() {
+        return _minIdle;
+    }
+
+    @Override
+    public void setMinIdle(int minIdle) {
+        _minIdle = minIdle;
+        _log.info("Min idle of pool "+_poolGuid+" is now "+minIdle);
+        fillIfNecessary();
+    }
+
+    @Override
+    public int getMaxIdleTimeInMillis() {
+        return _maxIdleTimeInMillis;
+    }
+
+    @Override
+    public void setMaxIdleTimeInMillis(int maxIdleTimeInMillis) {
+        _maxIdleTimeInMillis = maxIdleTimeInMillis;
+        _log.info("Max idle time of pool "+_poolGuid+" is now "+maxIdleTimeInMillis+"ms");
+    }
+
+    @Override
+    public int getMaxConnectionAgeInMillis() {
+        return _maxConnectionAgeInMillis;
+    }
+
+    @Override
+    public void setMaxConnectionAgeInMillis(int maxConnectionAgeInMillis) {
+        _maxConnectionAgeInMillis = maxConnectionAgeInMillis;
+        _log.info("Max connection age of pool "+_poolGuid+" is now "+maxConnectionAgeInMillis+"ms");
+    }
+
+    @Override
+    public void softEvictConnections() {
+        _lifecycleLock.lock();
+        try {
+            _evictionGeneration++;
+        } finally {
+            _lifecycleLock.unlock();
+        }
+        _log.info("Evicting every connection of pool "+_poolGuid);
+        // the idle ones go now.  the leased ones are from the last generation too, so they go when they're released
+        for (int slot = 0; slot < _slotTable.getCapacity(); slot++) {
+            ConnectionPoolEntry connectionEntry = _slotTable.get(slot);
+            if (null != connectionEntry && claimIdleConnectionEntry(connectionEntry)) {
+                retireIfExpired(connectionEntry, false);
+            }
+        }
+    }
+
+    /**
+     * @return the number of new connections that are being made right now, by borrowers, the warm-up or the filler thread.
+     */
+    public int getNumberOfConnectionsPending() {
+        return (int) _numberOfConnectionsPending.sum();
+    }
+
+    /**
+     * @return the number of connections the pool has, whether they're idle, leased or still being made.  Never more than {@link #getMaxPoolSize()}, except for 
+     *         a while after it's been lowered.
+     */
+    public int getNumberOfConnections() {
+        return _numberOfConnections.get();
+    }
+
+    /**
+     * @return histograms of how long borrowers waited for connections and held on to them, and of how long connections took to make and validate,
+     *         along with counts of timeouts, creations, connect failures, retirements and leaks.  Take a {@link PoolMetrics#snapshot()} of it to read them.
+     */
+    public PoolMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * @return how many times a prepared statement was handed out of a connection's statement cache, rather than prepared on the database.  
+     *         See {@link PoolConfig#getStatementCacheSize()}.
+     */
+    public long getStatementCacheHits() {
+        return _statementCacheHits.sum();
+    }
+
+    /**
+     * @return how many times a statement had to be prepared on the database, because there wasn't one in the connection's statement cache.
+     */
+    public long getStatementCacheMisses() {
+        return _statementCacheMisses.sum();
+    }
+
+    /**
+     * @return how many cached statements have been closed to make room for others.
+     */
+    public long getStatementCacheEvictions() {
+        return _statementCacheEvictions.sum();
     }
 }
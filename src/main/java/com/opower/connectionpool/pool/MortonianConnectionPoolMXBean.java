@@ -0,0 +1,107 @@
+package com.opower.connectionpool.pool;
+
+import com.opower.connectionpool.connection.CircuitBreakingConnectionCreator;
+
+/**
+ * What a {@link MortonianConnectionPool} shows over JMX when {@link com.opower.connectionpool.PoolConfig#getRegisterMBean()} is set, under the name
+ * com.opower.connectionpool:type=MortonianConnectionPool,name=<i>pool uuid</i>.
+ *
+ * None of the getters take a lock, so scraping them as often as you like doesn't slow down borrowers.  The counts only ever go up, even when
+ * somebody calls {@link com.opower.connectionpool.pool.metrics.PoolMetrics#snapshotAndReset()}, so rates can be taken from them.  The setters change the pool while it runs,
+ * overriding what its {@link com.opower.connectionpool.PoolConfig} said.
+ */
+public interface MortonianConnectionPoolMXBean {
+
+    public String getPoolUuid();
+
+    public boolean isShutdown();
+
+    public int getNumberOfConnectionsAvailable();
+
+    public int getNumberOfConnectionsLeased();
+
+    public int getNumberOfConnectionsPending();
+
+    public int getNumberOfConnections();
+
+    /**
+     * @return how many borrowers are waiting in line for a connection
+     */
+    public int getNumberOfWaiters();
+
+    /**
+     * @return how many connections have been made since the pool started
+     */
+    public long getNumberOfConnectionsCreated();
+
+    /**
+     * @return how many connections a second have been made over the last minute or so.  A pool that makes connections at a steady clip, rather than
+     *         keeping the ones it has, is usually losing them to max age, failed validation or a database that keeps dropping them.
+     */
+    public double getConnectionsCreatedPerSecond();
+
+    /**
+     * @return how many connects have failed, or been refused by a {@link com.opower.connectionpool.connection.CircuitBreakingConnectionCreator}, 
+     *         since the pool started
+     */
+    public long getNumberOfConnectFailures();
+
+    /**
+     * @return how many connections have been closed for good since the pool started
+     */
+    public long getNumberOfConnectionsRetired();
+
+    /**
+     * @return how many borrowers gave up waiting for a connection since the pool started
+     */
+    public long getNumberOfTimeouts();
+
+    /**
+     * @return how many leases were held long enough to be reported as leaks, or taken back, since the pool started
+     */
+    public long getNumberOfLeaksDetected();
+
+    /**
+     * @return the state of the {@link com.opower.connectionpool.connection.CircuitBreakingConnectionCreator} the pool connects through, or null if
+     *         it doesn't connect through one
+     */
+    public CircuitBreakingConnectionCreator.State getCircuitState();
+
+    /**
+     * @return how many times the pool's circuit breaker has opened after too many connects failed in a row, or 0 if it doesn't have one
+     */
+    public long getNumberOfTimesCircuitOpened();
+
+    /**
+     * @return how many times the pool's circuit breaker has closed again after a successful connect, or 0 if it doesn't have one
+     */
+    public long getNumberOfTimesCircuitClosed();
+
+    public int getMaxPoolSize();
+
+    /**
+     * Raising the max lets waiting borrowers make new connections straight away.  Lowering it doesn't take connections away from anybody:
+     * the extra ones are closed as they're released.
+     *
+     * @throws IllegalArgumentException if the max is negative, or more than {@link MortonianConnectionPool#MAX_POOL_SIZE}
+     */
+    public void setMaxPoolSize(int maxPoolSize);
+
+    public int getMinIdle();
+
+    public void setMinIdle(int minIdle);
+
+    public int getMaxIdleTimeInMillis();
+
+    public void setMaxIdleTimeInMillis(int maxIdleTimeInMillis);
+
+    public int getMaxConnectionAgeInMillis();
+
+    public void setMaxConnectionAgeInMillis(int maxConnectionAgeInMillis);
+
+    /**
+     * Closes every idle connection now, and every leased one as soon as it's released, so that the pool makes fresh ones as they're needed (say,
+     * after the database has failed over).  Nobody loses a connection they're holding.
+     */
+    public void softEvictConnections();
+}
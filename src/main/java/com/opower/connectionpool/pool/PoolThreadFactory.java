@@ -0,0 +1,29 @@
+package com.opower.connectionpool.pool;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the background threads for a {@link MortonianConnectionPool}.  They are daemon threads, so a pool that is never shut down won't keep the JVM alive,
+ * and they are named after the pool and what they do, so they're easy to pick out of a thread dump.
+ */
+class PoolThreadFactory implements ThreadFactory {
+
+    private String _namePrefix;
+    private AtomicInteger _threadNumber = new AtomicInteger();
+
+    /**
+     * @param poolUuid the uuid of the pool the threads work for
+     * @param purpose what the threads do, like "connector"
+     */
+    public PoolThreadFactory(String poolUuid, String purpose) {
+        _namePrefix = "MortonianConnectionPool-" + poolUuid + "-" + purpose + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, _namePrefix + _threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
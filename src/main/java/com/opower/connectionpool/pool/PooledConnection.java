@@ -0,0 +1,499 @@
+package com.opower.connectionpool.pool;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+
+/**
+ * What a {@link MortonianConnectionPool} hands out for each lease: a {@link Connection} that calls straight through to the pooled physical connection,
+ * for as long as the lease is valid, and the {@link PooledConnectionInfo} about it.
+ *
+ * The setters for session properties (auto-commit, isolation, read-only, catalog, schema and network timeout) note what they changed in the entry's
+ * {@link SessionState}, running a statement or making a savepoint notes that a transaction may be open, and committing or rolling back notes that it
+ * isn't anymore, so that releasing the connection only puts back what this borrower actually touched.  Statements are handed out wrapped, as 
+ * {@link PooledStatement}s, so that the pool sees them run, and so are their result sets, so that they lead back to the wrapped statement.  Preparing a 
+ * call, getting the database metadata, or unwrapping the physical connection or a statement, hands out something the pool can't see run, so a 
+ * transaction may be open from then on, for the rest of the lease.
+ *
+ * A lease is valid while the entry's lease stamp is still the one this object was made with.  Releasing the connection moves the stamp on, so this
+ * object (and any reference to it that the client kept) stays invalid for good, even once the physical connection has been leased to somebody else.
+ */
+final class PooledConnection implements Connection, PooledConnectionInfo {
+
+    private static Logger _log = Logger.getLogger(PooledConnection.class);
+
+    private final String _connectionPoolUuid;
+    private final ConnectionPoolEntry _poolEntry;
+    private final long _leaseStamp;
+    private final long _timeStampCreated;
+    private final long _timeStampLeased;
+    private final long _leasedAtNanos = System.nanoTime();
+    private final Throwable _leaseOrigin;
+    private volatile boolean _reportedAsLeak;
+
+    /**
+     * Starts a new lease on the entry, which the calling thread must have claimed.
+     */
+    public PooledConnection(String connectionPoolUuid, ConnectionPoolEntry poolEntry) {
+        this(connectionPoolUuid, poolEntry, null);
+    }
+
+    /**
+     * @param leaseOrigin where the borrower asked for the connection, to point at if the lease is never released, or null if nobody's looking for leaks
+     */
+    public PooledConnection(String connectionPoolUuid, ConnectionPoolEntry poolEntry, Throwable leaseOrigin) {
+        _connectionPoolUuid = connectionPoolUuid;
+        _poolEntry = poolEntry;
+        _leaseStamp = poolEntry.startLease();
+        _timeStampCreated = poolEntry.getTimeStampCreated();
+        _timeStampLeased = poolEntry.getTimeStampLeased();
+        _leaseOrigin = leaseOrigin;
+    }
+
+    public ConnectionPoolEntry getPoolEntry() {
+        return _poolEntry;
+    }
+
+    /**
+     * @return when the lease started, by {@link System#nanoTime()}
+     */
+    public long getLeasedAtNanos() {
+        return _leasedAtNanos;
+    }
+
+    public Throwable getLeaseOrigin() {
+        return _leaseOrigin;
+    }
+
+    public boolean isReportedAsLeak() {
+        return _reportedAsLeak;
+    }
+
+    public void setReportedAsLeak(boolean reportedAsLeak) {
+        _reportedAsLeak = reportedAsLeak;
+    }
+
+    /**
+     * @return true if this call ended the lease, false if it had already ended
+     */
+    public boolean endLease() {
+        return _poolEntry.endLease(_leaseStamp);
+    }
+
+    /**
+     * @return true if the lease this ended is valid again.  See {@link ConnectionPoolEntry#resumeLease(long)}.
+     */
+    public boolean resumeLease() {
+        return _poolEntry.resumeLease(_leaseStamp);
+    }
+
+    @Override
+    public String getConnectionPoolUuid() {
+        return _connectionPoolUuid;
+    }
+
+    @Override
+    public String getConnectionUuid() {
+        return _poolEntry.getConnectionUuid();
+    }
+
+    @Override
+    public void invalidateLease() {
+        endLease();
+    }
+
+    @Override
+    public boolean isLeaseValid() {
+        return _poolEntry.isLeaseCurrent(_leaseStamp);
+    }
+
+    @Override
+    public Long getTimeStampCreated() {
+        return _timeStampCreated;
+    }
+
+    @Override
+    public Long getTimeStampLeased() {
+        return 0 != _timeStampLeased ? _timeStampLeased : null;
+    }
+
+    /**
+     * @return the physical connection, if the lease on it is still valid
+     */
+    private Connection getRawConnection() {
+        if (!isLeaseValid()) {
+            String message = "Lease on Connection "+getConnectionUuid()+" no longer valid";
+            _log.error(message);
+            throw new RuntimeException(message);
+        }
+        return _poolEntry.getRawConnection();
+    }
+
+    /**
+     * @return the physical connection, if the lease on it is still valid, for something that may start a transaction on it
+     */
+    private Connection getRawConnectionForWork() {
+        Connection rawConnection = getRawConnection();
+        _poolEntry.getSessionState().transactionMayBeOpen();
+        return rawConnection;
+    }
+
+    /**
+     * @return the physical connection, if the lease on it is still valid, for something that hands out a way to work on it that the pool can't see
+     */
+    private Connection getRawConnectionUntracked() {
+        Connection rawConnection = getRawConnection();
+        _poolEntry.getSessionState().workUntracked();
+        return rawConnection;
+    }
+
+    /**
+     * Called by the statements this handed out whenever they're run.  Throws if the lease is no longer valid, since the physical connection may be
+     * somebody else's by then.
+     */
+    void statementRun() {
+        getRawConnectionForWork();
+    }
+
+    /**
+     * Called by the statements and result sets this handed out when they're unwrapped, since the pool can't see what's done with what's inside.
+     */
+    void unwrapped() {
+        getRawConnectionUntracked();
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return new PooledStatement<Statement>(getRawConnection().createStatement(), this);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        Connection rawConnection = getRawConnection();
+        StatementCache statementCache = _poolEntry.getStatementCache();
+        if (null != statementCache) {
+            return statementCache.prepareStatement(this, rawConnection, sql, StatementCache.NOT_GIVEN, StatementCache.NOT_GIVEN, StatementCache.NOT_GIVEN);
+        }
+        return new PooledPreparedStatement(rawConnection.prepareStatement(sql), this);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        // calls aren't wrapped, so the pool can't see them run
+        return getRawConnectionUntracked().prepareCall(sql);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return getRawConnection().nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        Connection rawConnection = getRawConnection();
+        SessionState sessionState = _poolEntry.getSessionState();
+        sessionState.beforeChange(SessionState.AUTO_COMMIT, rawConnection);
+        rawConnection.setAutoCommit(autoCommit);
+        sessionState.changed(SessionState.AUTO_COMMIT, autoCommit);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return getRawConnection().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        getRawConnection().commit();
+        // only once it's worked, since the transaction is still open if it didn't
+        _poolEntry.getSessionState().transactionEnded();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        getRawConnection().rollback();
+        _poolEntry.getSessionState().transactionEnded();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        getRawConnection().close();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return getRawConnection().isClosed();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        // its getConnection() gives the physical connection
+        return getRawConnectionUntracked().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        Connection rawConnection = getRawConnection();
+        SessionState sessionState = _poolEntry.getSessionState();
+        sessionState.beforeChange(SessionState.READ_ONLY, rawConnection);
+        rawConnection.setReadOnly(readOnly);
+        sessionState.changed(SessionState.READ_ONLY, readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return getRawConnection().isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        Connection rawConnection = getRawConnection();
+        SessionState sessionState = _poolEntry.getSessionState();
+        sessionState.beforeChange(SessionState.CATALOG, rawConnection);
+        rawConnection.setCatalog(catalog);
+        sessionState.changed(SessionState.CATALOG, catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return getRawConnection().getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        Connection rawConnection = getRawConnection();
+        SessionState sessionState = _poolEntry.getSessionState();
+        sessionState.beforeChange(SessionState.TRANSACTION_ISOLATION, rawConnection);
+        rawConnection.setTransactionIsolation(level);
+        sessionState.changed(SessionState.TRANSACTION_ISOLATION, level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return getRawConnection().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return getRawConnection().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        getRawConnection().clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new PooledStatement<Statement>(getRawConnection().createStatement(resultSetType, resultSetConcurrency), this);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        Connection rawConnection = getRawConnection();
+        StatementCache statementCache = _poolEntry.getStatementCache();
+        if (null != statementCache) {
+            return statementCache.prepareStatement(this, rawConnection, sql, resultSetType, resultSetConcurrency, StatementCache.NOT_GIVEN);
+        }
+        return new PooledPreparedStatement(rawConnection.prepareStatement(sql, resultSetType, resultSetConcurrency), this);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return getRawConnectionUntracked().prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return getRawConnection().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        getRawConnection().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        getRawConnection().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return getRawConnection().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return getRawConnectionForWork().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return getRawConnectionForWork().setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        getRawConnection().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        getRawConnection().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return new PooledStatement<Statement>(getRawConnection().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability), this);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        Connection rawConnection = getRawConnection();
+        StatementCache statementCache = _poolEntry.getStatementCache();
+        if (null != statementCache) {
+            return statementCache.prepareStatement(this, rawConnection, sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+        return new PooledPreparedStatement(rawConnection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), this);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return getRawConnectionUntracked().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return new PooledPreparedStatement(getRawConnection().prepareStatement(sql, autoGeneratedKeys), this);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return new PooledPreparedStatement(getRawConnection().prepareStatement(sql, columnIndexes), this);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return new PooledPreparedStatement(getRawConnection().prepareStatement(sql, columnNames), this);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return getRawConnection().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return getRawConnection().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return getRawConnection().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return getRawConnection().createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return getRawConnection().isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        getRawConnection().setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        getRawConnection().setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return getRawConnection().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return getRawConnection().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return getRawConnection().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return getRawConnection().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        Connection rawConnection = getRawConnection();
+        SessionState sessionState = _poolEntry.getSessionState();
+        sessionState.beforeChange(SessionState.SCHEMA, rawConnection);
+        rawConnection.setSchema(schema);
+        sessionState.changed(SessionState.SCHEMA, schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return getRawConnection().getSchema();
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        getRawConnection().abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        Connection rawConnection = getRawConnection();
+        SessionState sessionState = _poolEntry.getSessionState();
+        sessionState.beforeChange(SessionState.NETWORK_TIMEOUT, rawConnection);
+        rawConnection.setNetworkTimeout(executor, milliseconds);
+        sessionState.changed(SessionState.NETWORK_TIMEOUT, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return getRawConnection().getNetworkTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        // the pool can't see what's done with the physical connection, so has to assume it's work
+        return getRawConnectionUntracked().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || getRawConnection().isWrapperFor(iface);
+    }
+}
@@ -1,7 +1,7 @@
 package com.opower.connectionpool.pool;
 
 /**
- * All connections returned by {@link com.opower.connectionpool.ConnectionPool#releaseConnection(java.sql.Connection connection)} will be proxies that implement 
+ * All connections returned by {@link com.opower.connectionpool.ConnectionPool#releaseConnection(java.sql.Connection connection)} will be wrappers that implement 
  * both {@link java.sql.Connection} as well as this class.This class supplies metadata around the underlying connection resources, as well as the proxy object 
  * that the client receives as a result of a call to {@link com.opower.connectionpool.ConnectionPool#releaseConnection(java.sql.Connection connection)}
  *
@@ -0,0 +1,346 @@
+package com.opower.connectionpool.pool;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+/**
+ * A {@link Statement} handed out by a {@link PooledConnection}.  Calls go straight through to the statement the physical connection made, but running
+ * it tells the connection that the borrower may have a transaction open, so that {@link com.opower.connectionpool.ReleasePolicy#COMMIT_IF_OPEN} and
+ * {@link com.opower.connectionpool.ReleasePolicy#ROLL_BACK_IF_OPEN} only end transactions that work was actually done in.  {@link #getConnection()}
+ * gives back the pooled connection rather than the physical one, and result sets are handed out as {@link PooledResultSet}s, which give back this
+ * rather than the raw statement, so that neither leads to work the pool can't see.
+ *
+ * Subclasses can see what's done to the statement through the getRawStatement methods, each of which only hands out the raw statement while this
+ * is open.
+ */
+class PooledStatement<S extends Statement> implements Statement {
+
+    private final S _rawStatement;
+    private final PooledConnection _pooledConnection;
+    private volatile boolean _closed = false;
+
+    public PooledStatement(S rawStatement, PooledConnection pooledConnection) {
+        _rawStatement = rawStatement;
+        _pooledConnection = pooledConnection;
+    }
+
+    /**
+     * @return the statement the physical connection made, if this hasn't been closed yet
+     */
+    protected S getRawStatement() throws SQLException {
+        if (_closed) {
+            throw new SQLException("Statement is closed");
+        }
+        return _rawStatement;
+    }
+
+    /**
+     * @return the raw statement, for something that runs it, after which the borrower may have a transaction open
+     */
+    protected S getRawStatementForWork() throws SQLException {
+        S rawStatement = getRawStatement();
+        _pooledConnection.statementRun();
+        return rawStatement;
+    }
+
+    /**
+     * @return the raw statement, for something that changes how it runs
+     */
+    protected S getRawStatementToChange() throws SQLException {
+        return getRawStatement();
+    }
+
+    /**
+     * Called with every result set the caller gets from the raw statement.
+     * 
+     * @return the result set to hand out instead, whose {@link ResultSet#getStatement()} gives back this, rather than the raw statement
+     */
+    protected ResultSet handOut(ResultSet resultSet) {
+        return null == resultSet ? null : new PooledResultSet(resultSet, this);
+    }
+
+    protected PooledConnection getPooledConnection() {
+        return _pooledConnection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        closeRawStatement(_rawStatement);
+    }
+
+    /**
+     * Called once, when this is closed, to get rid of the raw statement
+     */
+    protected void closeRawStatement(S rawStatement) throws SQLException {
+        rawStatement.close();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return _closed;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        getRawStatement();
+        return _pooledConnection;
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        getRawStatement().addBatch(sql);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        getRawStatement().cancel();
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        getRawStatement().clearBatch();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        getRawStatement().clearWarnings();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        getRawStatementToChange().closeOnCompletion();
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        return getRawStatementForWork().execute(sql, columnNames);
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        return getRawStatementForWork().execute(sql, columnIndexes);
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        return getRawStatementForWork().execute(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        return getRawStatementForWork().execute(sql);
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        return getRawStatementForWork().executeBatch();
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        return handOut(getRawStatementForWork().executeQuery(sql));
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        return getRawStatementForWork().executeUpdate(sql, columnNames);
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        return getRawStatementForWork().executeUpdate(sql, columnIndexes);
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        return getRawStatementForWork().executeUpdate(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        return getRawStatementForWork().executeUpdate(sql);
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return getRawStatement().getFetchDirection();
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return getRawStatement().getFetchSize();
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return handOut(getRawStatement().getGeneratedKeys());
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return getRawStatement().getMaxFieldSize();
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return getRawStatement().getMaxRows();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return getRawStatement().getMoreResults(current);
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return getRawStatement().getMoreResults();
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return getRawStatement().getQueryTimeout();
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return handOut(getRawStatement().getResultSet());
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return getRawStatement().getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return getRawStatement().getResultSetHoldability();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return getRawStatement().getResultSetType();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return getRawStatement().getUpdateCount();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return getRawStatement().getWarnings();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return getRawStatement().isCloseOnCompletion();
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return getRawStatement().isPoolable();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        getRawStatementToChange().setCursorName(name);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        getRawStatementToChange().setEscapeProcessing(enable);
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        getRawStatementToChange().setFetchDirection(direction);
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        getRawStatementToChange().setFetchSize(rows);
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        getRawStatementToChange().setMaxFieldSize(max);
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        getRawStatementToChange().setMaxRows(max);
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        getRawStatementToChange().setPoolable(poolable);
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        getRawStatementToChange().setQueryTimeout(seconds);
+    }
+
+    @Override
+    public long getLargeUpdateCount() throws SQLException {
+        return getRawStatement().getLargeUpdateCount();
+    }
+
+    @Override
+    public void setLargeMaxRows(long max) throws SQLException {
+        getRawStatementToChange().setLargeMaxRows(max);
+    }
+
+    @Override
+    public long getLargeMaxRows() throws SQLException {
+        return getRawStatement().getLargeMaxRows();
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        return getRawStatementForWork().executeLargeBatch();
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        return getRawStatementForWork().executeLargeUpdate(sql);
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        return getRawStatementForWork().executeLargeUpdate(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        return getRawStatementForWork().executeLargeUpdate(sql, columnIndexes);
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+        return getRawStatementForWork().executeLargeUpdate(sql, columnNames);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        S rawStatement = getRawStatement();
+        // the pool can't see what's done with the raw statement, so has to assume it's work
+        _pooledConnection.unwrapped();
+        return rawStatement.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || getRawStatement().isWrapperFor(iface);
+    }
+}
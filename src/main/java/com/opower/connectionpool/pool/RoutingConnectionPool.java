@@ -0,0 +1,176 @@
+package com.opower.connectionpool.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+
+import com.opower.connectionpool.ConnectionConfig;
+import com.opower.connectionpool.ConnectionCreator;
+import com.opower.connectionpool.ConnectionPool;
+import com.opower.connectionpool.PoolConfig;
+
+/**
+ * A {@link ConnectionPool} over one primary database and any number of read replicas, each with a {@link MortonianConnectionPool} of its own, all
+ * sized by the same {@link PoolConfig}.  {@link #getConnection()} always goes to the primary.  {@link #getReadOnlyConnection()} goes to whichever
+ * replica has the fewest connections out, and falls back to the primary when no replica has one to spare, or none can be reached.
+ *
+ * Connections from any of them are released to this pool, which gives each back to the sub-pool it came from.
+ */
+public class RoutingConnectionPool implements ConnectionPool {
+
+    private static Logger _log = Logger.getLogger(RoutingConnectionPool.class);
+
+    private MortonianConnectionPool _primaryPool;
+    private List<MortonianConnectionPool> _replicaPools = new ArrayList<MortonianConnectionPool>();
+    private Map<String, MortonianConnectionPool> _poolsByUuid = new ConcurrentHashMap<String, MortonianConnectionPool>();
+
+    public RoutingConnectionPool(ConnectionConfig primaryConfig, List<ConnectionConfig> replicaConfigs, ConnectionCreator creator, PoolConfig poolConfig) {
+        try {
+            _primaryPool = addPool(primaryConfig, creator, poolConfig);
+            for (ConnectionConfig replicaConfig : replicaConfigs) {
+                _replicaPools.add(addPool(replicaConfig, creator, poolConfig));
+            }
+        } catch (RuntimeException e) {
+            // don't leave the ones that did start running with nobody to shut them down
+            for (MortonianConnectionPool pool : _poolsByUuid.values()) {
+                shutdownQuietly(pool);
+            }
+            throw e;
+        }
+    }
+
+    private MortonianConnectionPool addPool(ConnectionConfig connectionConfig, ConnectionCreator creator, PoolConfig poolConfig) {
+        MortonianConnectionPool pool = new MortonianConnectionPool(connectionConfig, creator, poolConfig);
+        _poolsByUuid.put(pool.getPoolUuid(), pool);
+        return pool;
+    }
+
+    /**
+     * Gets a connection to the primary, for anything that writes, exactly as {@link MortonianConnectionPool#getConnection()} would.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        return _primaryPool.getConnection();
+    }
+
+    /**
+     * Gets a connection for reading only.  Tries the replicas, least loaded first (by how many connections each has leased or being made), without
+     * waiting on any of them, or counting it against one that had none to give.  A replica that can't make a connection is skipped.  If none of them has one to give, the caller gets a connection to the
+     * primary instead, waiting for one if need be, as {@link #getConnection()} would.
+     *
+     * @return a connection to a replica, or to the primary, or null if the primary is maxed out too
+     */
+    public Connection getReadOnlyConnection() throws SQLException {
+        int numberOfReplicas = _replicaPools.size();
+        if (numberOfReplicas > 0) {
+            boolean[] tried = new boolean[numberOfReplicas];
+            // start somewhere different each time, so replicas that are equally loaded share the work
+            int offset = ThreadLocalRandom.current().nextInt(numberOfReplicas);
+            for (int attempt = 0; attempt < numberOfReplicas; attempt++) {
+                int replica = pickLeastLoadedReplica(tried, offset);
+                tried[replica] = true;
+                MortonianConnectionPool replicaPool = _replicaPools.get(replica);
+                try {
+                    Connection connection = replicaPool.tryGetConnection();
+                    if (null != connection) {
+                        return connection;
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    _log.warn("Couldn't get a connection from replica pool "+replicaPool.getPoolUuid()+", trying elsewhere: "+e);
+                }
+            }
+            _log.debug("No replica had a connection to spare.  Falling back to the primary.");
+        }
+        return _primaryPool.getConnection();
+    }
+
+    private int pickLeastLoadedReplica(boolean[] tried, int offset) {
+        int leastLoadedReplica = -1;
+        int leastLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < tried.length; i++) {
+            int replica = (offset + i) % tried.length;
+            if (tried[replica]) {
+                continue;
+            }
+            MortonianConnectionPool replicaPool = _replicaPools.get(replica);
+            int load = replicaPool.getNumberOfConnectionsLeased() + replicaPool.getNumberOfConnectionsPending();
+            if (load < leastLoad) {
+                leastLoad = load;
+                leastLoadedReplica = replica;
+            }
+        }
+        return leastLoadedReplica;
+    }
+
+    /**
+     * Gives the connection back to whichever of the primary's or replicas' pools it came from.  Throws an exception if it came from none of them.
+     */
+    @Override
+    public void releaseConnection(Connection connection) throws SQLException {
+        if (null == connection) {
+            return;
+        }
+        String connectionPoolUuid = ((PooledConnectionInfo) connection).getConnectionPoolUuid();
+        MortonianConnectionPool pool = _poolsByUuid.get(connectionPoolUuid);
+        if (null == pool) {
+            _log.error("Cannot release connection from another pool.  The connection's pool uuid was "+connectionPoolUuid);
+            throw new RuntimeException("Cannot release connection from another pool.  The connection's pool uuid was "+connectionPoolUuid);
+        }
+        pool.releaseConnection(connection);
+    }
+
+    public MortonianConnectionPool getPrimaryPool() {
+        return _primaryPool;
+    }
+
+    /**
+     * @return the replicas' pools, in the order their configs were given
+     */
+    public List<MortonianConnectionPool> getReplicaPools() {
+        return Collections.unmodifiableList(_replicaPools);
+    }
+
+    public boolean isShutdown() {
+        return _primaryPool.isShutdown();
+    }
+
+    /**
+     * Shuts down the primary's pool and every replica's.  Carries on through the rest if one of them has trouble, SQLException or otherwise,
+     * and throws the first trouble at the end, with any later ones suppressed by it.
+     */
+    public void shutdown() throws SQLException {
+        Exception firstException = null;
+        for (MortonianConnectionPool pool : _poolsByUuid.values()) {
+            try {
+                pool.shutdown();
+            } catch (SQLException | RuntimeException e) {
+                if (null == firstException) {
+                    firstException = e;
+                } else {
+                    firstException.addSuppressed(e);
+                }
+            }
+        }
+        if (firstException instanceof SQLException) {
+            throw (SQLException) firstException;
+        }
+        if (null != firstException) {
+            throw (RuntimeException) firstException;
+        }
+    }
+
+    private void shutdownQuietly(MortonianConnectionPool pool) {
+        try {
+            pool.shutdown();
+        } catch (SQLException | RuntimeException e) {
+            _log.error("Trouble shutting down pool "+pool.getPoolUuid()+": "+e,e);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.opower.connectionpool.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * The session properties of one pooled connection that a borrower might change, and which of them the current borrower has changed, so that
+ * {@link MortonianConnectionPool#releaseConnection(Connection)} can put back just those before the next borrower gets the connection.
+ *
+ * A property's pool default is read from the connection the first time any borrower changes it, and remembered for as long as the connection lives,
+ * so properties nobody touches never cost a round trip.  Setting a property back to its default counts as not having changed it.
+ *
+ * Only ever used by whoever holds the lease on the connection, one at a time, so it needs no locking of its own.
+ */
+final class SessionState {
+
+    public static final int AUTO_COMMIT = 0;
+    public static final int TRANSACTION_ISOLATION = 1;
+    public static final int READ_ONLY = 2;
+    public static final int CATALOG = 3;
+    public static final int SCHEMA = 4;
+    public static final int NETWORK_TIMEOUT = 5;
+
+    private static final int NUMBER_OF_PROPERTIES = 6;
+    // the network timeout has to be put back with some executor, and the borrower's may be long gone
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+
+    private final Object[] _defaults = new Object[NUMBER_OF_PROPERTIES];
+    private final Object[] _values = new Object[NUMBER_OF_PROPERTIES];
+    private int _defaultsKnown;
+    private int _changed;
+    private boolean _transactionMayBeOpen;
+    private boolean _workUntracked;
+
+    /**
+     * Call before changing a property on the connection, so that its default is known.
+     */
+    public void beforeChange(int property, Connection rawConnection) throws SQLException {
+        if (0 == (_defaultsKnown & (1 << property))) {
+            _defaults[property] = read(property, rawConnection);
+            _defaultsKnown |= 1 << property;
+        }
+    }
+
+    /**
+     * Call once a property has been changed on the connection.
+     */
+    public void changed(int property, Object value) {
+        _values[property] = value;
+        if (Objects.equals(value, _defaults[property])) {
+            _changed &= ~(1 << property);
+        } else {
+            _changed |= 1 << property;
+        }
+    }
+
+    /**
+     * Call when the borrower runs a statement or makes a savepoint, after which it may have a transaction open.
+     */
+    public void transactionMayBeOpen() {
+        _transactionMayBeOpen = true;
+    }
+
+    /**
+     * Call when the borrower is handed something the pool can't see it work through, such as the physical connection, after which a transaction
+     * may be open for the rest of the lease, whatever the borrower commits or rolls back.
+     */
+    public void workUntracked() {
+        _workUntracked = true;
+    }
+
+    /**
+     * @return true if the borrower ran a statement or made a savepoint since it last committed or rolled back, or did anything the pool can't see, 
+     *         and auto-commit is off, so there may be work to commit or roll back.  Costs a round trip at most once in the connection's life, to 
+     *         learn its default auto-commit.
+     */
+    public boolean isTransactionOpen(Connection rawConnection) throws SQLException {
+        return (_transactionMayBeOpen || _workUntracked) && !isAutoCommit(rawConnection);
+    }
+
+    /**
+     * Call once the borrower has committed or rolled back its transaction itself.  Anything it did that the pool couldn't see may have started 
+     * another since, so that still counts.
+     */
+    public void transactionEnded() {
+        _transactionMayBeOpen = false;
+    }
+
+    /**
+     * Call once the borrower's transaction has been committed on release, so that there's nothing left for {@link #reset(Connection)} to roll back.
+     */
+    public void committedOnRelease() {
+        _transactionMayBeOpen = false;
+        _workUntracked = false;
+    }
+
+    /**
+     * Rolls back whatever the borrower may have left uncommitted, then puts back each property it changed.  Rolling back comes first, since
+     * putting auto-commit back on would commit it instead.
+     */
+    public void reset(Connection rawConnection) throws SQLException {
+        if (isTransactionOpen(rawConnection)) {
+            rawConnection.rollback();
+        }
+        _transactionMayBeOpen = false;
+        _workUntracked = false;
+        for (int property = 0; property < NUMBER_OF_PROPERTIES && 0 != _changed; property++) {
+            if (0 != (_changed & (1 << property))) {
+                write(property, _defaults[property], rawConnection);
+                _changed &= ~(1 << property);
+            }
+        }
+    }
+
+    private boolean isAutoCommit(Connection rawConnection) throws SQLException {
+        if (0 != (_changed & (1 << AUTO_COMMIT))) {
+            return (Boolean) _values[AUTO_COMMIT];
+        }
+        // it's at its default, which we may as well learn now
+        beforeChange(AUTO_COMMIT, rawConnection);
+        return (Boolean) _defaults[AUTO_COMMIT];
+    }
+
+    private static Object read(int property, Connection rawConnection) throws SQLException {
+        switch (property) {
+            case AUTO_COMMIT:
+                return rawConnection.getAutoCommit();
+            case TRANSACTION_ISOLATION:
+                return rawConnection.getTransactionIsolation();
+            case READ_ONLY:
+                return rawConnection.isReadOnly();
+            case CATALOG:
+                return rawConnection.getCatalog();
+            case SCHEMA:
+                return rawConnection.getSchema();
+            case NETWORK_TIMEOUT:
+                return rawConnection.getNetworkTimeout();
+            default:
+                throw new IllegalArgumentException("No such session property: "+property);
+        }
+    }
+
+    private static void write(int property, Object value, Connection rawConnection) throws SQLException {
+        switch (property) {
+            case AUTO_COMMIT:
+                rawConnection.setAutoCommit((Boolean) value);
+                break;
+            case TRANSACTION_ISOLATION:
+                rawConnection.setTransactionIsolation((Integer) value);
+                break;
+            case READ_ONLY:
+                rawConnection.setReadOnly((Boolean) value);
+                break;
+            case CATALOG:
+                rawConnection.setCatalog((String) value);
+                break;
+            case SCHEMA:
+                rawConnection.setSchema((String) value);
+                break;
+            case NETWORK_TIMEOUT:
+                rawConnection.setNetworkTimeout(DIRECT_EXECUTOR, (Integer) value);
+                break;
+            default:
+                throw new IllegalArgumentException("No such session property: "+property);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.opower.connectionpool.pool;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A cap on physical connections shared by several {@link MortonianConnectionPool}s.  Each pool reserves a place under it, on top of its own
+ * {@link com.opower.connectionpool.PoolConfig#getMaxPoolSize()}, before making a connection, and gives the place back when the connection is retired.
+ *
+ * A borrower who couldn't get a place waits in its own pool's line, so when a place is given back while the cap was reached, every pool gets a chance
+ * to hand it to one of its waiters.  An idle connection never gives its place back by itself, so whenever a pool gets a new waiter, or has a
+ * connection go idle, it asks {@link #makeRoomForWaiters()} to close the least recently used idle connection of some other pool for them.
+ */
+final class SharedConnectionLimit {
+
+    private static Logger _log = Logger.getLogger(SharedConnectionLimit.class);
+
+    private static final int MAX_EVICTION_ATTEMPTS = 3;
+
+    private final int _maxConnections;
+    private final AtomicInteger _numberOfConnections = new AtomicInteger();
+    private final Set<MortonianConnectionPool> _pools = ConcurrentHashMap.newKeySet();
+
+    public SharedConnectionLimit(int maxConnections) {
+        _maxConnections = maxConnections;
+    }
+
+    public void addPool(MortonianConnectionPool pool) {
+        _pools.add(pool);
+    }
+
+    public void removePool(MortonianConnectionPool pool) {
+        _pools.remove(pool);
+    }
+
+    /**
+     * @return true if a place was reserved.  Whoever reserves one must give it back with {@link #release()}.
+     */
+    public boolean tryReserve() {
+        while (true) {
+            int numberOfConnections = _numberOfConnections.get();
+            if (numberOfConnections >= _maxConnections) {
+                return false;
+            }
+            if (_numberOfConnections.compareAndSet(numberOfConnections, numberOfConnections + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (_numberOfConnections.getAndDecrement() >= _maxConnections) {
+            // somebody in any of the pools may have been waiting for this place
+            for (MortonianConnectionPool pool : _pools) {
+                pool.dispatchToWaiters();
+            }
+        }
+    }
+
+    /**
+     * If the cap has been reached, and any pool has a borrower waiting who could connect if only there were a place, closes the least recently used
+     * idle connection of the other pools to make one.  Closing it gives its place back with {@link #release()}, which hands it to the waiter.
+     */
+    public void makeRoomForWaiters() {
+        if (!isReached()) {
+            return;
+        }
+        for (MortonianConnectionPool pool : _pools) {
+            if (pool.hasWaitersWithRoom() && evictLeastRecentlyUsedIdleConnection(pool)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the least recently used idle connection of any pool other than the given one.  Gives up after a few tries if other borrowers keep
+     * claiming the connections it picks.
+     *
+     * @return true if a connection was closed
+     */
+    public boolean evictLeastRecentlyUsedIdleConnection(MortonianConnectionPool exceptPool) {
+        for (int attempt = 0; attempt < MAX_EVICTION_ATTEMPTS; attempt++) {
+            MortonianConnectionPool leastRecentlyUsedPool = null;
+            long leastRecentlyUsedTimeStamp = Long.MAX_VALUE;
+            for (MortonianConnectionPool pool : _pools) {
+                if (pool == exceptPool) {
+                    continue;
+                }
+                long timeStamp = pool.getLeastRecentlyUsedIdleTimeStamp();
+                if (timeStamp < leastRecentlyUsedTimeStamp) {
+                    leastRecentlyUsedTimeStamp = timeStamp;
+                    leastRecentlyUsedPool = pool;
+                }
+            }
+            if (null == leastRecentlyUsedPool) {
+                return false;
+            }
+            if (leastRecentlyUsedPool.retireLeastRecentlyUsedIdleConnection()) {
+                _log.debug("Closed an idle connection of pool "+leastRecentlyUsedPool.getPoolUuid()+" to make room under the cap of "+_maxConnections);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isReached() {
+        return _numberOfConnections.get() >= _maxConnections;
+    }
+
+    public int getNumberOfConnections() {
+        return _numberOfConnections.get();
+    }
+
+    public int getMaxConnections() {
+        return _maxConnections;
+    }
+}
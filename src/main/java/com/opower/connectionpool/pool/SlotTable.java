@@ -0,0 +1,89 @@
+package com.opower.connectionpool.pool;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The slots a {@link MortonianConnectionPool} keeps its entries in, along with the per-slot links its idle stacks are threaded through.
+ *
+ * Slots are handed out in fixed-size chunks, so the table can grow (when the pool's max size is raised at runtime) without ever moving a slot:
+ * whatever a thread has read from, or compare-and-set into, a slot stays put.  Growing only adds chunks, and only happens under the pool's lifecycle lock,
+ * so there's never more than one thread doing it.  Nothing else about the table takes a lock.
+ */
+class SlotTable {
+
+    private static final int CHUNK_BITS = 5;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int MAX_CAPACITY = 1 << 16;
+
+    private final AtomicReferenceArray<Chunk> _chunks = new AtomicReferenceArray<Chunk>(MAX_CAPACITY >> CHUNK_BITS);
+    private volatile int _capacity;
+
+    public SlotTable(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Adds chunks until there are at least the given number of slots.  Callers must hold the pool's lifecycle lock (or be its constructor).
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("A pool can't hold more than "+MAX_CAPACITY+" connections, but was asked for "+capacity);
+        }
+        int numberOfChunks = _capacity >> CHUNK_BITS;
+        while (_capacity < capacity) {
+            _chunks.set(numberOfChunks++, new Chunk());
+            // only published once the chunk is in place, so a reader that sees the new capacity sees the chunk too
+            _capacity = numberOfChunks << CHUNK_BITS;
+        }
+    }
+
+    /**
+     * @return how many slots there are.  Every slot below this has a chunk behind it.
+     */
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    public ConnectionPoolEntry get(int slot) {
+        return chunk(slot)._entries.get(slot & (CHUNK_SIZE - 1));
+    }
+
+    public boolean compareAndSet(int slot, ConnectionPoolEntry expected, ConnectionPoolEntry entry) {
+        return chunk(slot)._entries.compareAndSet(slot & (CHUNK_SIZE - 1), expected, entry);
+    }
+
+    /**
+     * @return true if the slot wasn't in an idle stack, and now counts as being in one
+     */
+    public boolean markQueued(int slot) {
+        return chunk(slot)._queued.compareAndSet(slot & (CHUNK_SIZE - 1), 0, 1);
+    }
+
+    public void clearQueued(int slot) {
+        chunk(slot)._queued.set(slot & (CHUNK_SIZE - 1), 0);
+    }
+
+    /**
+     * @return the slot below this one in its idle stack, or -1 if it's at the bottom.  Only meaningful to whoever has just read this slot off the top of the
+     *         stack with a compare-and-set, which is what makes the last write to it visible.
+     */
+    public int getNextIdleSlot(int slot) {
+        return chunk(slot)._nextIdleSlot[slot & (CHUNK_SIZE - 1)];
+    }
+
+    public void setNextIdleSlot(int slot, int nextIdleSlot) {
+        chunk(slot)._nextIdleSlot[slot & (CHUNK_SIZE - 1)] = nextIdleSlot;
+    }
+
+    private Chunk chunk(int slot) {
+        return _chunks.get(slot >> CHUNK_BITS);
+    }
+
+    private static final class Chunk {
+
+        private final AtomicReferenceArray<ConnectionPoolEntry> _entries = new AtomicReferenceArray<ConnectionPoolEntry>(CHUNK_SIZE);
+        private final AtomicIntegerArray _queued = new AtomicIntegerArray(CHUNK_SIZE);
+        private final int[] _nextIdleSlot = new int[CHUNK_SIZE];
+    }
+}
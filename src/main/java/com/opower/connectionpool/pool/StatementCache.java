@@ -0,0 +1,161 @@
+package com.opower.connectionpool.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The prepared statements that one physical connection has already prepared, and that nobody's using right now, kept so that preparing the same SQL again
+ * doesn't have to go back to the database.  When the cache is full, the least recently used statement is closed to make room.
+ *
+ * A cache belongs to a {@link ConnectionPoolEntry}, and is only ever used by whoever holds the lease on that entry, so it needs no locking of its own:
+ * handing the lease from one thread to the next is what makes one thread's changes visible to the next.
+ */
+class StatementCache {
+
+    private static Logger _log = Logger.getLogger(StatementCache.class);
+
+    /**
+     * Stands in for resultSetType, resultSetConcurrency or resultSetHoldability when the caller didn't give one
+     */
+    static final int NOT_GIVEN = -1;
+
+    private final LinkedHashMap<StatementKey, PreparedStatement> _idleStatements;
+    private final LongAdder _hits;
+    private final LongAdder _misses;
+    private final LongAdder _evictions;
+
+    /**
+     * @param maxSize how many idle statements to keep
+     * @param hits, misses, evictions counters shared by every cache in the pool
+     */
+    public StatementCache(final int maxSize, LongAdder hits, LongAdder misses, final LongAdder evictions) {
+        _hits = hits;
+        _misses = misses;
+        _evictions = evictions;
+        _idleStatements = new LinkedHashMap<StatementKey, PreparedStatement>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+                if (size() <= maxSize) {
+                    return false;
+                }
+                evictions.increment();
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Hands out an idle statement prepared from the same SQL with the same arguments if there is one, otherwise prepares a new one on the raw connection.
+     * Either way, closing the statement that's returned gives it back to this cache.
+     */
+    public PreparedStatement prepareStatement(PooledConnection pooledConnection, Connection rawConnection, String sql,
+            int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        StatementKey key = new StatementKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        PreparedStatement rawStatement = _idleStatements.remove(key);
+        if (null != rawStatement && isClosed(rawStatement)) {
+            // the caller got at the raw statement through one of its result sets, and closed it after giving it back
+            _evictions.increment();
+            rawStatement = null;
+        }
+        if (null != rawStatement) {
+            _hits.increment();
+        } else {
+            _misses.increment();
+            if (NOT_GIVEN != resultSetHoldability) {
+                rawStatement = rawConnection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+            } else if (NOT_GIVEN != resultSetType) {
+                rawStatement = rawConnection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            } else {
+                rawStatement = rawConnection.prepareStatement(sql);
+            }
+        }
+        return new CachedPreparedStatement(this, key, rawStatement, pooledConnection);
+    }
+
+    /**
+     * Takes back a statement its caller has closed, ready to be handed out again.  If an idle statement for the same SQL is already cached, this one is
+     * closed instead.  One the caller managed to close on the database, through a result set's {@link java.sql.ResultSet#getStatement()}, is dropped.
+     */
+    public void giveBack(StatementKey key, PreparedStatement rawStatement) {
+        if (isClosed(rawStatement)) {
+            _evictions.increment();
+            return;
+        }
+        try {
+            rawStatement.clearParameters();
+        } catch (SQLException e) {
+            _log.warn("Trouble clearing a cached statement's parameters, so closing it instead: "+e,e);
+            closeQuietly(rawStatement);
+            return;
+        }
+        if (_idleStatements.containsKey(key)) {
+            closeQuietly(rawStatement);
+            return;
+        }
+        _idleStatements.put(key, rawStatement);
+    }
+
+    private static boolean isClosed(PreparedStatement rawStatement) {
+        try {
+            return rawStatement.isClosed();
+        } catch (SQLException e) {
+            _log.warn("Trouble checking whether a cached statement is closed, so assuming it is: "+e,e);
+            return true;
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement rawStatement) {
+        try {
+            rawStatement.close();
+        } catch (SQLException e) {
+            _log.error("Trouble closing statement: "+e,e);
+        }
+    }
+
+    /**
+     * What a cached statement was prepared from.  Two calls to prepareStatement can share a statement only if they passed the same SQL and the same
+     * resultSetType, resultSetConcurrency and resultSetHoldability.
+     */
+    static final class StatementKey {
+
+        private final String _sql;
+        private final int _resultSetType;
+        private final int _resultSetConcurrency;
+        private final int _resultSetHoldability;
+
+        public StatementKey(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) {
+            _sql = sql;
+            _resultSetType = resultSetType;
+            _resultSetConcurrency = resultSetConcurrency;
+            _resultSetHoldability = resultSetHoldability;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof StatementKey)) {
+                return false;
+            }
+            StatementKey otherKey = (StatementKey) other;
+            return _sql.equals(otherKey._sql) && _resultSetType == otherKey._resultSetType
+                    && _resultSetConcurrency == otherKey._resultSetConcurrency && _resultSetHoldability == otherKey._resultSetHoldability;
+        }
+
+        @Override
+        public int hashCode() {
+            int hashCode = _sql.hashCode();
+            hashCode = 31 * hashCode + _resultSetType;
+            hashCode = 31 * hashCode + _resultSetConcurrency;
+            return 31 * hashCode + _resultSetHoldability;
+        }
+    }
+}
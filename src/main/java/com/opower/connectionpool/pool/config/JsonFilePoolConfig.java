@@ -3,6 +3,7 @@ package com.opower.connectionpool.pool.config;
 import org.apache.log4j.Logger;
 
 import com.opower.connectionpool.PoolConfig;
+import com.opower.connectionpool.ReleasePolicy;
 import com.opower.connectionpool.connection.config.JsonFileConnectionConfig;
 import com.opower.connectionpool.json.AbstractJsonFileConfigReader;
 
@@ -53,4 +54,95 @@ public class JsonFilePoolConfig extends AbstractJsonFileConfigReader implements
     public int getMaxIdleTimeInMillis() {
         return getIntWithDefault("maxIdleTimeInMillis", -1);
     }
+
+    @Override
+    public int getMinIdle() {
+        return getIntWithDefault("minIdle", 0);
+    }
+
+    @Override
+    public int getWarmUpConcurrency() {
+        return getIntWithDefault("warmUpConcurrency", 1);
+    }
+
+    @Override
+    public boolean getWarmUpInBackground() {
+        return getBooleanValueWithDefault("warmUpInBackground", false);
+    }
+
+    @Override
+    public int getNumberOfStripes() {
+        return getIntWithDefault("numberOfStripes", 1);
+    }
+
+    @Override
+    public boolean getThreadAffinity() {
+        return getBooleanValueWithDefault("threadAffinity", false);
+    }
+
+    @Override
+    public int getStatementCacheSize() {
+        return getIntWithDefault("statementCacheSize", 0);
+    }
+
+    @Override
+    public boolean getRegisterMBean() {
+        return getBooleanValueWithDefault("registerMBean", false);
+    }
+
+    @Override
+    public int getHousekeepingIntervalInMillis() {
+        return getIntWithDefault("housekeepingIntervalInMillis", 30000);
+    }
+
+    @Override
+    public boolean getValidateOnBorrow() {
+        return getBooleanValueWithDefault("validateOnBorrow", false);
+    }
+
+    @Override
+    public int getValidationBypassWindowInMillis() {
+        return getIntWithDefault("validationBypassWindowInMillis", 1000);
+    }
+
+    @Override
+    public int getValidationTimeoutInSeconds() {
+        return getIntWithDefault("validationTimeoutInSeconds", 5);
+    }
+
+    @Override
+    public boolean getValidateIdleConnections() {
+        return getBooleanValueWithDefault("validateIdleConnections", false);
+    }
+
+    @Override
+    public String getValidationQuery() {
+        return getStringValue("validationQuery");
+    }
+
+    @Override
+    public int getLeakDetectionThresholdInMillis() {
+        return getIntWithDefault("leakDetectionThresholdInMillis", 0);
+    }
+
+    @Override
+    public int getAbandonedLeaseTimeoutInMillis() {
+        return getIntWithDefault("abandonedLeaseTimeoutInMillis", 0);
+    }
+
+    @Override
+    public ReleasePolicy getReleasePolicy() {
+        String releasePolicy = getStringValue("releasePolicy");
+        return null != releasePolicy ? ReleasePolicy.valueOf(releasePolicy) : null;
+    }
+
+    @Override
+    public int getMaxConcurrentConnects() {
+        return getIntWithDefault("maxConcurrentConnects", 0);
+    }
+
+    @Override
+    public int getMaxConnectsPerSecond() {
+        return getIntWithDefault("maxConnectsPerSecond", 0);
+    }
 }
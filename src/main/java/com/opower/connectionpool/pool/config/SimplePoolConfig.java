@@ -1,6 +1,7 @@
 package com.opower.connectionpool.pool.config;
 
 import com.opower.connectionpool.PoolConfig;
+import com.opower.connectionpool.ReleasePolicy;
 
 public class SimplePoolConfig implements PoolConfig {
 
@@ -12,6 +13,24 @@ public class SimplePoolConfig implements PoolConfig {
     private int _retryWaitTimeMillis = 300;
     private int _maxConnectionAgeInMillis = -1;
     private int _maxIdleTimeInMillis = -1;
+    private int _minIdle = 0;
+    private int _warmUpConcurrency = 1;
+    private boolean _warmUpInBackground = false;
+    private int _numberOfStripes = 1;
+    private boolean _threadAffinity = false;
+    private int _statementCacheSize = 0;
+    private boolean _registerMBean = false;
+    private int _housekeepingIntervalInMillis = 30000;
+    private boolean _validateOnBorrow = false;
+    private int _validationBypassWindowInMillis = 1000;
+    private int _validationTimeoutInSeconds = 5;
+    private boolean _validateIdleConnections = false;
+    private String _validationQuery = null;
+    private int _leakDetectionThresholdInMillis = 0;
+    private int _abandonedLeaseTimeoutInMillis = 0;
+    private ReleasePolicy _releasePolicy = null;
+    private int _maxConcurrentConnects = 0;
+    private int _maxConnectsPerSecond = 0;
     
     @Override
     public int getMaxPoolSize() {
@@ -84,4 +103,166 @@ public class SimplePoolConfig implements PoolConfig {
     public void setMaxIdleTimeInMillis(int maxIdleTimeInMillis) {
         _maxIdleTimeInMillis = maxIdleTimeInMillis;
     }
+
+    @Override
+    public int getMinIdle() {
+        return _minIdle;
+    }
+
+    public void setMinIdle(int minIdle) {
+        _minIdle = minIdle;
+    }
+
+    @Override
+    public int getWarmUpConcurrency() {
+        return _warmUpConcurrency;
+    }
+
+    public void setWarmUpConcurrency(int warmUpConcurrency) {
+        _warmUpConcurrency = warmUpConcurrency;
+    }
+
+    @Override
+    public boolean getWarmUpInBackground() {
+        return _warmUpInBackground;
+    }
+
+    public void setWarmUpInBackground(boolean warmUpInBackground) {
+        _warmUpInBackground = warmUpInBackground;
+    }
+
+    @Override
+    public int getNumberOfStripes() {
+        return _numberOfStripes;
+    }
+
+    public void setNumberOfStripes(int numberOfStripes) {
+        _numberOfStripes = numberOfStripes;
+    }
+
+    @Override
+    public boolean getThreadAffinity() {
+        return _threadAffinity;
+    }
+
+    public void setThreadAffinity(boolean threadAffinity) {
+        _threadAffinity = threadAffinity;
+    }
+
+    @Override
+    public int getStatementCacheSize() {
+        return _statementCacheSize;
+    }
+
+    public void setStatementCacheSize(int statementCacheSize) {
+        _statementCacheSize = statementCacheSize;
+    }
+
+    @Override
+    public boolean getRegisterMBean() {
+        return _registerMBean;
+    }
+
+    public void setRegisterMBean(boolean registerMBean) {
+        _registerMBean = registerMBean;
+    }
+
+    @Override
+    public int getHousekeepingIntervalInMillis() {
+        return _housekeepingIntervalInMillis;
+    }
+
+    public void setHousekeepingIntervalInMillis(int housekeepingIntervalInMillis) {
+        _housekeepingIntervalInMillis = housekeepingIntervalInMillis;
+    }
+
+    @Override
+    public boolean getValidateOnBorrow() {
+        return _validateOnBorrow;
+    }
+
+    public void setValidateOnBorrow(boolean validateOnBorrow) {
+        _validateOnBorrow = validateOnBorrow;
+    }
+
+    @Override
+    public int getValidationBypassWindowInMillis() {
+        return _validationBypassWindowInMillis;
+    }
+
+    public void setValidationBypassWindowInMillis(int validationBypassWindowInMillis) {
+        _validationBypassWindowInMillis = validationBypassWindowInMillis;
+    }
+
+    @Override
+    public int getValidationTimeoutInSeconds() {
+        return _validationTimeoutInSeconds;
+    }
+
+    public void setValidationTimeoutInSeconds(int validationTimeoutInSeconds) {
+        _validationTimeoutInSeconds = validationTimeoutInSeconds;
+    }
+
+    @Override
+    public boolean getValidateIdleConnections() {
+        return _validateIdleConnections;
+    }
+
+    public void setValidateIdleConnections(boolean validateIdleConnections) {
+        _validateIdleConnections = validateIdleConnections;
+    }
+
+    @Override
+    public String getValidationQuery() {
+        return _validationQuery;
+    }
+
+    public void setValidationQuery(String validationQuery) {
+        _validationQuery = validationQuery;
+    }
+
+    @Override
+    public int getLeakDetectionThresholdInMillis() {
+        return _leakDetectionThresholdInMillis;
+    }
+
+    public void setLeakDetectionThresholdInMillis(int leakDetectionThresholdInMillis) {
+        _leakDetectionThresholdInMillis = leakDetectionThresholdInMillis;
+    }
+
+    @Override
+    public int getAbandonedLeaseTimeoutInMillis() {
+        return _abandonedLeaseTimeoutInMillis;
+    }
+
+    public void setAbandonedLeaseTimeoutInMillis(int abandonedLeaseTimeoutInMillis) {
+        _abandonedLeaseTimeoutInMillis = abandonedLeaseTimeoutInMillis;
+    }
+
+    @Override
+    public ReleasePolicy getReleasePolicy() {
+        return _releasePolicy;
+    }
+
+    public void setReleasePolicy(ReleasePolicy releasePolicy) {
+        _releasePolicy = releasePolicy;
+    }
+
+    @Override
+    public int getMaxConcurrentConnects() {
+        return _maxConcurrentConnects;
+    }
+
+    public void setMaxConcurrentConnects(int maxConcurrentConnects) {
+        _maxConcurrentConnects = maxConcurrentConnects;
+    }
+
+    @Override
+    public int getMaxConnectsPerSecond() {
+        return _maxConnectsPerSecond;
+    }
+
+    public void setMaxConnectsPerSecond(int maxConnectsPerSecond) {
+        _maxConnectsPerSecond = maxConnectsPerSecond;
+    }
 }
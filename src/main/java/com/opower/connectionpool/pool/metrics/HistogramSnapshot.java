@@ -0,0 +1,70 @@
+package com.opower.connectionpool.pool.metrics;
+
+/**
+ * What a {@link LatencyHistogram} had counted when the snapshot was taken.  All durations are in nanoseconds.
+ */
+public class HistogramSnapshot {
+
+    private final long[] _counts;
+    private final long _count;
+    private final long _totalInNanos;
+    private final long _maxInNanos;
+
+    HistogramSnapshot(long[] counts, long totalInNanos, long maxInNanos) {
+        _counts = counts;
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        _count = count;
+        _totalInNanos = totalInNanos;
+        _maxInNanos = maxInNanos;
+    }
+
+    /**
+     * @return how many durations were recorded
+     */
+    public long getCount() {
+        return _count;
+    }
+
+    public long getMaxInNanos() {
+        return _maxInNanos;
+    }
+
+    /**
+     * @return the mean duration, or 0 if nothing was recorded
+     */
+    public double getMeanInNanos() {
+        return 0 == _count ? 0 : (double) _totalInNanos / _count;
+    }
+
+    /**
+     * @param percentile between 0 and 100, like 99.9
+     * @return a duration that at least that percentage of the recorded durations were no longer than, or 0 if nothing was recorded.  It's the top of
+     *         the bucket the percentile falls in (but never more than the max), so it's at most 1/8 too high.
+     */
+    public long getPercentileInNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, but was "+percentile);
+        }
+        if (0 == _count) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * _count));
+        long seen = 0;
+        for (int bucket = 0; bucket < _counts.length; bucket++) {
+            seen += _counts[bucket];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestValueIn(bucket), _maxInNanos);
+            }
+        }
+        return _maxInNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "count="+_count+", mean="+(long) getMeanInNanos()+"ns, p50="+getPercentileInNanos(50)+"ns, p99="+getPercentileInNanos(99)
+                +"ns, p99.9="+getPercentileInNanos(99.9)+"ns, max="+_maxInNanos+"ns";
+    }
+}
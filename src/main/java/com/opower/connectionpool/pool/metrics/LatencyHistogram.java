@@ -0,0 +1,77 @@
+package com.opower.connectionpool.pool.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations, in nanoseconds, into logarithmic buckets.  Each power of two is split into {@link #SUB_BUCKETS} buckets, so a percentile read back from
+ * the histogram is never more than 1/{@link #SUB_BUCKETS} off, however long the durations are, and the histogram stays the same (small) size forever.
+ *
+ * Recording is a couple of atomic increments on preallocated arrays: it never allocates and never locks, so it can be done on every borrow and release.
+ * Reading takes a {@link HistogramSnapshot}.  Recording carries on while a snapshot is taken, so a snapshot may be off by whatever was recorded meanwhile.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int NUMBER_OF_BUCKETS = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+    private final LongAdder _totalInNanos = new LongAdder();
+    private final AtomicLong _maxInNanos = new AtomicLong();
+
+    /**
+     * @param durationInNanos how long something took.  Negative durations (from a clock that went backwards) count as zero.
+     */
+    public void record(long durationInNanos) {
+        long value = Math.max(0, durationInNanos);
+        _counts.incrementAndGet(bucketFor(value));
+        _totalInNanos.add(value);
+        long max;
+        while (value > (max = _maxInNanos.get()) && !_maxInNanos.compareAndSet(max, value)) {
+            // somebody else raised the max meanwhile; go around and see if ours is still bigger
+        }
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[NUMBER_OF_BUCKETS];
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            counts[i] = _counts.get(i);
+        }
+        return new HistogramSnapshot(counts, _totalInNanos.sum(), _maxInNanos.get());
+    }
+
+    /**
+     * Takes a snapshot and starts counting again from zero, so that each snapshot only covers what happened since the last one.
+     */
+    public HistogramSnapshot snapshotAndReset() {
+        long[] counts = new long[NUMBER_OF_BUCKETS];
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            counts[i] = _counts.getAndSet(i, 0);
+        }
+        return new HistogramSnapshot(counts, _totalInNanos.sumThenReset(), _maxInNanos.getAndSet(0));
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the biggest value that is counted into the given bucket
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long lowestValue = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowestValue + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
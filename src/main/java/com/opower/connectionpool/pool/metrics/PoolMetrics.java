@@ -0,0 +1,172 @@
+package com.opower.connectionpool.pool.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where a connection pool's time goes: how long borrowers waited for a connection, how long they held on to it, and how long it took to connect and to
+ * validate connections.  Also counts borrows that timed out, connections made, connects that failed, connections retired, and leases that looked
+ * like leaks.
+ *
+ * The pool records into this as it goes, without allocating or locking; see {@link LatencyHistogram}.  Take a {@link #snapshot()} to read it, or a
+ * {@link #snapshotAndReset()} to export it every so often to your own monitoring.  Snapshots cover what happened since the last reset, but the counts
+ * the getters return, which the pool's MBean shows, are totals since the pool started, and are never reset, so a scraper can take rates from them.
+ */
+public class PoolMetrics {
+
+    private static final long RATE_WINDOW_IN_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final LatencyHistogram _acquireWaitTime = new LatencyHistogram();
+    private final LatencyHistogram _leaseTime = new LatencyHistogram();
+    private final LatencyHistogram _connectTime = new LatencyHistogram();
+    private final LatencyHistogram _validationTime = new LatencyHistogram();
+    private final LongAdder _timeouts = new LongAdder();
+    private final LongAdder _creations = new LongAdder();
+    private final LongAdder _connectFailures = new LongAdder();
+    private final LongAdder _retirements = new LongAdder();
+    private final LongAdder _leaks = new LongAdder();
+    // the counts as of the last reset, in the order countsNow() gives them, so that snapshots can say what's happened since
+    private final AtomicReference<long[]> _countsAtLastReset = new AtomicReference<long[]>(new long[5]);
+    private final AtomicReference<RateWindow> _creationRateWindow = new AtomicReference<RateWindow>(new RateWindow(System.nanoTime(), 0, -1));
+
+    /**
+     * @param durationInNanos from asking for a connection to getting one, including making it if it had to be made
+     */
+    public void recordAcquireWaitTime(long durationInNanos) {
+        _acquireWaitTime.record(durationInNanos);
+    }
+
+    /**
+     * @param durationInNanos from a connection being handed out to it being released
+     */
+    public void recordLeaseTime(long durationInNanos) {
+        _leaseTime.record(durationInNanos);
+    }
+
+    /**
+     * @param durationInNanos how long the {@link com.opower.connectionpool.ConnectionCreator} took to make a connection
+     */
+    public void recordConnectTime(long durationInNanos) {
+        _connectTime.record(durationInNanos);
+    }
+
+    /**
+     * @param durationInNanos how long it took to check that a connection still worked
+     */
+    public void recordValidationTime(long durationInNanos) {
+        _validationTime.record(durationInNanos);
+    }
+
+    /**
+     * Counts a borrower who gave up waiting for a connection
+     */
+    public void countTimeout() {
+        _timeouts.increment();
+    }
+
+    public void countCreation() {
+        _creations.increment();
+    }
+
+    /**
+     * Counts a connect that the {@link com.opower.connectionpool.ConnectionCreator} failed, or refused to try
+     */
+    public void countConnectFailure() {
+        _connectFailures.increment();
+    }
+
+    public void countRetirement() {
+        _retirements.increment();
+    }
+
+    /**
+     * Counts a lease held longer than {@link com.opower.connectionpool.PoolConfig#getLeakDetectionThresholdInMillis()}, or taken back from its borrower
+     */
+    public void countLeak() {
+        _leaks.increment();
+    }
+
+    public long getTimeouts() {
+        return _timeouts.sum();
+    }
+
+    public long getCreations() {
+        return _creations.sum();
+    }
+
+    /**
+     * Windows are only moved on when this is read, so the rate is over the last full minute for anything reading it at least that often, and over
+     * the time since the last read otherwise.
+     * 
+     * @return connections made per second over the last minute or so, or since the pool started if it hasn't been going for a minute yet
+     */
+    public double getCreationsPerSecond() {
+        long now = System.nanoTime();
+        long creations = _creations.sum();
+        RateWindow window = _creationRateWindow.get();
+        long elapsedInNanos = now - window._timeStampStartedInNanos;
+        double creationsPerSecond = elapsedInNanos > 0 ? (creations - window._countAtStart) * NANOS_PER_SECOND / elapsedInNanos : 0;
+        if (elapsedInNanos >= RATE_WINDOW_IN_NANOS) {
+            // if somebody else moves the window on first, theirs is just as good
+            _creationRateWindow.compareAndSet(window, new RateWindow(now, creations, creationsPerSecond));
+            return creationsPerSecond;
+        }
+        return window._ratePerSecondOfLastWindow >= 0 ? window._ratePerSecondOfLastWindow : creationsPerSecond;
+    }
+
+    public long getConnectFailures() {
+        return _connectFailures.sum();
+    }
+
+    public long getRetirements() {
+        return _retirements.sum();
+    }
+
+    public long getLeaks() {
+        return _leaks.sum();
+    }
+
+    /**
+     * @return what's been recorded since the last {@link #snapshotAndReset()}, or since the pool started if there hasn't been one
+     */
+    public PoolMetricsSnapshot snapshot() {
+        long[] counts = countsNow();
+        long[] countsAtLastReset = _countsAtLastReset.get();
+        return new PoolMetricsSnapshot(_acquireWaitTime.snapshot(), _leaseTime.snapshot(), _connectTime.snapshot(), _validationTime.snapshot(),
+                counts[0] - countsAtLastReset[0], counts[1] - countsAtLastReset[1], counts[2] - countsAtLastReset[2], counts[3] - countsAtLastReset[3],
+                counts[4] - countsAtLastReset[4]);
+    }
+
+    /**
+     * Takes a snapshot and starts again from zero, so that each snapshot only covers what happened since the last one.  The histograms are emptied, 
+     * but the counts only start over as far as snapshots are concerned: the getters carry on counting from where they were.
+     */
+    public PoolMetricsSnapshot snapshotAndReset() {
+        long[] counts = countsNow();
+        // swapped in one go, so that everything counted shows up in exactly one snapshot, even if two threads reset at once
+        long[] countsAtLastReset = _countsAtLastReset.getAndSet(counts);
+        return new PoolMetricsSnapshot(_acquireWaitTime.snapshotAndReset(), _leaseTime.snapshotAndReset(), _connectTime.snapshotAndReset(),
+                _validationTime.snapshotAndReset(), counts[0] - countsAtLastReset[0], counts[1] - countsAtLastReset[1],
+                counts[2] - countsAtLastReset[2], counts[3] - countsAtLastReset[3], counts[4] - countsAtLastReset[4]);
+    }
+
+    private long[] countsNow() {
+        return new long[] { _timeouts.sum(), _creations.sum(), _connectFailures.sum(), _retirements.sum(), _leaks.sum() };
+    }
+
+    private static final class RateWindow {
+
+        private final long _timeStampStartedInNanos;
+        private final long _countAtStart;
+        // negative until there's been a whole window
+        private final double _ratePerSecondOfLastWindow;
+
+        private RateWindow(long timeStampStartedInNanos, long countAtStart, double ratePerSecondOfLastWindow) {
+            _timeStampStartedInNanos = timeStampStartedInNanos;
+            _countAtStart = countAtStart;
+            _ratePerSecondOfLastWindow = ratePerSecondOfLastWindow;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.opower.connectionpool.pool.metrics;
+
+/**
+ * What a {@link PoolMetrics} had recorded when the snapshot was taken.
+ */
+public class PoolMetricsSnapshot {
+
+    private final HistogramSnapshot _acquireWaitTime;
+    private final HistogramSnapshot _leaseTime;
+    private final HistogramSnapshot _connectTime;
+    private final HistogramSnapshot _validationTime;
+    private final long _timeouts;
+    private final long _creations;
+    private final long _connectFailures;
+    private final long _retirements;
+    private final long _leaks;
+
+    PoolMetricsSnapshot(HistogramSnapshot acquireWaitTime, HistogramSnapshot leaseTime, HistogramSnapshot connectTime, HistogramSnapshot validationTime,
+            long timeouts, long creations, long connectFailures, long retirements, long leaks) {
+        _acquireWaitTime = acquireWaitTime;
+        _leaseTime = leaseTime;
+        _connectTime = connectTime;
+        _validationTime = validationTime;
+        _timeouts = timeouts;
+        _creations = creations;
+        _connectFailures = connectFailures;
+        _retirements = retirements;
+        _leaks = leaks;
+    }
+
+    public HistogramSnapshot getAcquireWaitTime() {
+        return _acquireWaitTime;
+    }
+
+    public HistogramSnapshot getLeaseTime() {
+        return _leaseTime;
+    }
+
+    public HistogramSnapshot getConnectTime() {
+        return _connectTime;
+    }
+
+    public HistogramSnapshot getValidationTime() {
+        return _validationTime;
+    }
+
+    public long getTimeouts() {
+        return _timeouts;
+    }
+
+    public long getCreations() {
+        return _creations;
+    }
+
+    public long getConnectFailures() {
+        return _connectFailures;
+    }
+
+    public long getRetirements() {
+        return _retirements;
+    }
+
+    public long getLeaks() {
+        return _leaks;
+    }
+
+    @Override
+    public String toString() {
+        return "acquireWaitTime: ["+_acquireWaitTime+"], leaseTime: ["+_leaseTime+"], connectTime: ["+_connectTime+"], validationTime: ["+_validationTime
+                +"], timeouts="+_timeouts+", creations="+_creations+", connectFailures="+_connectFailures+", retirements="+_retirements+", leaks="+_leaks;
+    }
+}
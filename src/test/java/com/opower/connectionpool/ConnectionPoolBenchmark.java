@@ -0,0 +1,175 @@
+package com.opower.connectionpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.easymock.EasyMock;
+
+import com.opower.connectionpool.pool.MortonianConnectionPool;
+import com.opower.connectionpool.pool.PooledConnectionInfo;
+import com.opower.connectionpool.pool.config.SimplePoolConfig;
+
+/**
+ * Measures borrow/release throughput of a {@link MortonianConnectionPool} as the number of borrowing threads grows.
+ * This is not a unit test (surefire only picks up Test*.java), so run it by hand once the test classes are compiled:
+ *
+ *     mvn test-compile
+ *     java -cp target/classes:target/test-classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) com.opower.connectionpool.ConnectionPoolBenchmark
+ *
+ * Every thread borrows a connection, releases it, and does it again, for a fixed amount of time.  The pool is big enough that nobody
+ * ever has to wait, so what's being measured is the cost of coordinating the borrow and the release.
+ *
+ * Each thread count is run against a pool with a single stripe, and against one with a stripe per core (see {@link com.opower.connectionpool.PoolConfig#getNumberOfStripes()}),
+ * or as many stripes as the first argument says.
+ *
+ * After that it measures what a single JDBC call costs through a pooled connection, compared to calling the physical connection directly, and to going 
+ * through a reflective {@link Proxy} the way the pool used to wrap its connections.
+ */
+public class ConnectionPoolBenchmark {
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+    private static final long WARMUP_MILLIS = 1000;
+    private static final long MEASURE_MILLIS = 3000;
+    private static final int CALLS_PER_ROUND = 10000000;
+
+    public static void main(String[] args) throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        int stripes = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        System.out.println("stripes\tthreads\tborrow+release/sec\tper thread");
+        for (int numberOfStripes : new int[] { 1, stripes }) {
+            for (int threads : THREAD_COUNTS) {
+                MortonianConnectionPool connectionPool = buildPool(threads, numberOfStripes);
+                runBorrowReleaseLoop(connectionPool, threads, WARMUP_MILLIS);
+                long operations = runBorrowReleaseLoop(connectionPool, threads, MEASURE_MILLIS);
+                long perSecond = operations * 1000 / MEASURE_MILLIS;
+                System.out.println(numberOfStripes + "\t" + threads + "\t" + perSecond + "\t" + (perSecond / threads));
+                connectionPool.shutdown();
+            }
+        }
+
+        measureCallOverhead();
+    }
+
+    private static void measureCallOverhead() throws Exception {
+        ConnectionConfig connectionConfig = EasyMock.createNiceMock(ConnectionConfig.class);
+        EasyMock.replay(connectionConfig);
+        Connection rawConnection = cheapConnection();
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(connectionConfig, new MockConnectionCreator(rawConnection), new SimplePoolConfig());
+        Connection pooledConnection = connectionPool.getConnection();
+        Connection reflectiveConnection = reflectiveProxyOf(pooledConnection, rawConnection);
+
+        System.out.println();
+        System.out.println("round\traw ns/call\tpooled ns/call\treflective proxy ns/call");
+        for (int round = 1; round <= 5; round++) {
+            System.out.println(round + "\t" + nanosPerCall(rawConnection) + "\t" + nanosPerCall(pooledConnection) + "\t" + nanosPerCall(reflectiveConnection));
+        }
+        connectionPool.releaseConnection(pooledConnection);
+        connectionPool.shutdown();
+    }
+
+    private static double nanosPerCall(Connection connection) throws Exception {
+        int trues = 0;
+        long beforeTime = System.nanoTime();
+        for (int i = 0; i < CALLS_PER_ROUND; i++) {
+            if (connection.getAutoCommit()) {
+                trues++;
+            }
+        }
+        long elapsed = System.nanoTime() - beforeTime;
+        if (trues > 0) {
+            // never happens, but the JIT can't know that
+            System.out.println(trues);
+        }
+        return (double) elapsed / CALLS_PER_ROUND;
+    }
+
+    /**
+     * @return a stand-in for a physical connection that does as little as possible, so that the cost of whatever's wrapped around it shows up
+     */
+    private static Connection cheapConnection() {
+        return (Connection) Proxy.newProxyInstance(ConnectionPoolBenchmark.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (boolean.class.equals(method.getReturnType())) {
+                    return Boolean.FALSE;
+                }
+                return int.class.equals(method.getReturnType()) ? Integer.valueOf(0) : null;
+            }
+        });
+    }
+
+    /**
+     * @return the raw connection wrapped up the way the pool used to do it: a dynamic proxy that checks where each method was declared, and then 
+     *         calls through with {@link Method#invoke(Object, Object...)}
+     */
+    private static Connection reflectiveProxyOf(final Connection pooledConnection, final Connection rawConnection) {
+        final PooledConnectionInfo connectionInfo = (PooledConnectionInfo) pooledConnection;
+        return (Connection) Proxy.newProxyInstance(ConnectionPoolBenchmark.class.getClassLoader(), new Class<?>[] { Connection.class, PooledConnectionInfo.class }, 
+                new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (PooledConnectionInfo.class.equals(method.getDeclaringClass())) {
+                    return method.invoke(connectionInfo, args);
+                } else if (connectionInfo.isLeaseValid()) {
+                    return method.invoke(rawConnection, args);
+                } else {
+                    throw new RuntimeException("Lease on Connection "+connectionInfo.getConnectionUuid()+" no longer valid");
+                }
+            }
+        });
+    }
+
+    private static MortonianConnectionPool buildPool(int threads, int numberOfStripes) {
+        ConnectionConfig connectionConfig = EasyMock.createNiceMock(ConnectionConfig.class);
+        Connection connection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(connectionConfig, connection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(threads);
+        poolConfig.setInitialPoolSize(threads);
+        poolConfig.setNumberOfStripes(numberOfStripes);
+        return new MortonianConnectionPool(connectionConfig, new MockConnectionCreator(connection), poolConfig);
+    }
+
+    private static long runBorrowReleaseLoop(final MortonianConnectionPool connectionPool, int threads, final long durationMillis) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong operations = new AtomicLong();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    try {
+                        start.await();
+                        long stopAt = System.currentTimeMillis() + durationMillis;
+                        while (System.currentTimeMillis() < stopAt) {
+                            for (int j = 0; j < 100; j++) {
+                                Connection connection = connectionPool.getConnection();
+                                connectionPool.releaseConnection(connection);
+                            }
+                            count += 100;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        operations.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        start.countDown();
+        done.await();
+        return operations.get();
+    }
+}
@@ -1,8 +1,31 @@
 package com.opower.connectionpool;
 
+import java.lang.management.ManagementFactory;
+import java.sql.CallableStatement;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import junit.framework.Assert;
 
@@ -10,9 +33,16 @@ import org.apache.log4j.Logger;
 import org.easymock.EasyMock;
 import org.junit.Test;
 
+import com.opower.connectionpool.connection.CircuitBreakingConnectionCreator;
+import com.opower.connectionpool.pool.AdaptivePoolSizingPolicy;
+import com.opower.connectionpool.pool.KeyedConnectionPool;
 import com.opower.connectionpool.pool.PooledConnectionInfo;
+import com.opower.connectionpool.pool.RoutingConnectionPool;
 import com.opower.connectionpool.pool.MortonianConnectionPool;
 import com.opower.connectionpool.pool.config.SimplePoolConfig;
+import com.opower.connectionpool.pool.metrics.HistogramSnapshot;
+import com.opower.connectionpool.pool.metrics.LatencyHistogram;
+import com.opower.connectionpool.pool.metrics.PoolMetricsSnapshot;
 
 public class TestSimpleConnectionPool {
 
@@ -669,6 +699,93 @@ public class TestSimpleConnectionPool {
         }   
     }
 
+    @Test
+    public void testShutdownClosesConnectionsStillBeingMade() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createMock(Connection.class);
+        mockConnection.close();
+        EasyMock.replay(mockConnection);
+        final CountDownLatch connectStarted = new CountDownLatch(1);
+        final CountDownLatch connectMayFinish = new CountDownLatch(1);
+        ConnectionCreator slowConnectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                connectStarted.countDown();
+                try {
+                    connectMayFinish.await();
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+                return mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, slowConnectionCreator, poolConfig);
+        final AtomicReference<Exception> borrowerException = new AtomicReference<Exception>();
+        Thread borrower = new Thread(() -> {
+            try {
+                connectionPool.getConnection();
+            } catch (Exception e) {
+                borrowerException.set(e);
+            }
+        });
+        borrower.start();
+        Assert.assertTrue("Borrower should have started connecting", connectStarted.await(5, TimeUnit.SECONDS));
+
+        // shutdown finds nothing to close yet, since the connection isn't in its slot until it's made
+        connectionPool.shutdown();
+        connectMayFinish.countDown();
+        borrower.join(5000);
+
+        Assert.assertTrue("Borrower should hear that the pool is shut down", borrowerException.get() instanceof SQLException);
+        Assert.assertEquals("Number of connections should be 0", 0, connectionPool.getNumberOfConnections());
+        Assert.assertEquals("Number of connections leased should be 0", 0, connectionPool.getNumberOfConnectionsLeased());
+        EasyMock.verify(mockConnection);
+    }
+
+    @Test
+    public void testShutdownClosesEveryConnectionWhenOneFailsToCommit() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        Connection mockConnection2 = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = EasyMock.createMock(ConnectionCreator.class);
+        EasyMock.expect(mockConnectionCreator.createConnection(mockConnectionConfig)).andReturn(mockConnection);
+        EasyMock.expect(mockConnectionCreator.createConnection(mockConnectionConfig)).andReturn(mockConnection2);
+        EasyMock.replay(mockConnectionCreator);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(2);
+        poolConfig.setAutoCommit(true);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        Connection connection2 = connectionPool.getConnection();
+
+        SQLException commitFailure = new SQLException("commit failed");
+        mockConnection.commit();
+        EasyMock.expectLastCall().andThrow(commitFailure);
+        EasyMock.expect(mockConnection.isClosed()).andReturn(false);
+        mockConnection.close();
+        mockConnection2.commit();
+        EasyMock.expect(mockConnection2.isClosed()).andReturn(false);
+        mockConnection2.close();
+        EasyMock.replay(mockConnection, mockConnection2);
+
+        try {
+            connectionPool.shutdown();
+            Assert.fail("Shutdown should pass on the failed commit");
+        } catch (SQLException e) {
+            Assert.assertSame("Shutdown should pass on the failed commit", commitFailure, e);
+        }
+
+        // the failed commit didn't stop either connection being closed, or giving back its place
+        EasyMock.verify(mockConnection, mockConnection2);
+        Assert.assertTrue("Connection Pools should be shutdown", connectionPool.isShutdown());
+        Assert.assertEquals("Number of connections should be 0", 0, connectionPool.getNumberOfConnections());
+        Assert.assertFalse("First connection should no longer be valid", ((PooledConnectionInfo)connection).isLeaseValid());
+        Assert.assertFalse("Second connection should no longer be valid", ((PooledConnectionInfo)connection2).isLeaseValid());
+    }
+
     @Test
     public void testMaxConnectionAge() {
 
@@ -912,4 +1029,1727 @@ public class TestSimpleConnectionPool {
             Assert.fail("Exception: "+e);
         }   
     }
+
+    @Test
+    public void testConcurrentBorrowAndRelease() throws InterruptedException {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = new MockConnectionCreator(mockConnection);
+        final int maxPoolSize = 4;
+        int threads = 8;
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(maxPoolSize);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        final Set<String> leasedUuids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> allUuids = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 2000; j++) {
+                            Connection connection = connectionPool.getConnection();
+                            if (null == connection) {
+                                continue;
+                            }
+                            String uuid = ((PooledConnectionInfo)connection).getConnectionUuid();
+                            allUuids.add(uuid);
+                            if (!leasedUuids.add(uuid)) {
+                                failure.compareAndSet(null, "Connection "+uuid+" was leased to two threads at once");
+                            }
+                            leasedUuids.remove(uuid);
+                            connectionPool.releaseConnection(connection);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, "Exception: "+e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        Assert.assertNull(failure.get(), failure.get());
+        Assert.assertTrue("Should never create more than the max pool size, but created "+allUuids.size(), allUuids.size() <= maxPoolSize);
+        Assert.assertEquals("Number of connections handed out after all threads finish should be 0", 0, connectionPool.getNumberOfConnectionsLeased());
+        Assert.assertEquals("Every created connection should be available after all threads finish", allUuids.size(), connectionPool.getNumberOfConnectionsAvailable());
+    }
+
+    @Test
+    public void testReleasedConnectionIsHandedToWaiter() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = new MockConnectionCreator(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        final Connection connection = connectionPool.getConnection();
+        final int holdTimeMillis = 200;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(holdTimeMillis);
+                    connectionPool.releaseConnection(connection);
+                } catch (Exception e) {
+                    _log.error("Error releasing connection", e);
+                }
+            }
+        }).start();
+
+        long beforeTime = System.currentTimeMillis();
+        Connection connection2 = connectionPool.getConnection(5, TimeUnit.SECONDS);
+        long afterTime = System.currentTimeMillis();
+
+        Assert.assertNotNull("Waiting borrower should get the released connection", connection2);
+        Assert.assertEquals("Should be the same connection", ((PooledConnectionInfo)connection).getConnectionUuid(), ((PooledConnectionInfo)connection2).getConnectionUuid());
+        Assert.assertTrue("Should have waited for the release", afterTime - beforeTime >= holdTimeMillis / 2);
+        Assert.assertTrue("Should get the connection as soon as it's released, not at the timeout", afterTime - beforeTime < 2000);
+    }
+
+    @Test
+    public void testWaitTimesOut() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = new MockConnectionCreator(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        Assert.assertNotNull("I should get one connection", connectionPool.getConnection());
+
+        int timeoutMillis = 300;
+        long beforeTime = System.currentTimeMillis();
+        Connection connection2 = connectionPool.getConnection(timeoutMillis, TimeUnit.MILLISECONDS);
+        long afterTime = System.currentTimeMillis();
+
+        Assert.assertNull("I should not get a second connection", connection2);
+        Assert.assertTrue("Should wait out the whole timeout", afterTime - beforeTime >= timeoutMillis);
+        Assert.assertTrue("Should not wait much past the timeout", afterTime - beforeTime < timeoutMillis * 3);
+    }
+
+    @Test
+    public void testWaitersAreServedInOrder() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = new MockConnectionCreator(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        final List<Integer> servedOrder = new CopyOnWriteArrayList<Integer>();
+        int waiters = 3;
+        final CountDownLatch done = new CountDownLatch(waiters);
+        for (int i = 0; i < waiters; i++) {
+            final int waiterNumber = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection waitedFor = connectionPool.getConnection(5, TimeUnit.SECONDS);
+                        servedOrder.add(waiterNumber);
+                        connectionPool.releaseConnection(waitedFor);
+                    } catch (Exception e) {
+                        _log.error("Error waiting for connection", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+            // make sure each waiter is in line before the next one shows up
+            Thread.sleep(100);
+        }
+
+        connectionPool.releaseConnection(connection);
+        Assert.assertTrue("All waiters should be served", done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Waiters should be served first come, first served", "[0, 1, 2]", servedOrder.toString());
+    }
+
+    @Test
+    public void testInterruptedWaiterGivesUp() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = new MockConnectionCreator(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        final AtomicReference<Exception> thrown = new AtomicReference<Exception>();
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connectionPool.getConnection(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        waiter.interrupt();
+        waiter.join(2000);
+
+        Assert.assertFalse("Interrupted waiter should stop waiting", waiter.isAlive());
+        Assert.assertTrue("Interrupted waiter should get an SQLException, got "+thrown.get(), thrown.get() instanceof SQLException);
+
+        connectionPool.releaseConnection(connection);
+        Assert.assertEquals("Released connection should go back to the pool, not to the departed waiter", 1, connectionPool.getNumberOfConnectionsAvailable());
+    }
+
+    @Test
+    public void testAsyncConnectionWhenOneIsAvailable() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = new MockConnectionCreator(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setInitialPoolSize(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        CompletableFuture<Connection> future = connectionPool.getConnectionAsync(1, TimeUnit.SECONDS);
+
+        Assert.assertTrue("Future should already be done when there was an idle connection", future.isDone());
+        Connection connection = future.get();
+        Assert.assertTrue("Connection should be valid", ((PooledConnectionInfo)connection).isLeaseValid());
+        Assert.assertEquals("Number of connections handed out should be 1", 1, connectionPool.getNumberOfConnectionsLeased());
+    }
+
+    @Test
+    public void testAsyncConnectionIsMadeOffTheCallingThread() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createMock(Connection.class);
+        final AtomicReference<Thread> connectingThread = new AtomicReference<Thread>();
+        ConnectionCreator connectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                connectingThread.set(Thread.currentThread());
+                return mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, connectionCreator, poolConfig);
+
+        Connection connection = connectionPool.getConnectionAsync(1, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+
+        Assert.assertNotNull("Should get a connection", connection);
+        Assert.assertNotSame("Connection should not be made on the calling thread", Thread.currentThread(), connectingThread.get());
+    }
+
+    @Test
+    public void testAsyncWaiterIsCompletedOnRelease() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = new MockConnectionCreator(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        CompletableFuture<Connection> future = connectionPool.getConnectionAsync(5, TimeUnit.SECONDS);
+        Assert.assertFalse("Future should wait while the only connection is leased", future.isDone());
+
+        connectionPool.releaseConnection(connection);
+
+        Assert.assertTrue("Future should be completed by the release", future.isDone());
+        Connection connection2 = future.get();
+        Assert.assertEquals("Should be the same connection", ((PooledConnectionInfo)connection).getConnectionUuid(), ((PooledConnectionInfo)connection2).getConnectionUuid());
+        Assert.assertTrue("Handed over connection should be valid", ((PooledConnectionInfo)connection2).isLeaseValid());
+        Assert.assertEquals("Number of connections available should be 0", 0, connectionPool.getNumberOfConnectionsAvailable());
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = new MockConnectionCreator(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        CompletableFuture<Connection> future = connectionPool.getConnectionAsync(200, TimeUnit.MILLISECONDS);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Future should time out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue("Should time out with an SQLTimeoutException, got "+e.getCause(), e.getCause() instanceof SQLTimeoutException);
+        }
+
+        connectionPool.releaseConnection(connection);
+        Assert.assertEquals("Released connection should go back to the pool, not to the timed out future", 1, connectionPool.getNumberOfConnectionsAvailable());
+    }
+
+    @Test
+    public void testCancelledAsyncWaiterIsSkipped() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        ConnectionCreator mockConnectionCreator = new MockConnectionCreator(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        CompletableFuture<Connection> cancelled = connectionPool.getConnectionAsync(5, TimeUnit.SECONDS);
+        CompletableFuture<Connection> waiting = connectionPool.getConnectionAsync(5, TimeUnit.SECONDS);
+        Assert.assertTrue("Should be able to cancel a waiting future", cancelled.cancel(false));
+
+        connectionPool.releaseConnection(connection);
+
+        Assert.assertTrue("The next future in line should get the connection", waiting.isDone());
+        Assert.assertTrue("Handed over connection should be valid", ((PooledConnectionInfo)waiting.get()).isLeaseValid());
+    }
+
+    @Test
+    public void testFillerKeepsMinIdleConnectionsReady() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createMock(Connection.class);
+        final List<Thread> connectingThreads = new CopyOnWriteArrayList<Thread>();
+        ConnectionCreator connectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                connectingThreads.add(Thread.currentThread());
+                return mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(5);
+        poolConfig.setMinIdle(2);
+        poolConfig.setAcquireIncrement(3);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, connectionCreator, poolConfig);
+
+        waitForAvailableConnections(connectionPool, 2);
+        Assert.assertEquals("Filler should make min idle connections at startup", 2, connectingThreads.size());
+
+        Connection connection1 = connectionPool.getConnection();
+        Connection connection2 = connectionPool.getConnection();
+        Connection connection3 = connectionPool.getConnection();
+        Assert.assertNotNull("Should get a connection", connection1);
+        Assert.assertNotNull("Should get a connection", connection2);
+        Assert.assertNotNull("Should get a connection", connection3);
+
+        waitForAvailableConnections(connectionPool, 2);
+        Assert.assertEquals("Number of connections handed out should be 3", 3, connectionPool.getNumberOfConnectionsLeased());
+        Assert.assertEquals("Filler should stop at the max pool size", 5, connectingThreads.size());
+        int connectionsMadeByBorrower = 0;
+        for (Thread connectingThread : connectingThreads) {
+            if (connectingThread == Thread.currentThread()) {
+                connectionsMadeByBorrower++;
+            }
+        }
+        Assert.assertTrue("Borrower should only ever connect for itself, but made "+connectionsMadeByBorrower, connectionsMadeByBorrower <= 3);
+    }
+
+    @Test
+    public void testWarmUpOpensConnectionsInParallel() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createMock(Connection.class);
+        final AtomicInteger connectingNow = new AtomicInteger();
+        final AtomicInteger mostConnectingAtOnce = new AtomicInteger();
+        ConnectionCreator slowConnectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                mostConnectingAtOnce.accumulateAndGet(connectingNow.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                connectingNow.decrementAndGet();
+                return mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(8);
+        poolConfig.setInitialPoolSize(8);
+        poolConfig.setWarmUpConcurrency(4);
+
+        long beforeTime = System.currentTimeMillis();
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, slowConnectionCreator, poolConfig);
+        long afterTime = System.currentTimeMillis();
+
+        Assert.assertEquals("Every initial connection should be open when the constructor returns", 8, connectionPool.getNumberOfConnectionsAvailable());
+        Assert.assertTrue("Should never open more than the warm up concurrency at once, but opened "+mostConnectingAtOnce.get(), mostConnectingAtOnce.get() <= 4);
+        Assert.assertTrue("8 connections 4 at a time should take about 400ms, not "+(afterTime - beforeTime)+"ms", afterTime - beforeTime < 1200);
+        Assert.assertTrue("Ready future should already be done", connectionPool.getReadyFuture().isDone());
+    }
+
+    @Test
+    public void testWarmUpFailureFailsConstruction() {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        ConnectionCreator failingConnectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                throw new SQLException("database is down");
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(4);
+        poolConfig.setInitialPoolSize(4);
+        poolConfig.setWarmUpConcurrency(2);
+
+        try {
+            new MortonianConnectionPool(mockConnectionConfig, failingConnectionCreator, poolConfig);
+            Assert.fail("Should not construct a pool whose initial connections can't be opened");
+        } catch (RuntimeException e) {
+            Assert.assertTrue("Should be caused by the connection failure", e.getCause() instanceof SQLException);
+        }
+    }
+
+    @Test
+    public void testBackgroundWarmUpRetriesFailedConnections() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createMock(Connection.class);
+        final AtomicInteger attempts = new AtomicInteger();
+        ConnectionCreator flakyConnectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                if (attempts.incrementAndGet() <= 2) {
+                    throw new SQLException("database isn't up yet");
+                }
+                return mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(3);
+        poolConfig.setInitialPoolSize(3);
+        poolConfig.setWarmUpInBackground(true);
+
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, flakyConnectionCreator, poolConfig);
+        Assert.assertFalse("Pool should be usable before the warm up is done", connectionPool.isShutdown());
+
+        connectionPool.getReadyFuture().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("Every initial connection should be open once the pool is ready", 3, connectionPool.getNumberOfConnectionsAvailable());
+        Assert.assertEquals("Should have retried the failed connections", 5, attempts.get());
+    }
+
+    @Test
+    public void testStripedPoolStealsIdleConnections() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createMock(Connection.class);
+        final AtomicInteger connectionsCreated = new AtomicInteger();
+        ConnectionCreator connectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                connectionsCreated.incrementAndGet();
+                return mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(3);
+        poolConfig.setNumberOfStripes(4);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, connectionCreator, poolConfig);
+
+        // everything this thread releases goes into its own stripe
+        Connection connection1 = connectionPool.getConnection();
+        Connection connection2 = connectionPool.getConnection();
+        Connection connection3 = connectionPool.getConnection();
+        connectionPool.releaseConnection(connection1);
+        connectionPool.releaseConnection(connection2);
+        connectionPool.releaseConnection(connection3);
+        Assert.assertEquals("Number of connections available should be 3", 3, connectionPool.getNumberOfConnectionsAvailable());
+
+        final List<Connection> borrowed = new CopyOnWriteArrayList<Connection>();
+        final AtomicReference<Connection> oneTooMany = new AtomicReference<Connection>();
+        Runnable borrowEverything = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        borrowed.add(connectionPool.getConnection());
+                    }
+                    oneTooMany.set(connectionPool.getConnection());
+                } catch (SQLException e) {
+                    _log.error(e);
+                }
+            }
+        };
+        // unless it happens to share our stripe, another thread has to steal them
+        Thread thread = new Thread(borrowEverything);
+        thread.start();
+        thread.join();
+
+        Assert.assertEquals("Should borrow every idle connection, whatever stripe it's in", 3, borrowed.size());
+        Assert.assertFalse("Should not get a null connection", borrowed.contains(null));
+        Assert.assertNull("Should still not go past the max pool size", oneTooMany.get());
+        Assert.assertEquals("Should reuse the idle connections rather than make new ones", 3, connectionsCreated.get());
+        Assert.assertEquals("Number of connections handed out should be 3", 3, connectionPool.getNumberOfConnectionsLeased());
+    }
+
+    @Test
+    public void testThreadAffinityReusesLastReleasedConnection() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(3);
+        poolConfig.setInitialPoolSize(3);
+        poolConfig.setThreadAffinity(true);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        String connectionUuid = ((PooledConnectionInfo) connection).getConnectionUuid();
+        for (int i = 0; i < 5; i++) {
+            connectionPool.releaseConnection(connection);
+            connection = connectionPool.getConnection();
+            Assert.assertEquals("Should get back the connection this thread just released", connectionUuid, ((PooledConnectionInfo) connection).getConnectionUuid());
+        }
+        connectionPool.releaseConnection(connection);
+        Assert.assertEquals("Number of connections available should be 3", 3, connectionPool.getNumberOfConnectionsAvailable());
+
+        // another thread can still have it, if it needs every connection
+        final List<Connection> borrowed = new CopyOnWriteArrayList<Connection>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        borrowed.add(connectionPool.getConnection());
+                    }
+                } catch (SQLException e) {
+                    _log.error(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        Assert.assertFalse("Other thread should get every connection", borrowed.contains(null));
+        Assert.assertNull("Should not get a connection somebody else has leased", connectionPool.getConnection());
+        Assert.assertEquals("Number of connections available should be 0", 0, connectionPool.getNumberOfConnectionsAvailable());
+
+        for (Connection borrowedConnection : borrowed) {
+            connectionPool.releaseConnection(borrowedConnection);
+        }
+        Set<String> connectionUuids = new HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            connection = connectionPool.getConnection();
+            Assert.assertNotNull("Should get a connection", connection);
+            connectionUuids.add(((PooledConnectionInfo) connection).getConnectionUuid());
+        }
+        Assert.assertEquals("Each connection should only be handed out once", 3, connectionUuids.size());
+        Assert.assertNull("Should not go past the max pool size", connectionPool.getConnection());
+    }
+
+    @Test
+    public void testRetiredConnectionsFreeUpTheirSlots() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        final AtomicInteger connectionsCreated = new AtomicInteger();
+        ConnectionCreator connectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                connectionsCreated.incrementAndGet();
+                return mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(2);
+        poolConfig.setMaxConnectionAgeInMillis(50);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, connectionCreator, poolConfig);
+
+        Set<String> connectionUuids = new HashSet<String>();
+        for (int round = 1; round <= 5; round++) {
+            Connection connection1 = connectionPool.getConnection();
+            Connection connection2 = connectionPool.getConnection();
+            Assert.assertNotNull("Should get a connection in round "+round, connection1);
+            Assert.assertNotNull("Should get a connection in round "+round, connection2);
+            connectionUuids.add(((PooledConnectionInfo) connection1).getConnectionUuid());
+            connectionUuids.add(((PooledConnectionInfo) connection2).getConnectionUuid());
+            Thread.sleep(60);
+            // too old by now, so these get closed on release
+            connectionPool.releaseConnection(connection1);
+            connectionPool.releaseConnection(connection2);
+            Assert.assertEquals("Number of connections available should be 0", 0, connectionPool.getNumberOfConnectionsAvailable());
+        }
+        Assert.assertEquals("Should make new connections in the retired ones' place", 10, connectionsCreated.get());
+        Assert.assertEquals("Every connection should have its own uuid", 10, connectionUuids.size());
+    }
+
+    @Test
+    public void testStaleConnectionStaysInvalidOnceReLeased() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        Statement mockStatement = EasyMock.createMock(Statement.class);
+        EasyMock.expect(mockConnection.createStatement()).andReturn(mockStatement);
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection staleConnection = connectionPool.getConnection();
+        connectionPool.releaseConnection(staleConnection);
+        Connection connection = connectionPool.getConnection();
+        Assert.assertEquals("Should be the same underlying connection", ((PooledConnectionInfo) staleConnection).getConnectionUuid(), 
+                ((PooledConnectionInfo) connection).getConnectionUuid());
+        Assert.assertFalse("Old lease should stay invalid", ((PooledConnectionInfo) staleConnection).isLeaseValid());
+        Assert.assertTrue("New lease should be valid", ((PooledConnectionInfo) connection).isLeaseValid());
+        try {
+            staleConnection.createStatement();
+            Assert.fail("Released connections should not allow you to call methods, even once somebody else has leased them");
+        } catch (RuntimeException e) { }
+
+        // releasing the old one again, or invalidating it, must not take the connection away from its new borrower
+        connectionPool.releaseConnection(staleConnection);
+        ((PooledConnectionInfo) staleConnection).invalidateLease();
+        Assert.assertTrue("New lease should still be valid", ((PooledConnectionInfo) connection).isLeaseValid());
+        Assert.assertEquals("Number of connections handed out should be 1", 1, connectionPool.getNumberOfConnectionsLeased());
+        Assert.assertNotNull("New borrower can still use it", connection.createStatement());
+        Assert.assertTrue("Should unwrap to its pooled connection info", connection.isWrapperFor(PooledConnectionInfo.class));
+        EasyMock.verify(mockConnection);
+    }
+
+    @Test
+    public void testStatementCacheReusesAndEvictsStatements() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        PreparedStatement mockStatementA = EasyMock.createMock(PreparedStatement.class);
+        PreparedStatement mockStatementB = EasyMock.createMock(PreparedStatement.class);
+        PreparedStatement mockStatementC = EasyMock.createMock(PreparedStatement.class);
+        EasyMock.expect(mockConnection.prepareStatement("select a")).andReturn(mockStatementA);
+        EasyMock.expect(mockConnection.prepareStatement("select b")).andReturn(mockStatementB);
+        EasyMock.expect(mockConnection.prepareStatement("select c")).andReturn(mockStatementC);
+        // asked when given back, and again when handed out from the cache
+        EasyMock.expect(mockStatementA.isClosed()).andReturn(false).times(3);
+        mockStatementA.clearParameters();
+        EasyMock.expectLastCall().times(2);
+        mockStatementA.close();
+        EasyMock.expect(mockStatementB.isClosed()).andReturn(false);
+        mockStatementB.clearParameters();
+        EasyMock.expect(mockStatementC.isClosed()).andReturn(false);
+        mockStatementC.clearParameters();
+        EasyMock.replay(mockConnection, mockStatementA, mockStatementB, mockStatementC);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setStatementCacheSize(2);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        PreparedStatement statement = connection.prepareStatement("select a");
+        statement.close();
+        Assert.assertTrue("Closed statement should say so", statement.isClosed());
+        try {
+            statement.executeQuery();
+            Assert.fail("Closed statements should not allow you to call methods");
+        } catch (SQLException e) { }
+        connectionPool.releaseConnection(connection);
+
+        // same physical connection, so the statement prepared under the last lease gets reused
+        connection = connectionPool.getConnection();
+        statement = connection.prepareStatement("select a");
+        Assert.assertSame("Statement should know which connection it came from", connection, statement.getConnection());
+        statement.close();
+        connection.prepareStatement("select b").close();
+        // the cache only holds 2, so the least recently used one gets closed
+        connection.prepareStatement("select c").close();
+        connectionPool.releaseConnection(connection);
+
+        Assert.assertEquals("Number of cache hits should be 1", 1, connectionPool.getStatementCacheHits());
+        Assert.assertEquals("Number of cache misses should be 3", 3, connectionPool.getStatementCacheMisses());
+        Assert.assertEquals("Number of cache evictions should be 1", 1, connectionPool.getStatementCacheEvictions());
+        EasyMock.verify(mockConnection, mockStatementA, mockStatementB, mockStatementC);
+    }
+
+    @Test
+    public void testStatementCacheOnlyTakesBackStatementsAsTheyWerePrepared() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        PreparedStatement mockStatementA = EasyMock.createMock(PreparedStatement.class);
+        PreparedStatement mockStatementB = EasyMock.createMock(PreparedStatement.class);
+        PreparedStatement mockStatementC = EasyMock.createMock(PreparedStatement.class);
+        ResultSet mockResultSet = EasyMock.createMock(ResultSet.class);
+        EasyMock.expect(mockConnection.prepareStatement("select a")).andReturn(mockStatementA);
+        EasyMock.expect(mockConnection.prepareStatement("select b")).andReturn(mockStatementB);
+        EasyMock.expect(mockConnection.prepareStatement("select c")).andReturn(mockStatementC).times(2);
+        EasyMock.expect(mockConnection.getAutoCommit()).andReturn(true);
+        // batched, run and left with a result set open, all of which is undone before it goes back
+        mockStatementA.addBatch();
+        EasyMock.expect(mockStatementA.executeQuery()).andReturn(mockResultSet);
+        mockResultSet.close();
+        mockStatementA.clearBatch();
+        mockStatementA.clearWarnings();
+        EasyMock.expect(mockStatementA.isClosed()).andReturn(false).times(3);
+        mockStatementA.clearParameters();
+        EasyMock.expectLastCall().times(2);
+        // its settings were changed, so it's closed rather than given back
+        mockStatementB.setMaxRows(10);
+        mockStatementB.close();
+        // closed on the database behind the cache's back, so it's dropped
+        EasyMock.expect(mockStatementC.isClosed()).andReturn(true);
+        EasyMock.replay(mockConnection, mockStatementA, mockStatementB, mockStatementC, mockResultSet);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setStatementCacheSize(2);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        PreparedStatement statement = connection.prepareStatement("select a");
+        statement.addBatch();
+        statement.executeQuery();
+        statement.close();
+        connection.prepareStatement("select a").close();
+
+        statement = connection.prepareStatement("select b");
+        statement.setMaxRows(10);
+        statement.close();
+
+        connection.prepareStatement("select c").close();
+        connection.prepareStatement("select c");
+        connectionPool.releaseConnection(connection);
+
+        Assert.assertEquals("Number of cache hits should be 1", 1, connectionPool.getStatementCacheHits());
+        Assert.assertEquals("Number of cache evictions should be 1", 1, connectionPool.getStatementCacheEvictions());
+        EasyMock.verify(mockConnection, mockStatementA, mockStatementB, mockStatementC, mockResultSet);
+    }
+
+    @Test
+    public void testSlowCommitAndCloseDontHoldUpOtherBorrowers() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final CountDownLatch commitStarted = new CountDownLatch(1);
+        final CountDownLatch commitMayFinish = new CountDownLatch(1);
+        final CountDownLatch closeStarted = new CountDownLatch(1);
+        final CountDownLatch closeMayFinish = new CountDownLatch(1);
+        // a connection whose commit and close hang, the way they would on a dead socket
+        final Connection slowConnection = EasyMock.createNiceMock(Connection.class);
+        slowConnection.commit();
+        EasyMock.expectLastCall().andAnswer(() -> {
+            commitStarted.countDown();
+            commitMayFinish.await();
+            return null;
+        });
+        slowConnection.close();
+        EasyMock.expectLastCall().andAnswer(() -> {
+            closeStarted.countDown();
+            closeMayFinish.await();
+            return null;
+        });
+        EasyMock.replay(slowConnection);
+        final Connection fastConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(fastConnection);
+        final AtomicInteger connectionsCreated = new AtomicInteger();
+        ConnectionCreator connectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                return 0 == connectionsCreated.getAndIncrement() ? slowConnection : fastConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(2);
+        poolConfig.setAutoCommit(true);
+        poolConfig.setMaxConnectionAgeInMillis(300);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, connectionCreator, poolConfig);
+
+        final Connection connection = connectionPool.getConnection();
+        Thread releaser = new Thread(() -> {
+            try {
+                connectionPool.releaseConnection(connection);
+            } catch (SQLException e) {
+                _log.error("Trouble releasing connection: "+e,e);
+            }
+        });
+        releaser.start();
+        Assert.assertTrue("Release should have started committing", commitStarted.await(5, TimeUnit.SECONDS));
+
+        long startedAt = System.currentTimeMillis();
+        Connection otherConnection = connectionPool.getConnection(1, TimeUnit.SECONDS);
+        Assert.assertNotNull("Should get another connection while the commit hangs", otherConnection);
+        connectionPool.releaseConnection(otherConnection);
+        Assert.assertTrue("A hanging commit should not hold up other borrowers", System.currentTimeMillis() - startedAt < 1000);
+
+        // by the time the commit finishes the connection is too old, so the release retires it
+        Thread.sleep(300);
+        commitMayFinish.countDown();
+        releaser.join(1000);
+        Assert.assertFalse("A hanging close should not hold up the releasing thread", releaser.isAlive());
+        Assert.assertTrue("Retired connection should get closed", closeStarted.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Number of connections leased should be 0", 0, connectionPool.getNumberOfConnectionsLeased());
+
+        closeMayFinish.countDown();
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testPoolStatisticsFollowStateChanges() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        final CountDownLatch connectStarted = new CountDownLatch(1);
+        final CountDownLatch connectMayFinish = new CountDownLatch(1);
+        final AtomicInteger connectionsCreated = new AtomicInteger();
+        ConnectionCreator connectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                if (3 == connectionsCreated.incrementAndGet()) {
+                    connectStarted.countDown();
+                    try {
+                        connectMayFinish.await();
+                    } catch (InterruptedException e) {
+                        throw new SQLException(e);
+                    }
+                }
+                return mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setInitialPoolSize(2);
+        poolConfig.setMaxPoolSize(3);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, connectionCreator, poolConfig);
+        Assert.assertEquals("Number of connections should be 2", 2, connectionPool.getNumberOfConnections());
+        Assert.assertEquals("Number of connections available should be 2", 2, connectionPool.getNumberOfConnectionsAvailable());
+        Assert.assertEquals("Number of connections leased should be 0", 0, connectionPool.getNumberOfConnectionsLeased());
+
+        Connection connection1 = connectionPool.getConnection();
+        Connection connection2 = connectionPool.getConnection();
+        Assert.assertEquals("Number of connections available should be 0", 0, connectionPool.getNumberOfConnectionsAvailable());
+        Assert.assertEquals("Number of connections leased should be 2", 2, connectionPool.getNumberOfConnectionsLeased());
+
+        // the third connection hangs while it's being made
+        final AtomicReference<Connection> connection3 = new AtomicReference<Connection>();
+        Thread borrower = new Thread(() -> {
+            try {
+                connection3.set(connectionPool.getConnection());
+            } catch (SQLException e) {
+                _log.error("Trouble getting connection: "+e,e);
+            }
+        });
+        borrower.start();
+        Assert.assertTrue("Third connection should be getting made", connectStarted.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Number of connections pending should be 1", 1, connectionPool.getNumberOfConnectionsPending());
+        Assert.assertEquals("Number of connections should be 3", 3, connectionPool.getNumberOfConnections());
+        Assert.assertEquals("Number of connections leased should be 2", 2, connectionPool.getNumberOfConnectionsLeased());
+        connectMayFinish.countDown();
+        borrower.join(5000);
+        Assert.assertNotNull("Should get the third connection", connection3.get());
+        Assert.assertEquals("Number of connections pending should be 0", 0, connectionPool.getNumberOfConnectionsPending());
+        Assert.assertEquals("Number of connections leased should be 3", 3, connectionPool.getNumberOfConnectionsLeased());
+
+        // releasing twice only counts once
+        connectionPool.releaseConnection(connection1);
+        connectionPool.releaseConnection(connection1);
+        Assert.assertEquals("Number of connections available should be 1", 1, connectionPool.getNumberOfConnectionsAvailable());
+        Assert.assertEquals("Number of connections leased should be 2", 2, connectionPool.getNumberOfConnectionsLeased());
+        connectionPool.releaseConnection(connection2);
+        connectionPool.releaseConnection(connection3.get());
+        Assert.assertEquals("Number of connections available should be 3", 3, connectionPool.getNumberOfConnectionsAvailable());
+        Assert.assertEquals("Number of connections leased should be 0", 0, connectionPool.getNumberOfConnectionsLeased());
+        Assert.assertEquals("Number of connections should be 3", 3, connectionPool.getNumberOfConnections());
+    }
+
+    @Test
+    public void testMetricsRecordWaitLeaseAndConnectTimes() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setMaxConnectionAgeInMillis(100);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        Assert.assertNull("Pool should be maxed out", connectionPool.getConnection(10, TimeUnit.MILLISECONDS));
+        Thread.sleep(150);
+        // too old by now, so it gets retired on release
+        connectionPool.releaseConnection(connection);
+
+        PoolMetricsSnapshot metrics = connectionPool.getMetrics().snapshotAndReset();
+        Assert.assertEquals("Should have waited once successfully", 1, metrics.getAcquireWaitTime().getCount());
+        Assert.assertEquals("Should have one lease", 1, metrics.getLeaseTime().getCount());
+        Assert.assertTrue("Lease should have lasted at least 150ms", metrics.getLeaseTime().getPercentileInNanos(50) >= TimeUnit.MILLISECONDS.toNanos(150));
+        Assert.assertEquals("Should have made one connection", 1, metrics.getConnectTime().getCount());
+        Assert.assertEquals("Number of timeouts should be 1", 1, metrics.getTimeouts());
+        Assert.assertEquals("Number of creations should be 1", 1, metrics.getCreations());
+        Assert.assertEquals("Number of retirements should be 1", 1, metrics.getRetirements());
+
+        metrics = connectionPool.getMetrics().snapshot();
+        Assert.assertEquals("Reset should start the counts over", 0, metrics.getLeaseTime().getCount());
+        Assert.assertEquals("Reset should start the counts over", 0, metrics.getTimeouts());
+        Assert.assertEquals("Totals should carry on past a reset", 1, connectionPool.getNumberOfTimeouts());
+        Assert.assertEquals("Totals should carry on past a reset", 1, connectionPool.getNumberOfConnectionsCreated());
+
+        // percentiles are never more than an eighth too high
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+        Assert.assertEquals("Max should be exact", 1000000, snapshot.getMaxInNanos());
+        Assert.assertEquals("Mean should be exact", 500500.0, snapshot.getMeanInNanos());
+        long p50 = snapshot.getPercentileInNanos(50);
+        long p99 = snapshot.getPercentileInNanos(99);
+        Assert.assertTrue("p50 should be about 500us, but was "+p50, p50 >= 500000 && p50 <= 500000 * 9 / 8);
+        Assert.assertTrue("p99 should be about 990us, but was "+p99, p99 >= 990000 && p99 <= 990000 * 9 / 8);
+        Assert.assertEquals("p100 should be the max", 1000000, snapshot.getPercentileInNanos(100));
+    }
+
+    @Test
+    public void testMBeanShowsStatisticsAndResizesPool() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setRegisterMBean(true);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("com.opower.connectionpool:type=MortonianConnectionPool,name="+connectionPool.getPoolUuid());
+        Assert.assertTrue("Pool should register its MBean", mbeanServer.isRegistered(objectName));
+
+        Connection connection = connectionPool.getConnection();
+        Assert.assertEquals("MBean should show the leased connection", 1, mbeanServer.getAttribute(objectName, "NumberOfConnectionsLeased"));
+        Assert.assertNull("Pool should be maxed out", connectionPool.getConnection(0, TimeUnit.MILLISECONDS));
+
+        // well past the room the pool started out with
+        mbeanServer.setAttribute(objectName, new Attribute("MaxPoolSize", 40));
+        List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+        connections.add(connection);
+        for (int i = 1; i < 40; i++) {
+            connections.add(connectionPool.getConnection(0, TimeUnit.MILLISECONDS));
+            Assert.assertNotNull("Should get a connection now that the pool is bigger", connections.get(i));
+        }
+        Assert.assertNull("Pool should be maxed out again", connectionPool.getConnection(0, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("MBean should show the connections", 40, mbeanServer.getAttribute(objectName, "NumberOfConnections"));
+        Assert.assertTrue("MBean should show the creation rate", (Double) mbeanServer.getAttribute(objectName, "ConnectionsCreatedPerSecond") > 0);
+        try {
+            connectionPool.setMaxPoolSize(MortonianConnectionPool.MAX_POOL_SIZE + 1);
+            Assert.fail("Pool shouldn't take a max it has no room for");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Max pool size shouldn't change", 40, connectionPool.getMaxPoolSize());
+        }
+
+        // shrinking doesn't take anybody's connection away, but closes the extra ones as they come back
+        connectionPool.setMaxPoolSize(2);
+        Assert.assertEquals("Number of connections leased should be 40", 40, connectionPool.getNumberOfConnectionsLeased());
+        for (Connection leasedConnection : connections) {
+            connectionPool.releaseConnection(leasedConnection);
+        }
+        Assert.assertEquals("Number of connections should be 2", 2, connectionPool.getNumberOfConnections());
+        Assert.assertEquals("Number of connections available should be 2", 2, connectionPool.getNumberOfConnectionsAvailable());
+
+        // eviction closes the idle ones now, and the leased ones once they're released
+        connection = connectionPool.getConnection();
+        mbeanServer.invoke(objectName, "softEvictConnections", null, null);
+        Assert.assertEquals("Number of connections available should be 0", 0, connectionPool.getNumberOfConnectionsAvailable());
+        Assert.assertEquals("Number of connections leased should be 1", 1, connectionPool.getNumberOfConnectionsLeased());
+        connectionPool.releaseConnection(connection);
+        Assert.assertEquals("Number of connections should be 0", 0, connectionPool.getNumberOfConnections());
+        Assert.assertEquals("MBean should show the retirements", 40L, mbeanServer.getAttribute(objectName, "NumberOfConnectionsRetired"));
+
+        connectionPool.shutdown();
+        Assert.assertFalse("Pool should unregister its MBean on shutdown", mbeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testHousekeeperRetiresExpiredIdleConnections() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setInitialPoolSize(3);
+        poolConfig.setMaxPoolSize(3);
+        poolConfig.setMaxIdleTimeInMillis(100);
+        poolConfig.setHousekeepingIntervalInMillis(20);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+        Assert.assertEquals("Number of connections available should be 3", 3, connectionPool.getNumberOfConnectionsAvailable());
+
+        // nobody borrows, so it's up to the housekeeper to close them
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (connectionPool.getNumberOfConnectionsRetired() < 3 && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Number of connections retired should be 3", 3, connectionPool.getNumberOfConnectionsRetired());
+        Assert.assertEquals("Number of connections available should be 0", 0, connectionPool.getNumberOfConnectionsAvailable());
+        Assert.assertEquals("Number of connections should be 0", 0, connectionPool.getNumberOfConnections());
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testSizingPolicyGrowsAndShrinksIdleConnections() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        final AtomicInteger targetIdle = new AtomicInteger(4);
+        final List<PoolSizingSample> samples = new CopyOnWriteArrayList<PoolSizingSample>();
+        PoolSizingPolicy sizingPolicy = new PoolSizingPolicy() {
+            @Override
+            public long getSampleIntervalInMillis() {
+                return 20;
+            }
+
+            @Override
+            public int getTargetIdleConnections(PoolSizingSample sample) {
+                samples.add(sample);
+                return targetIdle.get();
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(5);
+        poolConfig.setMinIdle(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig, 
+                sizingPolicy);
+
+        waitForAvailableConnections(connectionPool, 4);
+        Connection connection = connectionPool.getConnection();
+        Assert.assertNotNull("Should get a connection", connection);
+        waitForAvailableConnections(connectionPool, 4);
+        Assert.assertEquals("Should stay within the max pool size", 5, connectionPool.getNumberOfConnections());
+        // the filler may well have topped the pool up before the next sample was taken
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (samples.get(samples.size() - 1).getNumberOfConnectionsLeased() != 1 && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Policy should see the lease", 1, samples.get(samples.size() - 1).getNumberOfConnectionsLeased());
+
+        // shrinks, but never below min idle
+        targetIdle.set(0);
+        giveUpAt = System.currentTimeMillis() + 5000;
+        while (connectionPool.getNumberOfConnectionsAvailable() > 1 && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Number of connections available should be min idle", 1, connectionPool.getNumberOfConnectionsAvailable());
+        Assert.assertEquals("Number of connections should be 2", 2, connectionPool.getNumberOfConnections());
+        connectionPool.releaseConnection(connection);
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testAdaptiveSizingPolicyGrowsAheadAndShrinksSlowly() {
+        AdaptivePoolSizingPolicy sizingPolicy = new AdaptivePoolSizingPolicy(1000, 0.25, 3);
+        Assert.assertEquals("Nothing leased, so nothing needed", 0, sizingPolicy.getTargetIdleConnections(new PoolSizingSample(0, 0, 0, 0, 0, 0, 100)));
+
+        // a spike in demand, and borrowers having to wait: grow straight away, with headroom on top
+        int targetIdle = sizingPolicy.getTargetIdleConnections(new PoolSizingSample(40, 40, 0, 200, 100, 0, 100));
+        Assert.assertTrue("Should keep idle connections ready for more demand, but wanted "+targetIdle, targetIdle >= 10);
+        Assert.assertTrue("Should stay within the max pool size, but wanted "+targetIdle, targetIdle <= 60);
+
+        // demand drops off: hold on for a while first
+        int targetIdleAfterLull = sizingPolicy.getTargetIdleConnections(new PoolSizingSample(40, 0, 40, 0, 0, 0, 100));
+        Assert.assertEquals("Shouldn't shrink on the first quiet sample", Math.max(targetIdle, targetIdleAfterLull), targetIdleAfterLull);
+        int previousTargetIdle = targetIdleAfterLull;
+        for (int i = 0; i < 60; i++) {
+            int nextTargetIdle = sizingPolicy.getTargetIdleConnections(new PoolSizingSample(40, 0, 40, 0, 0, 2, 100));
+            Assert.assertTrue("Should only shrink a quarter at a time", nextTargetIdle >= previousTargetIdle - Math.max(1, previousTargetIdle / 4));
+            previousTargetIdle = nextTargetIdle;
+        }
+        Assert.assertTrue("Should have shrunk after a long lull, but still wants "+previousTargetIdle, previousTargetIdle < targetIdleAfterLull);
+        Assert.assertTrue("Should never go below min idle", previousTargetIdle >= 2);
+    }
+
+    @Test
+    public void testBrokenIdleConnectionIsReplacedOnBorrow() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        // a nice mock says it isn't valid
+        Connection brokenConnection = EasyMock.createNiceMock(Connection.class);
+        Connection workingConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.expect(workingConnection.isValid(5)).andReturn(true).anyTimes();
+        ConnectionCreator mockConnectionCreator = EasyMock.createMock(ConnectionCreator.class);
+        EasyMock.expect(mockConnectionCreator.createConnection(mockConnectionConfig)).andReturn(brokenConnection);
+        EasyMock.expect(mockConnectionCreator.createConnection(mockConnectionConfig)).andReturn(workingConnection);
+        EasyMock.replay(brokenConnection, workingConnection, mockConnectionCreator);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setInitialPoolSize(1);
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setValidateOnBorrow(true);
+        poolConfig.setValidationBypassWindowInMillis(100);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        Thread.sleep(150);
+        Connection connection = connectionPool.getConnection();
+        Assert.assertNotNull("Should get a working connection in place of the broken one", connection);
+        Assert.assertEquals("Broken connection should be retired", 1, connectionPool.getNumberOfConnectionsRetired());
+        Assert.assertEquals("Broken connection should be checked", 1, connectionPool.getMetrics().snapshot().getValidationTime().getCount());
+
+        // just used, so it's taken on trust
+        connectionPool.releaseConnection(connection);
+        connection = connectionPool.getConnection();
+        Assert.assertNotNull("Should get the working connection back", connection);
+        Assert.assertEquals("Recently used connection shouldn't be checked", 1, connectionPool.getMetrics().snapshot().getValidationTime().getCount());
+
+        // but once it's sat idle a while, it is
+        connectionPool.releaseConnection(connection);
+        Thread.sleep(150);
+        connection = connectionPool.getConnection();
+        Assert.assertNotNull("Should get the working connection back", connection);
+        Assert.assertEquals("Idle connection should be checked", 2, connectionPool.getMetrics().snapshot().getValidationTime().getCount());
+        Assert.assertEquals("Working connection shouldn't be retired", 1, connectionPool.getNumberOfConnectionsRetired());
+        connectionPool.releaseConnection(connection);
+        connectionPool.shutdown();
+        EasyMock.verify(mockConnectionCreator);
+    }
+
+    @Test
+    public void testAsyncBorrowChecksIdleConnectionsOnAConnectorThread() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection brokenConnection = EasyMock.createNiceMock(Connection.class);
+        Connection workingConnection = EasyMock.createNiceMock(Connection.class);
+        final List<String> checkingThreads = new CopyOnWriteArrayList<String>();
+        EasyMock.expect(brokenConnection.isValid(5)).andAnswer(() -> {
+            checkingThreads.add(Thread.currentThread().getName());
+            return false;
+        }).anyTimes();
+        ConnectionCreator mockConnectionCreator = EasyMock.createMock(ConnectionCreator.class);
+        EasyMock.expect(mockConnectionCreator.createConnection(mockConnectionConfig)).andReturn(brokenConnection);
+        EasyMock.expect(mockConnectionCreator.createConnection(mockConnectionConfig)).andReturn(workingConnection);
+        EasyMock.replay(brokenConnection, workingConnection, mockConnectionCreator);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setInitialPoolSize(1);
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setValidateOnBorrow(true);
+        poolConfig.setValidationBypassWindowInMillis(0);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, mockConnectionCreator, poolConfig);
+
+        Connection connection = connectionPool.getConnectionAsync().get(5, TimeUnit.SECONDS);
+
+        Assert.assertNotNull("Should get a working connection in place of the broken one", connection);
+        Assert.assertEquals("Broken connection should be retired", 1, connectionPool.getNumberOfConnectionsRetired());
+        Assert.assertEquals("Broken connection should be checked once", 1, checkingThreads.size());
+        Assert.assertTrue("Check should run on a connector thread, not " + checkingThreads.get(0), 
+                checkingThreads.get(0).startsWith("MortonianConnectionPool-" + connectionPool.getPoolUuid() + "-connector-"));
+        connectionPool.releaseConnection(connection);
+        connectionPool.shutdown();
+        EasyMock.verify(mockConnectionCreator);
+    }
+
+    @Test
+    public void testHousekeeperRetiresBrokenIdleConnections() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        Statement mockStatement = EasyMock.createNiceMock(Statement.class);
+        EasyMock.expect(mockConnection.createStatement()).andReturn(mockStatement).anyTimes();
+        EasyMock.expect(mockStatement.execute("SELECT 1")).andThrow(new SQLException("Connection reset"));
+        EasyMock.expect(mockStatement.execute("SELECT 1")).andReturn(true).anyTimes();
+        EasyMock.replay(mockConnection, mockStatement);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setInitialPoolSize(2);
+        poolConfig.setMaxPoolSize(2);
+        poolConfig.setValidateIdleConnections(true);
+        poolConfig.setValidationQuery("SELECT 1");
+        poolConfig.setValidationBypassWindowInMillis(0);
+        poolConfig.setHousekeepingIntervalInMillis(20);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        // nobody borrows, so it's up to the housekeeper to find the broken one
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (connectionPool.getNumberOfConnectionsRetired() < 1 && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Broken connection should be retired", 1, connectionPool.getNumberOfConnectionsRetired());
+        // the housekeeper claims the working one for a moment each time it checks it, so count it as a connection rather than as available
+        Assert.assertEquals("Working connection should stay in the pool", 1, connectionPool.getNumberOfConnections());
+        Thread.sleep(100);
+        Assert.assertEquals("Working connection should keep passing", 1, connectionPool.getNumberOfConnectionsRetired());
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testLeakedConnectionIsReportedAndTakenBack() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        final CountDownLatch rolledBack = new CountDownLatch(1);
+        mockConnection.rollback();
+        EasyMock.expectLastCall().andAnswer(() -> {
+            rolledBack.countDown();
+            return null;
+        });
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setLeakDetectionThresholdInMillis(50);
+        poolConfig.setAbandonedLeaseTimeoutInMillis(300);
+        poolConfig.setHousekeepingIntervalInMillis(20);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection leakedConnection = connectionPool.getConnection();
+        Assert.assertNotNull("Should get a connection", leakedConnection);
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (connectionPool.getNumberOfLeaksDetected() < 1 && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Leak should be reported", 1, connectionPool.getNumberOfLeaksDetected());
+        Assert.assertTrue("Reporting a leak shouldn't take the connection away", ((PooledConnectionInfo) leakedConnection).isLeaseValid());
+        Assert.assertNull("Pool should still be maxed out", connectionPool.getConnection());
+
+        Assert.assertTrue("Abandoned connection should be rolled back", rolledBack.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse("Abandoned lease should be invalidated", ((PooledConnectionInfo) leakedConnection).isLeaseValid());
+        Assert.assertEquals("Leak should only be counted once", 1, connectionPool.getNumberOfLeaksDetected());
+        Assert.assertEquals("Abandoned connection should be retired", 1, connectionPool.getNumberOfConnectionsRetired());
+        Connection connection = connectionPool.getConnection();
+        Assert.assertNotNull("Should get a connection in place of the abandoned one", connection);
+
+        // the borrower coming back late to release it changes nothing
+        connectionPool.releaseConnection(leakedConnection);
+        Assert.assertEquals("Number of connections leased should be 1", 1, connectionPool.getNumberOfConnectionsLeased());
+        connectionPool.releaseConnection(connection);
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testReleaseOnlyResetsWhatTheBorrowerChanged() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        Statement mockStatement = EasyMock.createNiceMock(Statement.class);
+        // first borrower turns off auto-commit, does some work, and changes the isolation and back again
+        EasyMock.expect(mockConnection.getAutoCommit()).andReturn(true);
+        mockConnection.setAutoCommit(false);
+        EasyMock.expect(mockConnection.createStatement()).andReturn(mockStatement);
+        EasyMock.expect(mockConnection.getTransactionIsolation()).andReturn(Connection.TRANSACTION_READ_COMMITTED);
+        mockConnection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        mockConnection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        // so release rolls back its transaction, before putting auto-commit back, and leaves the isolation alone
+        mockConnection.rollback();
+        mockConnection.setAutoCommit(true);
+        // second borrower only changes the schema, so that's all that's put back, without asking for auto-commit again
+        EasyMock.expect(mockConnection.getSchema()).andReturn("public");
+        mockConnection.setSchema("reporting");
+        mockConnection.setSchema("public");
+        EasyMock.replay(mockConnection, mockStatement);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        connection.setAutoCommit(false);
+        connection.createStatement().executeUpdate("update accounts set balance = 0");
+        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        connectionPool.releaseConnection(connection);
+
+        connection = connectionPool.getConnection();
+        connection.setSchema("reporting");
+        connectionPool.releaseConnection(connection);
+
+        // a borrower who changes nothing costs nothing
+        connection = connectionPool.getConnection();
+        connectionPool.releaseConnection(connection);
+        EasyMock.verify(mockConnection);
+        Assert.assertEquals("Connection should go back in the pool", 1, connectionPool.getNumberOfConnectionsAvailable());
+    }
+
+    @Test
+    public void testCommitIfOpenOnlyCommitsLeasesThatDidWork() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        Statement mockStatement = EasyMock.createNiceMock(Statement.class);
+        // the second borrower works in a transaction, so only its release commits, before putting auto-commit back
+        EasyMock.expect(mockConnection.getAutoCommit()).andReturn(true);
+        mockConnection.setAutoCommit(false);
+        EasyMock.expect(mockConnection.createStatement()).andReturn(mockStatement);
+        mockConnection.commit();
+        mockConnection.setAutoCommit(true);
+        // the third only runs an auto-committed statement
+        EasyMock.expect(mockConnection.createStatement()).andReturn(mockStatement);
+        // and the fourth turns auto-commit off and makes a statement, but never runs it
+        mockConnection.setAutoCommit(false);
+        EasyMock.expect(mockConnection.createStatement()).andReturn(mockStatement);
+        mockConnection.setAutoCommit(true);
+        EasyMock.replay(mockConnection, mockStatement);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setAutoCommit(true);
+        poolConfig.setReleasePolicy(ReleasePolicy.COMMIT_IF_OPEN);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        connectionPool.releaseConnection(connection);
+
+        connection = connectionPool.getConnection();
+        connection.setAutoCommit(false);
+        connection.createStatement().executeUpdate("update accounts set balance = 0");
+        connectionPool.releaseConnection(connection);
+
+        connection = connectionPool.getConnection();
+        connection.createStatement().executeQuery("select balance from accounts");
+        connectionPool.releaseConnection(connection);
+
+        connection = connectionPool.getConnection();
+        connection.setAutoCommit(false);
+        connection.createStatement();
+        connectionPool.releaseConnection(connection);
+        EasyMock.verify(mockConnection);
+    }
+
+    @Test
+    public void testBorrowersOwnCommitSparesTheOneOnRelease() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        Statement mockStatement = EasyMock.createNiceMock(Statement.class);
+        CallableStatement mockCall = EasyMock.createNiceMock(CallableStatement.class);
+        // the first borrower commits its own work, so release has nothing to commit
+        EasyMock.expect(mockConnection.getAutoCommit()).andReturn(true);
+        mockConnection.setAutoCommit(false);
+        EasyMock.expect(mockConnection.createStatement()).andReturn(mockStatement);
+        mockConnection.commit();
+        mockConnection.setAutoCommit(true);
+        // the second's commit fails, so its transaction is still open, and release commits it
+        mockConnection.setAutoCommit(false);
+        EasyMock.expect(mockConnection.createStatement()).andReturn(mockStatement);
+        mockConnection.commit();
+        EasyMock.expectLastCall().andThrow(new SQLException("Deadlock found"));
+        mockConnection.commit();
+        mockConnection.setAutoCommit(true);
+        // the third prepares a call, which the pool can't see run, so release commits even after the borrower has
+        mockConnection.setAutoCommit(false);
+        EasyMock.expect(mockConnection.prepareCall("{call audit()}")).andReturn(mockCall);
+        mockConnection.commit();
+        EasyMock.expectLastCall().times(2);
+        mockConnection.setAutoCommit(true);
+        EasyMock.replay(mockConnection, mockStatement, mockCall);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setReleasePolicy(ReleasePolicy.COMMIT_IF_OPEN);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        connection.setAutoCommit(false);
+        connection.createStatement().executeUpdate("update accounts set balance = 0");
+        connection.commit();
+        connectionPool.releaseConnection(connection);
+
+        connection = connectionPool.getConnection();
+        connection.setAutoCommit(false);
+        connection.createStatement().executeUpdate("update accounts set balance = 0");
+        try {
+            connection.commit();
+            Assert.fail("Should hear about the failed commit");
+        } catch (SQLException e) {
+            // expected
+        }
+        connectionPool.releaseConnection(connection);
+
+        connection = connectionPool.getConnection();
+        connection.setAutoCommit(false);
+        connection.prepareCall("{call audit()}").execute();
+        connection.commit();
+        connectionPool.releaseConnection(connection);
+        EasyMock.verify(mockConnection);
+    }
+
+    @Test
+    public void testWorkThroughResultSetsAndUnwrappedStatementsIsSeen() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        Statement mockStatement = EasyMock.createNiceMock(Statement.class);
+        PreparedStatement mockPreparedStatement = EasyMock.createNiceMock(PreparedStatement.class);
+        ResultSet mockResultSet = EasyMock.createNiceMock(ResultSet.class);
+        EasyMock.expect(mockStatement.executeQuery("select balance from accounts")).andReturn(mockResultSet);
+        // the first borrower commits, then does more work through the statement its result set came from, which release commits
+        EasyMock.expect(mockConnection.getAutoCommit()).andReturn(true);
+        mockConnection.setAutoCommit(false);
+        EasyMock.expect(mockConnection.createStatement()).andReturn(mockStatement);
+        mockConnection.commit();
+        EasyMock.expectLastCall().times(2);
+        mockConnection.setAutoCommit(true);
+        // the second unwraps a statement, which the pool can't see run, so release commits even after the borrower has
+        mockConnection.setAutoCommit(false);
+        EasyMock.expect(mockConnection.prepareStatement("update accounts set balance = ?")).andReturn(mockPreparedStatement);
+        mockConnection.commit();
+        EasyMock.expectLastCall().times(2);
+        mockConnection.setAutoCommit(true);
+        EasyMock.replay(mockConnection, mockStatement, mockPreparedStatement, mockResultSet);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setReleasePolicy(ReleasePolicy.COMMIT_IF_OPEN);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        connection.setAutoCommit(false);
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("select balance from accounts");
+        connection.commit();
+        Assert.assertSame("Result set should lead back to the pooled statement", statement, resultSet.getStatement());
+        resultSet.getStatement().executeUpdate("update accounts set balance = 0");
+        connectionPool.releaseConnection(connection);
+
+        connection = connectionPool.getConnection();
+        connection.setAutoCommit(false);
+        connection.prepareStatement("update accounts set balance = ?").unwrap(CallableStatement.class);
+        connection.commit();
+        connectionPool.releaseConnection(connection);
+        EasyMock.verify(mockConnection);
+    }
+
+    @Test
+    public void testFailedCommitOnReleaseLeavesTheLeaseWithItsBorrower() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createMock(Connection.class);
+        mockConnection.commit();
+        EasyMock.expectLastCall().andThrow(new SQLException("Deadlock found"));
+        mockConnection.commit();
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        poolConfig.setReleasePolicy(ReleasePolicy.COMMIT_ALWAYS);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        Connection connection = connectionPool.getConnection();
+        try {
+            connectionPool.releaseConnection(connection);
+            Assert.fail("Should hear about the failed commit");
+        } catch (SQLException e) {
+            // expected
+        }
+        Assert.assertTrue("Borrower should still hold the lease", ((PooledConnectionInfo) connection).isLeaseValid());
+        Assert.assertEquals("Number of connections leased should be 1", 1, connectionPool.getNumberOfConnectionsLeased());
+
+        connectionPool.releaseConnection(connection);
+        Assert.assertFalse("Connection should no longer be valid", ((PooledConnectionInfo) connection).isLeaseValid());
+        Assert.assertEquals("Connection should go back in the pool", 1, connectionPool.getNumberOfConnectionsAvailable());
+        // released twice over is a no-op
+        connectionPool.releaseConnection(connection);
+        EasyMock.verify(mockConnection);
+    }
+
+    @Test
+    public void testRoutingPoolSpreadsReadsAcrossReplicasAndFallsBackToPrimary() throws Exception {
+        final ConnectionConfig primaryConfig = EasyMock.createMock(ConnectionConfig.class);
+        ConnectionConfig replicaConfigA = EasyMock.createMock(ConnectionConfig.class);
+        ConnectionConfig replicaConfigB = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        RoutingConnectionPool connectionPool = new RoutingConnectionPool(primaryConfig, Arrays.asList(replicaConfigA, replicaConfigB), 
+                new MockConnectionCreator(mockConnection), poolConfig);
+        String primaryUuid = connectionPool.getPrimaryPool().getPoolUuid();
+        Set<String> replicaUuids = new HashSet<String>();
+        for (MortonianConnectionPool replicaPool : connectionPool.getReplicaPools()) {
+            replicaUuids.add(replicaPool.getPoolUuid());
+        }
+
+        Connection writeConnection = connectionPool.getConnection();
+        Assert.assertEquals("Writes should go to the primary", primaryUuid, ((PooledConnectionInfo) writeConnection).getConnectionPoolUuid());
+        connectionPool.releaseConnection(writeConnection);
+
+        // each replica has room for one, so the second read goes to the less loaded one
+        Connection firstRead = connectionPool.getReadOnlyConnection();
+        Connection secondRead = connectionPool.getReadOnlyConnection();
+        String firstReplica = ((PooledConnectionInfo) firstRead).getConnectionPoolUuid();
+        String secondReplica = ((PooledConnectionInfo) secondRead).getConnectionPoolUuid();
+        Assert.assertTrue("Reads should go to a replica", replicaUuids.contains(firstReplica));
+        Assert.assertTrue("Reads should go to a replica", replicaUuids.contains(secondReplica));
+        Assert.assertFalse("Reads should be spread across replicas", firstReplica.equals(secondReplica));
+
+        Connection thirdRead = connectionPool.getReadOnlyConnection();
+        Assert.assertEquals("Reads should fall back to the primary once the replicas are maxed out", primaryUuid, 
+                ((PooledConnectionInfo) thirdRead).getConnectionPoolUuid());
+        for (MortonianConnectionPool replicaPool : connectionPool.getReplicaPools()) {
+            Assert.assertEquals("Passing over a maxed out replica shouldn't count as a timeout", 0, replicaPool.getNumberOfTimeouts());
+        }
+
+        // each goes back to the pool it came from
+        connectionPool.releaseConnection(firstRead);
+        connectionPool.releaseConnection(secondRead);
+        connectionPool.releaseConnection(thirdRead);
+        Assert.assertEquals("Primary should have its connection back", 1, connectionPool.getPrimaryPool().getNumberOfConnectionsAvailable());
+        for (MortonianConnectionPool replicaPool : connectionPool.getReplicaPools()) {
+            Assert.assertEquals("Replica should have its connection back", 1, replicaPool.getNumberOfConnectionsAvailable());
+        }
+        connectionPool.shutdown();
+        Assert.assertTrue("Routing pool should be shut down", connectionPool.isShutdown());
+    }
+
+    @Test
+    public void testRoutingPoolShutsDownEveryPoolEvenIfOneThrows() throws Exception {
+        final ConnectionConfig primaryConfig = EasyMock.createMock(ConnectionConfig.class);
+        ConnectionConfig replicaConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection brokenConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.expect(brokenConnection.isClosed()).andThrow(new IllegalStateException("Driver is in a bad way"));
+        EasyMock.replay(brokenConnection);
+        final Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        ConnectionCreator connectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                return primaryConfig == connectionConfig ? brokenConnection : mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        RoutingConnectionPool connectionPool = new RoutingConnectionPool(primaryConfig, Arrays.asList(replicaConfig), connectionCreator, poolConfig);
+        connectionPool.releaseConnection(connectionPool.getConnection());
+        connectionPool.releaseConnection(connectionPool.getReadOnlyConnection());
+
+        try {
+            connectionPool.shutdown();
+            Assert.fail("Should hear about the primary's trouble");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertTrue("Primary should be shut down", connectionPool.getPrimaryPool().isShutdown());
+        Assert.assertTrue("Replica should be shut down too", connectionPool.getReplicaPools().get(0).isShutdown());
+    }
+
+    @Test
+    public void testKeyedPoolEvictsOtherTenantsIdleConnectionsAndDropsQuietOnes() throws Exception {
+        final ConnectionConfig configA = EasyMock.createMock(ConnectionConfig.class);
+        final ConnectionConfig configB = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(2);
+        poolConfig.setHousekeepingIntervalInMillis(20);
+        KeyedConnectionPool<String> connectionPool = new KeyedConnectionPool<String>(key -> "a".equals(key) ? configA : configB, 
+                new MockConnectionCreator(mockConnection), poolConfig, 2, 100);
+
+        Connection connectionA = connectionPool.getConnection("a");
+        Connection firstConnectionB = connectionPool.getConnection("b");
+        Assert.assertEquals("Number of keys should be 2", 2, connectionPool.getNumberOfKeys());
+        Assert.assertEquals("Number of connections should be 2", 2, connectionPool.getNumberOfConnections());
+        connectionPool.releaseConnection(connectionA);
+
+        // the cap has been reached, so a's idle connection is closed to make room for b's second
+        Connection secondConnectionB = connectionPool.getConnection("b");
+        Assert.assertNotNull("Should have made room under the cap", secondConnectionB);
+        Assert.assertEquals("Number of connections should still be 2", 2, connectionPool.getNumberOfConnections());
+        Assert.assertEquals("Key a should have no connections left", 0, connectionPool.getPool("a").getNumberOfConnections());
+        Assert.assertEquals("Key a's connection should have been retired", 1, connectionPool.getPool("a").getNumberOfConnectionsRetired());
+        Assert.assertEquals("Borrows that got a connection shouldn't count as timeouts", 0, connectionPool.getPool("b").getNumberOfTimeouts());
+
+        // with nothing idle anywhere, there's no room to be had
+        Assert.assertNull("Should not go over the cap", connectionPool.getConnection("a"));
+
+        // a has had no connections for the quiet period, so the housekeeper drops it
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (connectionPool.getNumberOfKeys() > 1 && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Number of keys should be 1", 1, connectionPool.getNumberOfKeys());
+        Assert.assertNull("Key a should have been dropped", connectionPool.getPool("a"));
+        Assert.assertNotNull("Key b is busy, so should be kept", connectionPool.getPool("b"));
+
+        connectionPool.releaseConnection(firstConnectionB);
+        connectionPool.releaseConnection(secondConnectionB);
+        connectionPool.shutdown();
+        Assert.assertTrue("Keyed pool should be shut down", connectionPool.isShutdown());
+        Assert.assertEquals("Shutting down should give back every place under the cap", 0, connectionPool.getNumberOfConnections());
+    }
+
+    @Test
+    public void testKeyedPoolMakesRoomForAWaiterWhenAnotherTenantReleases() throws Exception {
+        final ConnectionConfig configA = EasyMock.createMock(ConnectionConfig.class);
+        final ConnectionConfig configB = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        final KeyedConnectionPool<String> connectionPool = new KeyedConnectionPool<String>(key -> "a".equals(key) ? configA : configB, 
+                new MockConnectionCreator(mockConnection), poolConfig, 1, 60000);
+
+        Connection connectionB = connectionPool.getConnection("b");
+        final AtomicReference<Connection> connectionA = new AtomicReference<Connection>();
+        final AtomicReference<Exception> borrowerException = new AtomicReference<Exception>();
+        Thread borrower = new Thread(() -> {
+            try {
+                connectionA.set(connectionPool.getConnection("a", 2, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                borrowerException.set(e);
+            }
+        });
+        borrower.start();
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (null == connectionPool.getPool("a") || 0 == connectionPool.getPool("a").getNumberOfWaiters()) {
+            Assert.assertTrue("Borrower of a should have started waiting", System.currentTimeMillis() < giveUpAt);
+            Thread.sleep(10);
+        }
+
+        // b's connection goes idle with the cap reached and a waiting, so it's closed to make room for a's
+        long releasedAt = System.nanoTime();
+        connectionPool.releaseConnection(connectionB);
+        borrower.join(5000);
+
+        Assert.assertNull("Borrower of a should not have failed", borrowerException.get());
+        Assert.assertNotNull("Borrower of a should have got a connection", connectionA.get());
+        Assert.assertTrue("Borrower of a should not have waited out its timeout", System.nanoTime() - releasedAt < TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals("Key b's connection should have been retired", 1, connectionPool.getPool("b").getNumberOfConnectionsRetired());
+        Assert.assertEquals("Number of connections should still be 1", 1, connectionPool.getNumberOfConnections());
+
+        connectionPool.releaseConnection(connectionA.get());
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testCircuitBreakerFailsFastWhileTheDatabaseIsDown() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        final AtomicInteger connectAttempts = new AtomicInteger();
+        final AtomicReference<Boolean> databaseUp = new AtomicReference<Boolean>(false);
+        ConnectionCreator flakyConnectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                connectAttempts.incrementAndGet();
+                if (!databaseUp.get()) {
+                    throw new SQLException("Connection refused");
+                }
+                return mockConnection;
+            }
+        };
+        CircuitBreakingConnectionCreator connectionCreator = new CircuitBreakingConnectionCreator(flakyConnectionCreator, 2, 50, 200);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(1);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, connectionCreator, poolConfig);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                connectionPool.getConnection();
+                Assert.fail("Should not connect while the database is down");
+            } catch (SQLException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals("Circuit should open after 2 failures", CircuitBreakingConnectionCreator.State.OPEN, connectionCreator.getState());
+        Assert.assertEquals("Pool should show the circuit's state", CircuitBreakingConnectionCreator.State.OPEN, connectionPool.getCircuitState());
+
+        try {
+            connectionPool.getConnection();
+            Assert.fail("Should fail fast while the circuit is open");
+        } catch (SQLTransientConnectionException e) {
+            // expected
+        }
+        Assert.assertEquals("Should not have tried to connect while the circuit was open", 2, connectAttempts.get());
+        Assert.assertEquals("Number of fast failures should be 1", 1, connectionCreator.getNumberOfFastFailures());
+
+        // once the backoff has passed, one probe gets through, and closes the circuit when it connects
+        databaseUp.set(true);
+        Thread.sleep(60);
+        Connection connection = connectionPool.getConnection();
+        Assert.assertNotNull("Probe should connect once the database is back", connection);
+        Assert.assertEquals("Circuit should be closed again", CircuitBreakingConnectionCreator.State.CLOSED, connectionCreator.getState());
+        Assert.assertEquals("Number of times opened should be 1", 1, connectionCreator.getNumberOfTimesOpened());
+        Assert.assertEquals("Number of times closed should be 1", 1, connectionCreator.getNumberOfTimesClosed());
+        Assert.assertEquals("Pool should count every failed connect", 3, connectionPool.getNumberOfConnectFailures());
+        Assert.assertEquals("Pool should show the times opened", 1, connectionPool.getNumberOfTimesCircuitOpened());
+        Assert.assertEquals("Pool should show the times closed", 1, connectionPool.getNumberOfTimesCircuitClosed());
+        connectionPool.releaseConnection(connection);
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testCircuitBreakerReopensWhenAProbeThrowsAnError() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final AtomicInteger connectAttempts = new AtomicInteger();
+        ConnectionCreator brokenConnectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                if (connectAttempts.incrementAndGet() <= 2) {
+                    throw new SQLException("Connection refused");
+                }
+                throw new NoClassDefFoundError("com/example/jdbc/Driver");
+            }
+        };
+        CircuitBreakingConnectionCreator connectionCreator = new CircuitBreakingConnectionCreator(brokenConnectionCreator, 2, 10, 200);
+        for (int i = 0; i < 2; i++) {
+            try {
+                connectionCreator.createConnection(mockConnectionConfig);
+                Assert.fail("Should not connect");
+            } catch (SQLException e) {
+                // expected
+            }
+        }
+        Thread.sleep(20);
+        try {
+            connectionCreator.createConnection(mockConnectionConfig);
+            Assert.fail("Probe should throw");
+        } catch (NoClassDefFoundError e) {
+            // expected
+        }
+        Assert.assertEquals("Circuit should open again rather than staying half open", CircuitBreakingConnectionCreator.State.OPEN, 
+                connectionCreator.getState());
+        Assert.assertEquals("Number of consecutive failures should be 3", 3, connectionCreator.getNumberOfConsecutiveFailures());
+    }
+
+    @Test
+    public void testMaxConcurrentConnectsHoldsBackAConnectStorm() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        final AtomicInteger connectsInFlight = new AtomicInteger();
+        final AtomicInteger mostConnectsInFlight = new AtomicInteger();
+        ConnectionCreator slowConnectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                int inFlight = connectsInFlight.incrementAndGet();
+                mostConnectsInFlight.accumulateAndGet(inFlight, Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                } finally {
+                    connectsInFlight.decrementAndGet();
+                }
+                return mockConnection;
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(4);
+        poolConfig.setMaxConcurrentConnects(1);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, slowConnectionCreator, poolConfig);
+
+        // everybody shows up at once on an empty pool, but only one of them connects at a time
+        List<CompletableFuture<Connection>> borrows = new CopyOnWriteArrayList<CompletableFuture<Connection>>();
+        for (int i = 0; i < 4; i++) {
+            borrows.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return connectionPool.getConnection(5, TimeUnit.SECONDS);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<Connection> borrow : borrows) {
+            Assert.assertNotNull("Every borrower should get a connection in the end", borrow.get(10, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals("Only one connect should be in flight at a time", 1, mostConnectsInFlight.get());
+        Assert.assertEquals("Number of connections should be 4", 4, connectionPool.getNumberOfConnections());
+        for (CompletableFuture<Connection> borrow : borrows) {
+            connectionPool.releaseConnection(borrow.get());
+        }
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testMaxConnectsPerSecondSpreadsOutConnects() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.replay(mockConnection);
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(5);
+        poolConfig.setMaxConnectsPerSecond(2);
+        MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, new MockConnectionCreator(mockConnection), poolConfig);
+
+        // a second's worth can be made in a burst
+        Connection firstConnection = connectionPool.getConnection(0, TimeUnit.MILLISECONDS);
+        Connection secondConnection = connectionPool.getConnection(0, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull("First connect should be within the burst", firstConnection);
+        Assert.assertNotNull("Second connect should be within the burst", secondConnection);
+
+        // after which the next connect has to wait for a token, even though the pool has room
+        Assert.assertNull("Should not connect before the next token", connectionPool.getConnection(0, TimeUnit.MILLISECONDS));
+        long startedAtMillis = System.currentTimeMillis();
+        Connection thirdConnection = connectionPool.getConnection(2, TimeUnit.SECONDS);
+        Assert.assertNotNull("Should connect once there's a token", thirdConnection);
+        Assert.assertTrue("Should have waited for a token", System.currentTimeMillis() - startedAtMillis >= 300);
+        Assert.assertEquals("Number of connections should be 3", 3, connectionPool.getNumberOfConnections());
+
+        connectionPool.releaseConnection(firstConnection);
+        connectionPool.releaseConnection(secondConnection);
+        connectionPool.releaseConnection(thirdConnection);
+        connectionPool.shutdown();
+    }
+
+    private void waitForAvailableConnections(MortonianConnectionPool connectionPool, int expected) throws InterruptedException {
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (connectionPool.getNumberOfConnectionsAvailable() < expected && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Number of connections available should be "+expected, expected, connectionPool.getNumberOfConnectionsAvailable());
+    }
 }
@@ -0,0 +1,124 @@
+package com.opower.connectionpool;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opower.connectionpool.pool.MortonianConnectionPool;
+import com.opower.connectionpool.pool.config.SimplePoolConfig;
+
+/**
+ * Runs a {@link MortonianConnectionPool} under thousands of virtual threads.  Only compiled and run on JDK 21 and up (see the virtual-threads profile in the pom),
+ * which also turns on -Djdk.tracePinnedThreads, so any place the pool pins a carrier thread shows up in the test output.
+ */
+public class TestVirtualThreadConnectionPool {
+
+    private static final int NUMBER_OF_VIRTUAL_THREADS = 10000;
+    private static final int MAX_POOL_SIZE = 20;
+
+    private Level _originalLevel;
+
+    @Before
+    public void quietPoolLogging() {
+        // log4j appenders are synchronized, so debug logging from 10k threads would pin carriers all by itself
+        Logger poolLogger = Logger.getLogger(MortonianConnectionPool.class);
+        _originalLevel = poolLogger.getLevel();
+        poolLogger.setLevel(Level.INFO);
+    }
+
+    @After
+    public void restorePoolLogging() {
+        Logger.getLogger(MortonianConnectionPool.class).setLevel(_originalLevel);
+    }
+
+    @Test
+    public void testTenThousandVirtualThreadsShareTwentyConnections() throws Exception {
+        ConnectionConfig mockConnectionConfig = EasyMock.createMock(ConnectionConfig.class);
+        final AtomicInteger connectionsCreated = new AtomicInteger();
+        ConnectionCreator slowConnectionCreator = new ConnectionCreator() {
+            @Override
+            public Connection createConnection(ConnectionConfig connectionConfig) throws SQLException {
+                connectionsCreated.incrementAndGet();
+                sleep(5);
+                return slowCommittingConnection();
+            }
+        };
+        SimplePoolConfig poolConfig = new SimplePoolConfig();
+        poolConfig.setMaxPoolSize(MAX_POOL_SIZE);
+        poolConfig.setAutoCommit(true);
+        final MortonianConnectionPool connectionPool = new MortonianConnectionPool(mockConnectionConfig, slowConnectionCreator, poolConfig);
+
+        final AtomicInteger served = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger leasedNow = new AtomicInteger();
+        final AtomicInteger mostLeasedAtOnce = new AtomicInteger();
+
+        long beforeTime = System.currentTimeMillis();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < NUMBER_OF_VIRTUAL_THREADS; i++) {
+                executor.submit(() -> {
+                    try {
+                        Connection connection = connectionPool.getConnection(60, TimeUnit.SECONDS);
+                        if (null == connection) {
+                            failed.incrementAndGet();
+                            return;
+                        }
+                        mostLeasedAtOnce.accumulateAndGet(leasedNow.incrementAndGet(), Math::max);
+                        sleep(1);
+                        leasedNow.decrementAndGet();
+                        connectionPool.releaseConnection(connection);
+                        served.incrementAndGet();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                });
+            }
+        }
+        long afterTime = System.currentTimeMillis();
+
+        Assert.assertEquals("No virtual thread should fail to get a connection", 0, failed.get());
+        Assert.assertEquals("Every virtual thread should get a connection", NUMBER_OF_VIRTUAL_THREADS, served.get());
+        Assert.assertTrue("Should never lease more than the max pool size, but leased "+mostLeasedAtOnce.get(), mostLeasedAtOnce.get() <= MAX_POOL_SIZE);
+        Assert.assertTrue("Should never create more than the max pool size, but created "+connectionsCreated.get(), connectionsCreated.get() <= MAX_POOL_SIZE);
+        Assert.assertEquals("Number of connections handed out after all threads finish should be 0", 0, connectionPool.getNumberOfConnectionsLeased());
+        // 10k leases of ~2ms each over 20 connections is ~1s of work, if the connections are kept busy
+        Assert.assertTrue("Virtual threads should not stall on a handful of carriers, took "+(afterTime - beforeTime)+"ms", afterTime - beforeTime < 30000);
+
+        connectionPool.shutdown();
+    }
+
+    /**
+     * @return a connection whose commit takes a millisecond, like a real database round trip would
+     */
+    private static Connection slowCommittingConnection() {
+        return (Connection) Proxy.newProxyInstance(TestVirtualThreadConnectionPool.class.getClassLoader(), new Class[] { Connection.class }, (proxy, method, args) -> {
+            if ("commit".equals(method.getName())) {
+                sleep(1);
+            } else if ("isClosed".equals(method.getName())) {
+                return false;
+            }
+            return null;
+        });
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}